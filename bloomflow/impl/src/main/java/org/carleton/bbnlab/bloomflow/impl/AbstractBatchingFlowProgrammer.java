@@ -0,0 +1,343 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.Meter;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.TableKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queueing and batching logic shared by the flow programming backends.
+ *
+ * Operations are queued per switch, and all operations queued for a switch within a batching window are handed to
+ * the backend as a single batch (capped at maxBatchSize operations). Batches are submitted without waiting for the
+ * previous batch to complete, up to maxInFlight outstanding batches.
+ *
+ * The futures returned to callers are completed on the scheduler once their batch completes, never while the lock on
+ * the programmer is held, since their listeners call back into code which enqueues operations while holding its own
+ * locks.
+ */
+public abstract class AbstractBatchingFlowProgrammer implements FlowProgrammer {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractBatchingFlowProgrammer.class);
+
+    protected enum OperationType {
+        ADD_FLOW,
+        REMOVE_FLOW,
+        REMOVE_FLOWS_BY_COOKIE,  // path is the table, data is a Flow carrying only the table ID, cookie and mask
+        ADD_GROUP,
+        REMOVE_GROUP,
+        ADD_METER,
+        REMOVE_METER
+    }
+
+    protected static class PendingOperation {
+        public final OperationType type;
+        public final InstanceIdentifier<? extends DataObject> path;
+        public final DataObject data;
+        // Set by the backend, the caller is only notified through completion once the batch completes
+        public final SettableFuture<Void> result;
+        private final SettableFuture<Void> completion;
+
+        public PendingOperation(OperationType type, InstanceIdentifier<? extends DataObject> path, DataObject data) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+            this.result = SettableFuture.create();
+            this.completion = SettableFuture.create();
+        }
+
+        public boolean isFlowOperation() {
+            return type == OperationType.ADD_FLOW || type == OperationType.REMOVE_FLOW
+                    || type == OperationType.REMOVE_FLOWS_BY_COOKIE;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long batchWindowMillis;
+    private final int maxBatchSize;
+    private final int maxInFlight;
+    // Runs batch completions on the scheduler, or on the completing thread once the scheduler has been shut down
+    private final Executor completionExecutor;
+
+    // Guarded by this
+    private final Map<InstanceIdentifier<Node>, List<PendingOperation>> pendingOperations;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    private final AtomicInteger inFlightBatches;
+    private final AtomicLong submittedBatches;
+    private final AtomicLong completedOperations;
+    private final AtomicLong failedOperations;
+
+    protected AbstractBatchingFlowProgrammer(ScheduledExecutorService scheduler, long batchWindowMillis,
+            int maxBatchSize, int maxInFlight) {
+        this.scheduler = scheduler;
+        this.batchWindowMillis = batchWindowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.maxInFlight = maxInFlight;
+        this.completionExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                try {
+                    AbstractBatchingFlowProgrammer.this.scheduler.execute(command);
+                } catch (RejectedExecutionException e) {
+                    command.run();
+                }
+            }
+        };
+        this.pendingOperations = new LinkedHashMap<>();
+        this.scheduledFlush = null;
+        this.closed = false;
+        this.inFlightBatches = new AtomicInteger(0);
+        this.submittedBatches = new AtomicLong(0);
+        this.completedOperations = new AtomicLong(0);
+        this.failedOperations = new AtomicLong(0);
+    }
+
+    /**
+     * Submits a batch of operations for a single switch to the backend. The returned future must complete once every
+     * operation in the batch has completed. Operations whose result has not been set by the backend are completed
+     * with the result of the returned future.
+     */
+    protected abstract ListenableFuture<Void> submitBatch(InstanceIdentifier<Node> nodePath,
+            List<PendingOperation> batch);
+
+    protected abstract String getBackendName();
+
+    @Override
+    public ListenableFuture<Void> addFlow(InstanceIdentifier<Flow> flowPath, Flow flow) {
+        return enqueue(new PendingOperation(OperationType.ADD_FLOW, flowPath, flow));
+    }
+
+    @Override
+    public ListenableFuture<Void> removeFlow(InstanceIdentifier<Flow> flowPath, Flow flow) {
+        return enqueue(new PendingOperation(OperationType.REMOVE_FLOW, flowPath, flow));
+    }
+
+    @Override
+    public ListenableFuture<Void> removeFlowsByCookie(InstanceIdentifier<Table> tablePath, FlowCookie cookie,
+            FlowCookie cookieMask) {
+        Flow cookieMatch = new FlowBuilder()
+                .setTableId(tablePath.firstKeyOf(Table.class, TableKey.class).getId())
+                .setCookie(cookie)
+                .setCookieMask(cookieMask)
+                .build();
+        return enqueue(new PendingOperation(OperationType.REMOVE_FLOWS_BY_COOKIE, tablePath, cookieMatch));
+    }
+
+    @Override
+    public ListenableFuture<Void> addGroup(InstanceIdentifier<Group> groupPath, Group group) {
+        return enqueue(new PendingOperation(OperationType.ADD_GROUP, groupPath, group));
+    }
+
+    @Override
+    public ListenableFuture<Void> removeGroup(InstanceIdentifier<Group> groupPath, Group group) {
+        return enqueue(new PendingOperation(OperationType.REMOVE_GROUP, groupPath, group));
+    }
+
+    @Override
+    public ListenableFuture<Void> addMeter(InstanceIdentifier<Meter> meterPath, Meter meter) {
+        return enqueue(new PendingOperation(OperationType.ADD_METER, meterPath, meter));
+    }
+
+    @Override
+    public ListenableFuture<Void> removeMeter(InstanceIdentifier<Meter> meterPath, Meter meter) {
+        return enqueue(new PendingOperation(OperationType.REMOVE_METER, meterPath, meter));
+    }
+
+    protected synchronized ListenableFuture<Void> enqueue(PendingOperation operation) {
+        if (closed) {
+            // No listener can be registered yet, so completing the future here does not call back under the lock
+            operation.completion.setException(new IllegalStateException("Flow programmer is closed"));
+            return operation.completion;
+        }
+
+        InstanceIdentifier<Node> nodePath = operation.path.firstIdentifierOf(Node.class);
+        List<PendingOperation> nodeQueue = pendingOperations.get(nodePath);
+        if (nodeQueue == null) {
+            nodeQueue = new ArrayList<>();
+            pendingOperations.put(nodePath, nodeQueue);
+        }
+        nodeQueue.add(operation);
+
+        if (nodeQueue.size() >= maxBatchSize) {
+            // A full batch does not need to wait for the end of the batching window
+            flushNode(nodePath, false);
+        }
+        if (pendingOperations.containsKey(nodePath) && scheduledFlush == null) {
+            scheduleFlush();
+        }
+
+        return operation.completion;
+    }
+
+    private void scheduleFlush() {
+        scheduledFlush = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits one batch for each switch with queued operations. Switches which could not be flushed because the in
+     * flight batch limit was reached are retried on the next batching window.
+     */
+    @Override
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        for (InstanceIdentifier<Node> nodePath : new ArrayList<>(pendingOperations.keySet())) {
+            if (!flushNode(nodePath, false)) {
+                break;
+            }
+        }
+
+        if (!pendingOperations.isEmpty() && !closed) {
+            scheduleFlush();
+        }
+    }
+
+    // Must be called while holding the lock on this. Returns false if the in flight batch limit was reached.
+    private boolean flushNode(InstanceIdentifier<Node> nodePath, boolean ignoreInFlightLimit) {
+        List<PendingOperation> nodeQueue = pendingOperations.get(nodePath);
+        if (nodeQueue == null || nodeQueue.isEmpty()) {
+            pendingOperations.remove(nodePath);
+            return true;
+        }
+
+        if (!ignoreInFlightLimit && inFlightBatches.get() >= maxInFlight) {
+            LOG.debug("flushNode() - " + maxInFlight + " batches in flight, deferring batch");
+            return false;
+        }
+
+        final List<PendingOperation> batch;
+        if (nodeQueue.size() <= maxBatchSize) {
+            batch = nodeQueue;
+            pendingOperations.remove(nodePath);
+        } else {
+            batch = new ArrayList<>(nodeQueue.subList(0, maxBatchSize));
+            nodeQueue.subList(0, maxBatchSize).clear();
+        }
+
+        inFlightBatches.incrementAndGet();
+        submittedBatches.incrementAndGet();
+        ListenableFuture<Void> batchFuture;
+        try {
+            batchFuture = submitBatch(nodePath, batch);
+        } catch (RuntimeException e) {
+            batchFuture = Futures.immediateFailedFuture(e);
+        }
+
+        // A batch which fails (or completes) immediately must not complete its operations under the lock on this
+        Futures.addCallback(batchFuture, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                inFlightBatches.decrementAndGet();
+                completeBatch(batch, null);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                inFlightBatches.decrementAndGet();
+                LOG.warn("flushNode() - " + getBackendName() + " batch of " + batch.size()
+                        + " operations failed: " + throwable.getMessage());
+                completeBatch(batch, throwable);
+            }
+        }, completionExecutor);
+
+        LOG.debug("flushNode() - Submitted " + getBackendName() + " batch of " + batch.size() + " operations");
+        return true;
+    }
+
+    private void completeBatch(List<PendingOperation> batch, Throwable failure) {
+        for (PendingOperation operation : batch) {
+            if (!operation.result.isDone()) {
+                if (failure == null) {
+                    operation.result.set(null);
+                } else {
+                    operation.result.setException(failure);
+                }
+            }
+
+            Throwable operationFailure = getFailure(operation.result);
+            if (operationFailure == null) {
+                operation.completion.set(null);
+                completedOperations.incrementAndGet();
+            } else {
+                operation.completion.setException(operationFailure);
+                failedOperations.incrementAndGet();
+            }
+        }
+    }
+
+    // Returns the cause of the failure of the future, or null if it succeeded. The future must already be done.
+    private static Throwable getFailure(SettableFuture<Void> future) {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException | CancellationException e) {
+            return e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        // Submit whatever is still queued regardless of the in flight limit, so that no caller is left waiting
+        closed = true;
+        for (InstanceIdentifier<Node> nodePath : new ArrayList<>(pendingOperations.keySet())) {
+            while (pendingOperations.containsKey(nodePath)) {
+                flushNode(nodePath, true);
+            }
+        }
+    }
+
+    @Override
+    public String debugStr() {
+        return getBackendName() + " flow programmer: " + submittedBatches.get() + " batches submitted, "
+                + inFlightBatches.get() + " in flight, " + completedOperations.get() + " operations completed, "
+                + failedOperations.get() + " operations failed\n";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * 128-bit keys for IPv4 and IPv6 addresses, held as two longs so that both families can be indexed by primitive keys.
+ *
+ * IPv6 addresses are used as is. IPv4 addresses are mapped to the IPv4-mapped IPv6 address ::ffff:a.b.c.d (RFC 4291,
+ * section 2.5.5.2), which cannot collide with a native IPv6 multicast group or source.
+ */
+public final class AddressKeys {
+    private static final long IPV4_MAPPED_PREFIX = 0x0000ffff00000000L;
+
+    private AddressKeys() {
+        // Disable instantiation of this class
+    }
+
+    /**
+     * Returns the upper 64 bits of the key of the address.
+     */
+    public static long high(InetAddress address) {
+        return address instanceof Inet4Address ? 0 : readLong(address.getAddress(), 0);
+    }
+
+    /**
+     * Returns the lower 64 bits of the key of the address.
+     */
+    public static long low(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // The hash code of an Inet4Address is its address, which avoids copying the address bytes
+            return IPV4_MAPPED_PREFIX | (address.hashCode() & 0xffffffffL);
+        }
+        return readLong(address.getAddress(), 8);
+    }
+
+    public static int hash(long high, long low) {
+        long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xffL);
+        }
+        return value;
+    }
+}
@@ -13,9 +13,17 @@ import java.util.HashSet;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.DataObjectModification.ModificationType;
@@ -30,24 +38,32 @@ import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
 import org.opendaylight.yangtools.concepts.Registration;
 import org.opendaylight.yangtools.concepts.ListenerRegistration;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.table.statistics.rev131215.FlowTableStatisticsData;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.transaction.rev150304.FlowCapableTransactionService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.SalGroupService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.SalMeterService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingListener;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketReceived;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.TransmitPacketInputBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 public class BloomflowProvider implements PacketProcessingListener, DataTreeChangeListener<Table> {
     private static final Logger LOG = LoggerFactory.getLogger(BloomflowProvider.class);
-    private static final int FIRST_FLOW_ID = 2534;    // Arbitrarily selected
+    public static final short FLOW_TABLE_ID = 0;
 
     // IGMP Config Params - Move these into configuration database once the required parameters are finalized
     public final int igmpRobustness;
@@ -62,30 +78,100 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
     public final int igmpLastMemberQueryTime;
     public final int igmpUnsolicitedReportInterval;
 
+    // IGMPv1/v2 Compatibility Params
+    public final double igmpOlderHostPresentInterval; // Seconds, see RFC 3376 section 8.13
+    // Seconds an IGMPv2 leave waits for other members to answer the group specific queries sent for it (MLDv1 dones
+    // are not queried, so other listeners only report in time when an external querier answers the done with one)
+    public final double igmpLeaveLatency;
+    public final boolean igmpFastLeave;        // Default for new ports, see IgmpSwitchManager.setFastLeave()
+    public final boolean igmpExplicitHostTracking; // Track membership per reporting host, pruning on the last leave
+
+    // MLD Params (MLD shares the IGMP timers and compatibility params above)
+    public final boolean mldEnabled;           // Snoop MLD messages and route IPv6 multicast traffic
+
+    // Group Policy Params
+    public final GroupPolicyFilter igmpGroupPolicy;
+    // Filters of individual ports by port ID (e.g. "openflow:1:3"), taking precedence over igmpGroupPolicy
+    public final Map<String, GroupPolicyFilter> igmpPortGroupPolicies;
+
+    // Membership Limit Params (0 for no limit)
+    public final int igmpMaxGroupsPerPort;
+    public final int igmpMaxGroupsPerSwitch;
+    public final int igmpMaxSourcesPerGroup;
+    public final IgmpSwitchManager.MembershipLimitPolicy igmpMembershipLimitPolicy;
+
+    // Flow Table Admission Control Params
+    public final FlowTableOccupancy.OverflowPolicy flowTableOverflowPolicy;
+    public final double flowTableHighWatermark;
+
+    // IGMP Punt Rate Limiting Params
+    public final IgmpSwitchManager.PuntMeterMode igmpPuntMeterMode;
+    public final long igmpPuntRatePps;         // Maximum rate of IGMP packets sent to the controller per meter
+    public final long igmpPuntBurstSize;
+
+    // Malformed IGMP / MLD Packet Params
+    public final int igmpMalformedBlockThreshold; // Malformed packets per window which block a port, 0 to disable
+    public final int igmpMalformedWindow;      // Seconds
+    public final int igmpMalformedBlockTime;   // Seconds a blocked port stays blocked
+
+    // IGMP Proxy Params
+    public final boolean igmpProxyReporting;   // Merge membership across the ports of each switch and answer queries
+
+    // Multicast Routing Params
+    public final int mcastFlowIdleTimeout;     // Seconds without traffic before an (S,G) flow expires, 0 to disable
+
+    // Flow Programming Params
+    public final FlowProgrammer.Backend flowProgrammerBackend;
+    public final long flowBatchWindowMillis;
+    public final int flowBatchMaxSize;
+    public final int flowMaxInFlightTransactions;
 
     private final DataBroker dataBroker;
     private final NotificationProviderService notificationService;
     private final PacketProcessingService packetProcessingService;
+    private final SalFlowService salFlowService;
+    private final SalGroupService salGroupService;
+    private final SalMeterService salMeterService;
+    private final FlowCapableTransactionService flowTransactionService;
 
     private Registration packetInRegistration;
+    private Registration flowRemovedRegistration;
     private ListenerRegistration<DataTreeChangeListener> dataTreeChangeListenerRegistration;
+    private ListenerRegistration<NodeConnectorListener> nodeConnectorListenerRegistration;
 
+    private ScheduledExecutorService scheduler;
+    private FlowProgrammer flowProgrammer;
+    private ReconcilingFlowProgrammer reconcilingFlowProgrammer;
+    private FlowIdAllocator flowIdAllocator;
 
-    private Set<InstanceIdentifier<Node>> observedNodes;
 
-    private final AtomicLong flowIdInc = new AtomicLong(FIRST_FLOW_ID);
+    private Set<InstanceIdentifier<Node>> observedNodes;
 
     private List<IgmpSwitchManager> managedSwitches;
+    private volatile ReceptionIndex receptionIndex;
+    // Serializes updates of the reception index, which switch managers publish outside of their own lock
+    private final Object receptionIndexLock = new Object();
+    private final ConcurrentMap<InstanceIdentifier<Node>, PortDictionary> portDictionaries;
     private final MulticastRoutingManager mcastRoutingManager;
 
     public BloomflowProvider(final DataBroker dataBroker,
             final NotificationProviderService notificationService,
-            final PacketProcessingService packetProcessingService) {
+            final PacketProcessingService packetProcessingService,
+            final SalFlowService salFlowService,
+            final SalGroupService salGroupService,
+            final SalMeterService salMeterService,
+            final FlowCapableTransactionService flowTransactionService) {
         this.dataBroker = dataBroker;
         this.notificationService = notificationService;
         this.packetProcessingService = packetProcessingService;
+        this.salFlowService = salFlowService;
+        this.salGroupService = salGroupService;
+        this.salMeterService = salMeterService;
+        this.flowTransactionService = flowTransactionService;
 
         this.mcastRoutingManager = new MulticastRoutingManager(dataBroker, notificationService, packetProcessingService, this);
+        this.receptionIndex = ReceptionIndex.EMPTY;
+        this.portDictionaries = new ConcurrentHashMap<>();
 
         igmpRobustness = 2;
         igmpQueryInterval = 125;
@@ -98,6 +184,53 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
         igmpLastMemberQueryInterval = 10;
         igmpLastMemberQueryTime = igmpLastMemberQueryInterval / igmpLastMemberQueryCount;
         igmpUnsolicitedReportInterval = 1;
+
+        // The query response and last member query intervals are expressed in tenths of a second
+        igmpOlderHostPresentInterval = igmpRobustness * igmpQueryInterval + igmpQueryResponseInterval * 0.1;
+        igmpLeaveLatency = igmpLastMemberQueryCount * igmpLastMemberQueryInterval * 0.1;
+        igmpFastLeave = false;
+        igmpExplicitHostTracking = false;
+
+        mldEnabled = true;
+
+        // Local network control groups are never routed (RFC 5771, RFC 4291), and the SSM ranges only accept source
+        // specific joins (RFC 4607)
+        igmpGroupPolicy = new GroupPolicyFilter(GroupPolicyFilter.Action.PERMIT);
+        igmpGroupPolicy.addRule("224.0.0.0/24", GroupPolicyFilter.Action.DENY);
+        igmpGroupPolicy.addRule("ff01::/16", GroupPolicyFilter.Action.DENY);
+        igmpGroupPolicy.addRule("ff02::/16", GroupPolicyFilter.Action.DENY);
+        igmpGroupPolicy.addRule("232.0.0.0/8", GroupPolicyFilter.Action.SOURCE_SPECIFIC_ONLY);
+        for (int scope = 0; scope < 16; scope++) {
+            igmpGroupPolicy.addRule("ff3" + Integer.toHexString(scope) + "::/32",
+                    GroupPolicyFilter.Action.SOURCE_SPECIFIC_ONLY);
+        }
+        igmpPortGroupPolicies = new HashMap<>();
+
+        igmpMaxGroupsPerPort = 0;
+        igmpMaxGroupsPerSwitch = 0;
+        igmpMaxSourcesPerGroup = 0;
+        igmpMembershipLimitPolicy = IgmpSwitchManager.MembershipLimitPolicy.REJECT;
+
+        flowTableOverflowPolicy = FlowTableOccupancy.OverflowPolicy.AGGREGATE;
+        flowTableHighWatermark = 0.9;
+
+        // Meters are not supported by all switches, so punt rate limiting is disabled by default
+        igmpPuntMeterMode = IgmpSwitchManager.PuntMeterMode.NONE;
+        igmpPuntRatePps = 100;
+        igmpPuntBurstSize = 20;
+
+        igmpMalformedBlockThreshold = 0;
+        igmpMalformedWindow = 10;
+        igmpMalformedBlockTime = 60;
+
+        igmpProxyReporting = false;
+
+        mcastFlowIdleTimeout = 300;
+
+        flowProgrammerBackend = FlowProgrammer.Backend.DATASTORE;
+        flowBatchWindowMillis = 10;
+        flowBatchMaxSize = 256;
+        flowMaxInFlightTransactions = 8;
     }
 
     /**
@@ -106,11 +239,38 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
     public void init() {
         LOG.debug("init() - Called");
         this.observedNodes = new HashSet<>();
-        this.managedSwitches = new ArrayList<>();
+        // Read without locking by the packet and datastore notification threads, while switches come and go
+        this.managedSwitches = new CopyOnWriteArrayList<>();
+        this.flowIdAllocator = new FlowIdAllocator(dataBroker);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("bloomflow-scheduler-%d").setDaemon(true).build());
+        FlowProgrammer backend;
+        if (flowProgrammerBackend == FlowProgrammer.Backend.RPC) {
+            backend = new RpcFlowProgrammer(salFlowService, salGroupService, salMeterService, flowTransactionService,
+                    scheduler, flowBatchWindowMillis, flowBatchMaxSize, flowMaxInFlightTransactions);
+        } else {
+            backend = new DatastoreFlowProgrammer(dataBroker, scheduler, flowBatchWindowMillis,
+                    flowBatchMaxSize, flowMaxInFlightTransactions);
+        }
+        this.reconcilingFlowProgrammer = new ReconcilingFlowProgrammer(backend);
+        this.flowProgrammer = this.reconcilingFlowProgrammer;
+        LOG.info("init() - Using " + flowProgrammerBackend + " flow programming backend");
 
         // this.notificationService.registerNotificationListener(this); // Deprecated method
         packetInRegistration = notificationService.registerNotificationListener(this);
         LOG.info("init() - Attached as listener to NotificationProviderService");
+        flowRemovedRegistration = notificationService.registerNotificationListener(
+                new MulticastFlowRemovedListener(mcastRoutingManager));
+        if (mcastFlowIdleTimeout > 0) {
+            // Checked several times per timeout, so idle records without an ingress flow outlive it by a fraction only
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    mcastRoutingManager.expireIdleRecords();
+                }
+            }, mcastFlowIdleTimeout, Math.max(1, mcastFlowIdleTimeout / 4), TimeUnit.SECONDS);
+        }
 
         final InstanceIdentifier<Table> instanceIdentifier = InstanceIdentifier.create(Nodes.class)
                 .child(Node.class)
@@ -120,6 +280,15 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
         this.dataTreeChangeListenerRegistration = this.dataBroker.registerDataTreeChangeListener(dataTreeIdentifier, this);
         LOG.info("init() - Registered as DataTreeChangeListener");
 
+        final InstanceIdentifier<FlowCapableNodeConnector> portIdentifier = InstanceIdentifier.create(Nodes.class)
+                .child(Node.class)
+                .child(NodeConnector.class)
+                .augmentation(FlowCapableNodeConnector.class);
+        this.nodeConnectorListenerRegistration = this.dataBroker.registerDataTreeChangeListener(
+                new DataTreeIdentifier<>(LogicalDatastoreType.OPERATIONAL, portIdentifier),
+                new NodeConnectorListener(this));
+        LOG.info("init() - Registered NodeConnectorListener");
+
         LOG.debug("init() - Returning");
     }
 
@@ -136,6 +305,13 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
             LOG.debug("close() - Closing packetInRegistration failed..", e);
         }
 
+        try {
+            flowRemovedRegistration.close();
+        } catch (Exception e) {
+            LOG.warn("close() - Closing flowRemovedRegistration failed: {}", e.getMessage());
+            LOG.debug("close() - Closing flowRemovedRegistration failed..", e);
+        }
+
         try {
             dataTreeChangeListenerRegistration.close();
         } catch (Exception e) {
@@ -143,6 +319,17 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
             LOG.debug("close() - Failed to close dataTreeChangeListenerRegistration..", e);
         }
 
+        try {
+            nodeConnectorListenerRegistration.close();
+        } catch (Exception e) {
+            LOG.warn("close() - Failed to close nodeConnectorListenerRegistration: {}", e.getMessage());
+            LOG.debug("close() - Failed to close nodeConnectorListenerRegistration..", e);
+        }
+
+        flowProgrammer.close();
+        flowIdAllocator.close();
+        scheduler.shutdown();
+
         LOG.debug("close() - Returning");
     }
 
@@ -180,10 +367,15 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
             if (ipProto == PacketUtils.IP_PROTO_IGMP) {
                 LOG.info("onPacketReceived() - IPv4 Packet contains IGMP payload (Node: " + ingressNode.firstKeyOf(Node.class, NodeKey.class).getId()
                         + ", Port: " + ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId() + ")");
-                IgmpPacket receivedIgmp = new IgmpPacket(
-                        Arrays.copyOfRange(payload,
-                                PacketUtils.ETHERNET_HEADER_LEN + ipHeaderLenBytes,
-                                payload.length));
+                // The IGMP checksum covers the IP payload only, so Ethernet padding is left out of the message
+                int igmpStart = PacketUtils.ETHERNET_HEADER_LEN + ipHeaderLenBytes;
+                int igmpEnd = Math.max(igmpStart, Math.min(payload.length,
+                        PacketUtils.ETHERNET_HEADER_LEN + PacketUtils.getIpTotalLength(payload)));
+                IgmpPacket receivedIgmp = PacketPool.decodeIgmp(payload, igmpStart, igmpEnd - igmpStart);
+                if (receivedIgmp.isMalformed()) {
+                    this.processMalformedPacket(ingressNode, ingressPort, "IGMP", receivedIgmp.getParseError());
+                    return;
+                }
 
                 /*
                 LOG.info("onPacketReceived - IGMP message bytes (pre-decoding)\n0x " +
@@ -215,10 +407,12 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
                 InetAddress dstAddr = PacketUtils.getDstIp(payload);
                 InetAddress srcAddr = PacketUtils.getSrcIp(payload);
                 if (dstAddr.isMulticastAddress()) {
-                    // DBEUG
-                    this.getReceptionPorts(dstAddr, srcAddr);
+                    this.mcastRoutingManager.processMulticastPacket(srcAddr, dstAddr, ingressNode,
+                            ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId(), payload);
                 }
             }
+        } else if (ethType == PacketUtils.ETHERTYPE_IPV6 && this.mldEnabled) {
+            this.processIpv6Packet(notification, ingressNode, ingressPort);
         } else if (ethType == PacketUtils.ETHERTYPE_IPV4_W_VLAN) {
             LOG.debug("onPacketReceived() - Got 802.1q VLAN tagged frame");
         } else if (ethType == PacketUtils.ETHERTYPE_ARP) {
@@ -235,20 +429,111 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
         }
     }
 
-    public FlowId getNextFlowId() {
-        return new FlowId(String.valueOf(flowIdInc.getAndIncrement()));
+    /**
+     * Dispatches MLD messages to the switch manager of the ingress switch, and multicast data packets to the routing
+     * manager, in the same way as IGMP and IPv4 multicast packets.
+     */
+    private void processIpv6Packet(PacketReceived notification, InstanceIdentifier<Node> ingressNode,
+            InstanceIdentifier<NodeConnector> ingressPort) {
+        byte[] payload = notification.getPayload();
+        int upperLayerOffset = PacketUtils.getIpv6UpperLayerOffset(payload);
+        if (upperLayerOffset < 0) {
+            LOG.debug("onPacketReceived() - Ignoring IPv6 packet with unsupported extension headers");
+            return;
+        }
+
+        if (PacketUtils.getIpv6UpperLayerProtocol(payload) == PacketUtils.IP_PROTO_ICMPV6
+                && upperLayerOffset < payload.length && MldPacket.isMldType(payload[upperLayerOffset] & 0xff)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("onPacketReceived() - IPv6 Packet contains MLD payload (Node: "
+                        + ingressNode.firstKeyOf(Node.class, NodeKey.class).getId() + ", Port: "
+                        + ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId() + ")");
+            }
+            MldPacket receivedMld = PacketPool.decodeMld(payload, upperLayerOffset,
+                    payload.length - upperLayerOffset);
+            if (receivedMld.isMalformed()) {
+                this.processMalformedPacket(ingressNode, ingressPort, "MLD", receivedMld.getParseError());
+                return;
+            }
+            IgmpSwitchManager managedSwitch = this.getSwitchManager(ingressNode);
+            if (managedSwitch == null) {
+                LOG.warn("onPacketReceived() - Decoded MLD packet from unknown node: "
+                        + ingressNode.firstKeyOf(Node.class, NodeKey.class).getId());
+                return;
+            }
+            managedSwitch.processMldPacket(receivedMld, notification);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(managedSwitch.debugStr());
+            }
+            return;
+        }
+
+        InetAddress dstAddr = PacketUtils.getIpv6DstIp(payload);
+        if (dstAddr != null && dstAddr.isMulticastAddress()) {
+            this.mcastRoutingManager.processMulticastPacket(PacketUtils.getIpv6SrcIp(payload), dstAddr, ingressNode,
+                    ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId(), payload);
+        }
+    }
+
+    private void processMalformedPacket(InstanceIdentifier<Node> ingressNode,
+            InstanceIdentifier<NodeConnector> ingressPort, String protocol, IgmpPacket.ParseError parseError) {
+        NodeConnectorId portId = ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+        IgmpSwitchManager managedSwitch = this.getSwitchManager(ingressNode);
+        if (managedSwitch == null) {
+            LOG.warn("onPacketReceived() - Dropping malformed " + protocol + " packet from unknown node: "
+                    + ingressNode.firstKeyOf(Node.class, NodeKey.class).getId());
+            return;
+        }
+        managedSwitch.processMalformedPacket(portId, protocol, parseError);
+    }
+
+    public FlowIdAllocator getFlowIdAllocator() {
+        return this.flowIdAllocator;
     }
 
     public DataBroker getDataBroker() {
         return this.dataBroker;
     }
 
+    public FlowProgrammer getFlowProgrammer() {
+        return this.flowProgrammer;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Sends a packet generated by the controller out of the specified switch port.
+     */
+    public void transmitPacket(InstanceIdentifier<NodeConnector> egressPort, byte[] payload) {
+        TransmitPacketInputBuilder input = new TransmitPacketInputBuilder()
+                .setNode(new NodeRef(egressPort.firstIdentifierOf(Node.class)))
+                .setEgress(new NodeConnectorRef(egressPort))
+                .setPayload(payload);
+        this.packetProcessingService.transmitPacket(input.build());
+    }
+
     @Override
     public void onDataTreeChanged(@Nonnull Collection<DataTreeModification<Table>> modifications) {
-        Short requiredTableId = 0;
+        Short requiredTableId = FLOW_TABLE_ID;
 
         for (DataTreeModification modification : modifications) {
-            if (modification.getRootNode().getModificationType() == ModificationType.SUBTREE_MODIFIED) {
+            if (modification.getRootNode().getModificationType() == ModificationType.WRITE) {
+                // The table is written from scratch when a known switch reconnects
+                InstanceIdentifier<Table> tablePath = modification.getRootPath().getRootIdentifier();
+                DataObject table = modification.getRootNode().getDataAfter();
+                if (table instanceof Table && requiredTableId.equals(((Table) table).getId())) {
+                    this.onSwitchReconnected(tablePath.firstIdentifierOf(Node.class));
+                }
+            } else if (modification.getRootNode().getModificationType() == ModificationType.DELETE) {
+                // The table is deleted along with the rest of the operational state when a switch disconnects
+                InstanceIdentifier<Table> tablePath = modification.getRootPath().getRootIdentifier();
+                DataObject table = modification.getRootNode().getDataBefore();
+                if (table instanceof Table && requiredTableId.equals(((Table) table).getId())) {
+                    this.onSwitchRemoved(tablePath.firstIdentifierOf(Node.class));
+                }
+            } else if (modification.getRootNode().getModificationType() == ModificationType.SUBTREE_MODIFIED) {
                 DataObject table = modification.getRootNode().getDataAfter();
                 if (table instanceof Table) {
                     Table tableSure = (Table) table;
@@ -257,6 +542,7 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
                     if (requiredTableId.equals(tableSure.getId())) {
                         InstanceIdentifier<Table> tablePath = modification.getRootPath().getRootIdentifier();
                         this.onSwitchAppeared(tablePath);
+                        this.onTableUpdated(tablePath, tableSure);
                     }
                 }
             }
@@ -281,28 +567,123 @@ public class BloomflowProvider implements PacketProcessingListener, DataTreeChan
             LOG.info("onSwitchAppeared() - Observed new node: " + nodePath.firstKeyOf(Node.class, NodeKey.class).getId());
 
             IgmpSwitchManager switchManager = new IgmpSwitchManager(nodePath, this);
+            this.flowIdAllocator.loadNamespace(nodePath);
+            switchManager.seedTableCapacity();
             switchManager.installIgmpMonitoringFlow(appearedTablePath);
+            if (this.mldEnabled) {
+                switchManager.installMldMonitoringFlow(appearedTablePath);
+            }
+            // Ports are read before the switch is published, after which the NodeConnectorListener keeps them updated
+            switchManager.syncNodeConnectors();
             this.managedSwitches.add(switchManager);
         }
     }
 
+    public synchronized void onSwitchReconnected(InstanceIdentifier<Node> nodePath) {
+        // Switches which were removed while disconnected are also reconciled, to clear the flows left on them
+        LOG.info("onSwitchReconnected() - Node reconnected: " + nodePath.firstKeyOf(Node.class, NodeKey.class).getId());
+        this.reconcilingFlowProgrammer.switchReconnected(nodePath);
+    }
+
+    /**
+     * Tears down all of the state kept for a switch which disconnected: its switch manager and membership state, its
+     * receivers and forwarding state in the distribution trees, the flows, groups and meters programmed on it, its
+     * flow ID namespace and its port dictionary. The switch is managed as a new switch if it connects again.
+     *
+     * The switch manager is closed outside of the provider lock, since switch managers call back into the provider
+     * while holding their own lock.
+     */
+    public void onSwitchRemoved(InstanceIdentifier<Node> nodePath) {
+        IgmpSwitchManager switchManager;
+        synchronized (this) {
+            switchManager = this.getSwitchManager(nodePath);
+            if (switchManager == null) {
+                return;
+            }
+            this.managedSwitches.remove(switchManager);
+        }
+        LOG.info("onSwitchRemoved() - Node removed: " + nodePath.firstKeyOf(Node.class, NodeKey.class).getId());
+
+        Set<InetAddress> removedGroups = switchManager.getReceptionSnapshot().getState().keySet();
+        switchManager.close();
+        this.publishReceptionState(removedGroups);
+        this.mcastRoutingManager.processSwitchRemoved(nodePath);
+        this.reconcilingFlowProgrammer.switchRemoved(nodePath);
+        this.flowIdAllocator.unloadNamespace(nodePath);
+        this.portDictionaries.remove(nodePath);
+    }
+
+    public synchronized void onTableUpdated(InstanceIdentifier<Table> tablePath, Table table) {
+        InstanceIdentifier<Node> nodePath = tablePath.firstIdentifierOf(Node.class);
+        IgmpSwitchManager switchManager = this.getSwitchManager(nodePath);
+        if (switchManager != null) {
+            switchManager.updateTableStatistics(table);
+        }
+        if (table.getFlow() != null) {
+            this.mcastRoutingManager.updateAggregateActivity(nodePath, table);
+        }
+
+        // Reconcile a reconnected switch once the first round of flow statistics has been collected
+        if (this.reconcilingFlowProgrammer.isReconciliationPending(nodePath)
+                && (table.getFlow() != null || table.getAugmentation(FlowTableStatisticsData.class) != null)) {
+            this.reconcilingFlowProgrammer.reconcile(nodePath, table);
+        }
+    }
+
+    public IgmpSwitchManager getSwitchManager(InstanceIdentifier<Node> nodePath) {
+        for (IgmpSwitchManager sw : this.managedSwitches) {
+            if (sw.getNodeIdentifier().equals(nodePath)) {
+                return sw;
+            }
+        }
+        return null;
+    }
+
+    public List<IgmpSwitchManager> getManagedSwitches() {
+        return this.managedSwitches;
+    }
+
     public MulticastRoutingManager getMcastRoutingManager() {
         return this.mcastRoutingManager;
     }
 
-    public Set<NodeConnectorId> getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr) {
-        Set<NodeConnectorId> portSet = new HashSet<>();
-        for (IgmpSwitchManager switchManager : this.managedSwitches) {
-            Set<NodeConnectorId> switchPortSet = switchManager.getReceptionPorts(mcastDstAddr, srcAddr);
-            portSet.addAll(switchPortSet);
+    /**
+     * Rebuilds the entries of the network wide reception index for the specified groups from the current snapshots of
+     * all managed switches. Called by a switch manager after it publishes a new reception state snapshot, with the
+     * groups whose reception changed, and without holding the lock of the switch manager.
+     */
+    public void publishReceptionState(Collection<InetAddress> changedGroups) {
+        synchronized (this.receptionIndexLock) {
+            List<ReceptionStateSnapshot> snapshots = new ArrayList<>();
+            for (IgmpSwitchManager switchManager : this.managedSwitches) {
+                snapshots.add(switchManager.getReceptionSnapshot());
+            }
+            this.receptionIndex = this.receptionIndex.update(snapshots, changedGroups);
+            LOG.debug("publishReceptionState() - Rebuilt reception index entries of groups " + changedGroups + ", "
+                    + this.receptionIndex.getNumGroups() + " groups indexed");
         }
+    }
 
-        String debugStr = "getReceptionPorts(" + mcastDstAddr + ", " + srcAddr + ") =";
-        for (NodeConnectorId portId : portSet) {
-            debugStr += "\n" + portId;
+    /**
+     * Returns the dictionary assigning dense indices to the ports of the specified switch, creating it if required.
+     */
+    public PortDictionary getPortDictionary(InstanceIdentifier<Node> nodePath) {
+        PortDictionary dictionary = this.portDictionaries.get(nodePath);
+        if (dictionary == null) {
+            PortDictionary newDictionary = new PortDictionary();
+            dictionary = this.portDictionaries.putIfAbsent(nodePath, newDictionary);
+            if (dictionary == null) {
+                dictionary = newDictionary;
+            }
         }
-        LOG.info(debugStr);
+        return dictionary;
+    }
 
-        return portSet;
+    public ReceptionIndex getReceptionIndex() {
+        return this.receptionIndex;
+    }
+
+    public Set<NodeConnectorId> getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr) {
+        return this.receptionIndex.getReceptionPorts(mcastDstAddr, srcAddr);
     }
 }
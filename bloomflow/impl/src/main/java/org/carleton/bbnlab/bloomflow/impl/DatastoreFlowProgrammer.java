@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.ReadWriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.Meter;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * Programs flows by writing them into the CONFIGURATION datastore, from which they are pushed to the switches by the
+ * forwarding rules manager.
+ *
+ * Each batch is written as a single write transaction. Operations are applied in order, so a later operation on the
+ * same flow supersedes an earlier one. Each operation completes when the transaction carrying it commits.
+ *
+ * The datastore has no notion of cookie masks, so removing flows by cookie reads the configured table inside the
+ * batch transaction and deletes every configured flow with a matching cookie. The tables are read asynchronously, and
+ * the operations of the batch are only applied once the reads completed.
+ */
+public class DatastoreFlowProgrammer extends AbstractBatchingFlowProgrammer {
+    private final DataBroker dataBroker;
+
+    public DatastoreFlowProgrammer(DataBroker dataBroker, ScheduledExecutorService scheduler,
+            long batchWindowMillis, int maxBatchSize, int maxInFlight) {
+        super(scheduler, batchWindowMillis, maxBatchSize, maxInFlight);
+        this.dataBroker = dataBroker;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected ListenableFuture<Void> submitBatch(InstanceIdentifier<Node> nodePath,
+            final List<PendingOperation> batch) {
+        final ReadWriteTransaction transaction = dataBroker.newReadWriteTransaction();
+        final List<InstanceIdentifier<Table>> tablePaths = new ArrayList<>();
+        List<ListenableFuture<Optional<Table>>> tableReads = new ArrayList<>();
+        for (PendingOperation operation : batch) {
+            if (operation.type == OperationType.REMOVE_FLOWS_BY_COOKIE && !tablePaths.contains(operation.path)) {
+                tablePaths.add((InstanceIdentifier<Table>) operation.path);
+                tableReads.add(transaction.read(LogicalDatastoreType.CONFIGURATION,
+                        (InstanceIdentifier<Table>) operation.path));
+            }
+        }
+        if (tableReads.isEmpty()) {
+            applyBatch(transaction, batch, tablePaths, Collections.<Optional<Table>>emptyList());
+            return transaction.submit();
+        }
+
+        // The tables are read asynchronously, so the caller (holding the programmer lock) never waits on the datastore
+        ListenableFuture<List<Optional<Table>>> tablesFuture = Futures.allAsList(tableReads);
+        Futures.addCallback(tablesFuture, new FutureCallback<List<Optional<Table>>>() {
+            @Override
+            public void onSuccess(List<Optional<Table>> tables) {
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                transaction.cancel();
+            }
+        });
+        return Futures.transform(tablesFuture, new AsyncFunction<List<Optional<Table>>, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(List<Optional<Table>> tables) {
+                applyBatch(transaction, batch, tablePaths, tables);
+                return transaction.submit();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void applyBatch(ReadWriteTransaction transaction, List<PendingOperation> batch,
+            List<InstanceIdentifier<Table>> tablePaths, List<Optional<Table>> tables) {
+        // Flows written earlier in the batch, which the tables read before the batch was applied do not contain
+        Map<InstanceIdentifier<Flow>, Flow> batchFlows = new HashMap<>();
+        for (PendingOperation operation : batch) {
+            switch (operation.type) {
+                case ADD_FLOW:
+                    transaction.put(LogicalDatastoreType.CONFIGURATION, (InstanceIdentifier<Flow>) operation.path,
+                            (Flow) operation.data, true);
+                    batchFlows.put((InstanceIdentifier<Flow>) operation.path, (Flow) operation.data);
+                    break;
+                case ADD_GROUP:
+                    transaction.put(LogicalDatastoreType.CONFIGURATION, (InstanceIdentifier<Group>) operation.path,
+                            (Group) operation.data, true);
+                    break;
+                case ADD_METER:
+                    transaction.put(LogicalDatastoreType.CONFIGURATION, (InstanceIdentifier<Meter>) operation.path,
+                            (Meter) operation.data, true);
+                    break;
+                case REMOVE_FLOW:
+                    batchFlows.remove(operation.path);
+                    transaction.delete(LogicalDatastoreType.CONFIGURATION, operation.path);
+                    break;
+                case REMOVE_GROUP:
+                case REMOVE_METER:
+                    transaction.delete(LogicalDatastoreType.CONFIGURATION, operation.path);
+                    break;
+                case REMOVE_FLOWS_BY_COOKIE:
+                    InstanceIdentifier<Table> tablePath = (InstanceIdentifier<Table>) operation.path;
+                    deleteFlowsByCookie(transaction, tablePath, tables.get(tablePaths.indexOf(tablePath)),
+                            batchFlows, (Flow) operation.data);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void deleteFlowsByCookie(ReadWriteTransaction transaction, InstanceIdentifier<Table> tablePath,
+            Optional<Table> table, Map<InstanceIdentifier<Flow>, Flow> batchFlows, Flow cookieMatch) {
+        List<Flow> flows = new ArrayList<>();
+        if (table.isPresent() && table.get().getFlow() != null) {
+            flows.addAll(table.get().getFlow());
+        }
+        for (Map.Entry<InstanceIdentifier<Flow>, Flow> batchFlow : batchFlows.entrySet()) {
+            if (tablePath.contains(batchFlow.getKey())) {
+                flows.add(batchFlow.getValue());
+            }
+        }
+
+        BigInteger mask = cookieMatch.getCookieMask().getValue();
+        BigInteger cookie = cookieMatch.getCookie().getValue().and(mask);
+        for (Flow flow : flows) {
+            FlowCookie flowCookie = flow.getCookie();
+            if (flowCookie != null && flowCookie.getValue().and(mask).equals(cookie)) {
+                InstanceIdentifier<Flow> flowPath = tablePath.child(Flow.class, new FlowKey(flow.getId()));
+                transaction.delete(LogicalDatastoreType.CONFIGURATION, flowPath);
+                batchFlows.remove(flowPath);
+            }
+        }
+    }
+
+    @Override
+    protected String getBackendName() {
+        return "Datastore";
+    }
+}
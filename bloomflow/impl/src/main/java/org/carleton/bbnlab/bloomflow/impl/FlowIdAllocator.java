@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.bloomflow.rev150105.FlowIdAllocation;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.bloomflow.rev150105.flow.id.allocation.SwitchNamespace;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.bloomflow.rev150105.flow.id.allocation.SwitchNamespaceBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.bloomflow.rev150105.flow.id.allocation.SwitchNamespaceKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocates flow IDs for the flows installed by the controller.
+ *
+ * Every switch has its own ID namespace (flow IDs only need to be unique within a switch). IDs are released when the
+ * flow using them is removed, and released IDs are handed out again before the namespace is grown, so the ID space
+ * stays bounded by the peak number of flows on the switch. The FlowId object for each ID is created once and cached.
+ *
+ * IDs are reserved in blocks, and the top of the reserved space (the high water mark) is persisted in the
+ * CONFIGURATION datastore. After a controller restart, allocation resumes above the persisted high water mark, so new
+ * flows never collide with flows left on the switch by the previous instance. When the allocator is closed, the high
+ * water mark is lowered to the first ID which was never handed out, and the released IDs below it are persisted as
+ * well, so the next instance hands them out first. When a switch leaves the network every flow programmed on it is
+ * removed, so its namespace is dropped and starts over at FIRST_FLOW_ID if the switch connects again. Only a
+ * controller which fails without closing the allocator loses (at most) the rest of one block and the released IDs
+ * per switch.
+ */
+public class FlowIdAllocator {
+    private static final Logger LOG = LoggerFactory.getLogger(FlowIdAllocator.class);
+    public static final int FIRST_FLOW_ID = 2534;    // Arbitrarily selected
+    public static final int RESERVATION_BLOCK_SIZE = 1024;
+    // IDs above this one have more than 9 digits, which parseId() does not accept
+    public static final int MAX_FLOW_ID = 999999999;
+
+    private static class Namespace {
+        public final String nodeIdStr;
+        // Indexed by (ID - FIRST_FLOW_ID), null for the IDs handed out by a previous controller instance
+        public final List<FlowId> flowIdCache;
+        public int nextId;
+        public long reservedCeiling;
+        public int[] freeIds;
+        public int numFree;
+
+        public Namespace(String nodeIdStr, int nextId) {
+            this.nodeIdStr = nodeIdStr;
+            this.flowIdCache = new ArrayList<>(Collections.<FlowId>nCopies(nextId - FIRST_FLOW_ID, null));
+            this.nextId = nextId;
+            this.reservedCeiling = nextId;
+            this.freeIds = new int[64];
+            this.numFree = 0;
+        }
+
+        public void addFree(int id) {
+            if (numFree == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+            }
+            freeIds[numFree] = id;
+            numFree++;
+        }
+
+        public int getNumAllocated() {
+            return nextId - FIRST_FLOW_ID - numFree;
+        }
+    }
+
+    private final DataBroker dataBroker;
+    private final Map<InstanceIdentifier<Node>, Namespace> namespaces;
+
+    public FlowIdAllocator(DataBroker dataBroker) {
+        this.dataBroker = dataBroker;
+        this.namespaces = new HashMap<>();
+    }
+
+    /**
+     * Loads the persisted high water mark and released IDs of the specified switch. Must be called before the first
+     * allocation on a switch, otherwise allocation starts from FIRST_FLOW_ID.
+     */
+    public synchronized void loadNamespace(InstanceIdentifier<Node> nodePath) {
+        if (namespaces.containsKey(nodePath)) {
+            return;
+        }
+
+        String nodeIdStr = nodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue();
+        long highWaterMark = FIRST_FLOW_ID;
+        List<Long> persistedFreeIds = null;
+        ReadOnlyTransaction readOnlyTransaction = dataBroker.newReadOnlyTransaction();
+        try {
+            Optional<SwitchNamespace> persisted = readOnlyTransaction.read(LogicalDatastoreType.CONFIGURATION,
+                    getNamespacePath(nodeIdStr)).get();
+            if (persisted.isPresent() && persisted.get().getHighWaterMark() != null) {
+                highWaterMark = Math.max(FIRST_FLOW_ID, persisted.get().getHighWaterMark());
+                persistedFreeIds = persisted.get().getFreeFlowId();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warn("loadNamespace() - Failed to read flow ID high water mark for node " + nodeIdStr
+                    + ", starting from " + FIRST_FLOW_ID);
+        }
+        readOnlyTransaction.close();
+
+        if (highWaterMark > MAX_FLOW_ID + 1L) {
+            LOG.error("loadNamespace() - Persisted flow ID high water mark " + highWaterMark + " of node " + nodeIdStr
+                    + " is above the flow ID space");
+            throw new IllegalStateException("Flow ID high water mark " + highWaterMark + " of node " + nodeIdStr
+                    + " exceeds " + (MAX_FLOW_ID + 1L));
+        }
+        Namespace namespace = new Namespace(nodeIdStr, (int) highWaterMark);
+        if (persistedFreeIds != null) {
+            for (Long id : persistedFreeIds) {
+                if (id != null && id >= FIRST_FLOW_ID && id < highWaterMark
+                        && namespace.flowIdCache.get((int) (id - FIRST_FLOW_ID)) == null) {
+                    namespace.flowIdCache.set((int) (id - FIRST_FLOW_ID), new FlowId(String.valueOf(id)));
+                    namespace.addFree(id.intValue());
+                }
+            }
+        }
+        if (namespace.numFree > 0) {
+            // The restored IDs are handed out from now on, they must not be restored again after a failure
+            persistHighWaterMark(nodeIdStr, highWaterMark, null);
+        }
+        namespaces.put(nodePath, namespace);
+        LOG.info("loadNamespace() - Allocating flow IDs for node " + nodeIdStr + " from " + highWaterMark + " ("
+                + namespace.numFree + " released IDs restored)");
+    }
+
+    public synchronized FlowId allocate(InstanceIdentifier<Node> nodePath) {
+        Namespace namespace = namespaces.get(nodePath);
+        if (namespace == null) {
+            loadNamespace(nodePath);
+            namespace = namespaces.get(nodePath);
+        }
+
+        if (namespace.numFree > 0) {
+            namespace.numFree--;
+            return namespace.flowIdCache.get(namespace.freeIds[namespace.numFree] - FIRST_FLOW_ID);
+        }
+
+        if (namespace.nextId > MAX_FLOW_ID) {
+            LOG.error("allocate() - Flow ID space of node " + namespace.nodeIdStr + " exhausted");
+            throw new IllegalStateException("Flow ID space of node " + namespace.nodeIdStr + " exhausted");
+        }
+        if (namespace.nextId >= namespace.reservedCeiling) {
+            namespace.reservedCeiling = Math.min(namespace.nextId + (long) RESERVATION_BLOCK_SIZE, MAX_FLOW_ID + 1L);
+            persistHighWaterMark(namespace.nodeIdStr, namespace.reservedCeiling, null);
+        }
+
+        FlowId flowId = new FlowId(String.valueOf(namespace.nextId));
+        namespace.flowIdCache.add(flowId);
+        namespace.nextId++;
+        return flowId;
+    }
+
+    /**
+     * Returns a flow ID to the namespace of the specified switch. Must only be called once the flow using the ID has
+     * been removed. IDs handed out by a namespace which has since been unloaded are ignored, since the FlowId objects
+     * of a namespace are only handed out by that namespace.
+     */
+    public synchronized void release(InstanceIdentifier<Node> nodePath, FlowId flowId) {
+        Namespace namespace = namespaces.get(nodePath);
+        int id = parseId(flowId);
+        if (namespace == null || id < FIRST_FLOW_ID || id >= namespace.nextId
+                || namespace.flowIdCache.get(id - FIRST_FLOW_ID) != flowId) {
+            LOG.warn("release() - Flow ID " + flowId.getValue() + " was not allocated by this allocator");
+            return;
+        }
+        namespace.addFree(id);
+    }
+
+    /**
+     * Drops the namespace of a switch which left the network, along with its persisted high water mark. Every flow
+     * programmed on the switch is removed when it leaves (see ReconcilingFlowProgrammer.switchRemoved()), so if the
+     * switch connects again allocation starts over at FIRST_FLOW_ID.
+     */
+    public synchronized void unloadNamespace(InstanceIdentifier<Node> nodePath) {
+        final Namespace namespace = namespaces.remove(nodePath);
+        if (namespace == null) {
+            return;
+        }
+
+        WriteTransaction transaction = dataBroker.newWriteOnlyTransaction();
+        transaction.delete(LogicalDatastoreType.CONFIGURATION, getNamespacePath(namespace.nodeIdStr));
+        Futures.addCallback(transaction.submit(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                LOG.info("unloadNamespace() - Released " + namespace.getNumAllocated() + " flow IDs of node "
+                        + namespace.nodeIdStr);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                LOG.warn("unloadNamespace() - Failed to remove flow ID namespace of node " + namespace.nodeIdStr
+                        + ": " + throwable.getMessage());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Persists the first ID never handed out and the released IDs of every loaded namespace, so that the next
+     * controller instance reuses both the unconsumed part of the reserved blocks and the released IDs.
+     */
+    public synchronized void close() {
+        for (Namespace namespace : namespaces.values()) {
+            List<Long> freeFlowIds = new ArrayList<>(namespace.numFree);
+            for (int i = 0; i < namespace.numFree; i++) {
+                freeFlowIds.add((long) namespace.freeIds[i]);
+            }
+            namespace.reservedCeiling = namespace.nextId;
+            persistHighWaterMark(namespace.nodeIdStr, namespace.nextId, freeFlowIds);
+        }
+        namespaces.clear();
+    }
+
+    // Parses the decimal flow ID without allocating. Returns -1 for IDs which were not generated by this class.
+    private static int parseId(FlowId flowId) {
+        String value = flowId.getValue();
+        if (value.isEmpty() || value.length() > 9) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    // The namespace is replaced, so released IDs which are not passed in are dropped from the persisted state
+    private void persistHighWaterMark(final String nodeIdStr, final long highWaterMark, List<Long> freeFlowIds) {
+        SwitchNamespace switchNamespace = new SwitchNamespaceBuilder()
+                .setKey(new SwitchNamespaceKey(nodeIdStr))
+                .setNodeId(nodeIdStr)
+                .setHighWaterMark(highWaterMark)
+                .setFreeFlowId(freeFlowIds)
+                .build();
+        WriteTransaction transaction = dataBroker.newWriteOnlyTransaction();
+        transaction.put(LogicalDatastoreType.CONFIGURATION, getNamespacePath(nodeIdStr), switchNamespace, true);
+        Futures.addCallback(transaction.submit(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                LOG.debug("persistHighWaterMark() - Reserved flow IDs below " + highWaterMark + " on node "
+                        + nodeIdStr);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                LOG.warn("persistHighWaterMark() - Failed to persist flow ID high water mark for node " + nodeIdStr
+                        + ": " + throwable.getMessage());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static InstanceIdentifier<SwitchNamespace> getNamespacePath(String nodeIdStr) {
+        return InstanceIdentifier.create(FlowIdAllocation.class)
+                .child(SwitchNamespace.class, new SwitchNamespaceKey(nodeIdStr));
+    }
+
+    public synchronized String debugStr() {
+        String debugStr = "FlowIdAllocator:";
+        for (Namespace namespace : namespaces.values()) {
+            debugStr += "\n\t" + namespace.nodeIdStr + ": " + namespace.getNumAllocated() + " allocated, "
+                    + namespace.numFree + " free, next " + namespace.nextId + ", reserved up to "
+                    + namespace.reservedCeiling;
+        }
+        return debugStr;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.Meter;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * Backend used to program flows, groups and meters on the managed switches.
+ *
+ * Operations are queued and may be batched by the backend. Each operation returns a future which completes once the
+ * operation has been accepted by the backend, or fails if it was rejected.
+ */
+public interface FlowProgrammer extends AutoCloseable {
+
+    enum Backend {
+        DATASTORE,  // Write into the CONFIGURATION datastore and let the forwarding rules manager program the switch
+        RPC         // Program the switch directly through the openflowplugin SalFlowService / SalGroupService RPCs
+    }
+
+    ListenableFuture<Void> addFlow(InstanceIdentifier<Flow> flowPath, Flow flow);
+
+    ListenableFuture<Void> removeFlow(InstanceIdentifier<Flow> flowPath, Flow flow);
+
+    /**
+     * Removes every flow in the specified table whose cookie is equal to the specified cookie in all of the bits set
+     * in the cookie mask.
+     */
+    ListenableFuture<Void> removeFlowsByCookie(InstanceIdentifier<Table> tablePath, FlowCookie cookie,
+            FlowCookie cookieMask);
+
+    ListenableFuture<Void> addGroup(InstanceIdentifier<Group> groupPath, Group group);
+
+    ListenableFuture<Void> removeGroup(InstanceIdentifier<Group> groupPath, Group group);
+
+    ListenableFuture<Void> addMeter(InstanceIdentifier<Meter> meterPath, Meter meter);
+
+    ListenableFuture<Void> removeMeter(InstanceIdentifier<Meter> meterPath, Meter meter);
+
+    /**
+     * Submits all queued operations without waiting for the end of the current batching window.
+     */
+    void flush();
+
+    @Override
+    void close();
+
+    String debugStr();
+}
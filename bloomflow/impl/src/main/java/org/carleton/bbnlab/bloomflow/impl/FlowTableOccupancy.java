@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Occupancy model for a single OpenFlow flow table on a managed switch.
+ *
+ * The table capacity is seeded from the table features reported by the switch (max-entries), and the number of active
+ * entries is refreshed whenever the statistics manager publishes new flow table statistics. Flows installed by
+ * BloomFlow are counted locally, so that admission decisions remain accurate between statistics updates.
+ */
+public class FlowTableOccupancy {
+    private static final Logger LOG = LoggerFactory.getLogger(FlowTableOccupancy.class);
+
+    /**
+     * Action to take when installing a set of flows would push the table over its high watermark.
+     */
+    public enum OverflowPolicy {
+        FALLBACK,   // Do not install the flows, forward traffic through the controller instead
+        AGGREGATE,  // Install a single aggregated (*,G) entry in place of the individual (S,G) entries
+        REJECT      // Do not install the flows, and do not forward the traffic
+    }
+
+    public enum AdmissionDecision {
+        ADMIT,
+        FALLBACK,
+        AGGREGATE,
+        REJECT
+    }
+
+    private final short tableId;
+    private final OverflowPolicy overflowPolicy;
+    private final double highWatermark;
+
+    // Note: A maxEntries value of 0 indicates that the switch has not reported the capacity of the table
+    private volatile long maxEntries;
+    private volatile long reportedActiveEntries;
+    private final AtomicLong bloomflowEntries;
+
+    // Changes made since the last statistics report, in the order they were made. Guarded by this.
+    private final Deque<EntryChange> unreportedChanges;
+    private long unreportedEntries;
+    private long lastReportNanos;
+
+    public FlowTableOccupancy(short tableId, OverflowPolicy overflowPolicy, double highWatermark) {
+        this.tableId = tableId;
+        this.overflowPolicy = overflowPolicy;
+        this.highWatermark = highWatermark;
+        this.maxEntries = 0;
+        this.reportedActiveEntries = 0;
+        this.bloomflowEntries = new AtomicLong(0);
+        this.unreportedChanges = new ArrayDeque<>();
+        this.unreportedEntries = 0;
+        this.lastReportNanos = System.nanoTime();
+    }
+
+    private static class EntryChange {
+        final long timestampNanos;
+        final int numEntries;
+
+        EntryChange(long timestampNanos, int numEntries) {
+            this.timestampNanos = timestampNanos;
+            this.numEntries = numEntries;
+        }
+    }
+
+    /**
+     * Sets the capacity of the table, as reported by the switch table features.
+     */
+    public void setMaxEntries(long maxEntries) {
+        if (maxEntries != this.maxEntries) {
+            LOG.info("setMaxEntries() - Table " + tableId + " capacity: " + maxEntries + " entries");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Updates the number of active entries in the table, as reported by the flow table statistics.
+     *
+     * The statistics are only collected after the previous report was published, so the reported value includes the
+     * flows changed before the previous report. Only those changes are dropped from the local count; changes made
+     * since then may or may not be reflected yet, and are kept so the estimate errs on the side of a fuller table.
+     */
+    public synchronized void updateActiveEntries(long activeEntries) {
+        long now = System.nanoTime();
+        while (!unreportedChanges.isEmpty() && unreportedChanges.peekFirst().timestampNanos - lastReportNanos <= 0) {
+            unreportedEntries -= unreportedChanges.pollFirst().numEntries;
+        }
+        this.reportedActiveEntries = activeEntries;
+        this.lastReportNanos = now;
+    }
+
+    public void flowsInstalled(int numFlows) {
+        bloomflowEntries.addAndGet(numFlows);
+        recordChange(numFlows);
+    }
+
+    public void flowsRemoved(int numFlows) {
+        bloomflowEntries.addAndGet(-numFlows);
+        recordChange(-numFlows);
+    }
+
+    private synchronized void recordChange(int numEntries) {
+        unreportedChanges.addLast(new EntryChange(System.nanoTime(), numEntries));
+        unreportedEntries += numEntries;
+    }
+
+    /**
+     * Returns the best estimate of the number of entries currently occupying the table.
+     */
+    public synchronized long getEstimatedOccupancy() {
+        long estimate = reportedActiveEntries + unreportedEntries;
+        return Math.max(estimate, bloomflowEntries.get());
+    }
+
+    /**
+     * Determines whether the specified number of flows can be installed in the table.
+     *
+     * Flows are always admitted if the capacity of the table is not known. Otherwise, flows are admitted as long as the
+     * projected occupancy remains under the high watermark, and the configured overflow policy applies beyond it. If
+     * the table is too full to hold even a single aggregated entry, AGGREGATE degrades to FALLBACK.
+     */
+    public AdmissionDecision admitFlows(int numFlows) {
+        long capacity = this.maxEntries;
+        if (capacity <= 0) {
+            return AdmissionDecision.ADMIT;
+        }
+
+        long occupancy = getEstimatedOccupancy();
+        if (occupancy + numFlows <= highWatermark * capacity) {
+            return AdmissionDecision.ADMIT;
+        }
+
+        AdmissionDecision decision;
+        switch (overflowPolicy) {
+            case AGGREGATE:
+                decision = occupancy + 1 <= capacity ? AdmissionDecision.AGGREGATE : AdmissionDecision.FALLBACK;
+                break;
+            case REJECT:
+                decision = AdmissionDecision.REJECT;
+                break;
+            case FALLBACK:
+            default:
+                decision = AdmissionDecision.FALLBACK;
+                break;
+        }
+
+        LOG.warn("admitFlows() - Table " + tableId + " occupancy " + occupancy + "/" + capacity + ", "
+                + numFlows + " new flows: " + decision);
+        return decision;
+    }
+
+    public short getTableId() {
+        return tableId;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getBloomflowEntries() {
+        return bloomflowEntries.get();
+    }
+
+    public String debugStr() {
+        return "Table " + tableId + " occupancy: " + getEstimatedOccupancy() + "/"
+                + (maxEntries > 0 ? String.valueOf(maxEntries) : "unknown")
+                + " (BloomFlow entries: " + bloomflowEntries.get() + ")\n";
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.collect.ImmutableSet;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import org.carleton.bbnlab.bloomflow.impl.IgmpGroupRecord.RecordType;
+
+/**
+ * Membership of a single multicast group merged across all of the ports of a switch, as maintained by an IGMP proxy
+ * for its upstream interface (see RFC 4605, section 4.1).
+ *
+ * If any port is in EXCLUDE mode the summary is in EXCLUDE mode, and excludes only the sources which are excluded by
+ * every EXCLUDE mode port and requested by no INCLUDE mode port. Otherwise the summary is in INCLUDE mode, and includes
+ * the union of the sources requested by all ports.
+ */
+public class GroupMembershipSummary {
+    private final RecordType filterMode;
+    private final Set<InetAddress> sources;
+
+    public GroupMembershipSummary(RecordType filterMode, Set<InetAddress> sources) {
+        this.filterMode = filterMode;
+        this.sources = ImmutableSet.copyOf(sources);
+    }
+
+    /**
+     * Merges the membership records of a single group on every port of a switch. Returns null if no port has any
+     * interest in the group.
+     */
+    public static GroupMembershipSummary merge(Collection<MulticastMembershipRecord> portRecords) {
+        Set<InetAddress> includedSources = new HashSet<>();
+        Set<InetAddress> excludedSources = null;
+
+        for (MulticastMembershipRecord record : portRecords) {
+            if (record.getFilterMode() == RecordType.MODE_IS_EXCLUDE) {
+                if (excludedSources == null) {
+                    excludedSources = record.getYAddressSet();
+                } else {
+                    excludedSources.retainAll(record.getYAddressSet());
+                }
+            } else {
+                includedSources.addAll(record.getXAddressSet());
+            }
+        }
+
+        if (excludedSources != null) {
+            excludedSources.removeAll(includedSources);
+            return new GroupMembershipSummary(RecordType.MODE_IS_EXCLUDE, excludedSources);
+        } else if (!includedSources.isEmpty()) {
+            return new GroupMembershipSummary(RecordType.MODE_IS_INCLUDE, includedSources);
+        }
+        return null;
+    }
+
+    public RecordType getFilterMode() {
+        return filterMode;
+    }
+
+    public Set<InetAddress> getSources() {
+        return sources;
+    }
+
+    /**
+     * Returns the subset of the specified sources which are forwarded according to this summary.
+     */
+    public Set<InetAddress> getForwardedSources(Collection<InetAddress> querySources) {
+        Set<InetAddress> forwarded = new HashSet<>();
+        for (InetAddress source : querySources) {
+            if (sources.contains(source) == (filterMode == RecordType.MODE_IS_INCLUDE)) {
+                forwarded.add(source);
+            }
+        }
+        return forwarded;
+    }
+
+    /**
+     * Builds the current state record describing this summary in an IGMPv3 membership report.
+     */
+    public IgmpGroupRecord toGroupRecord(InetAddress mcastAddress) {
+        return buildGroupRecord(mcastAddress, filterMode, sources);
+    }
+
+    public static IgmpGroupRecord buildGroupRecord(InetAddress mcastAddress, RecordType recordType,
+            Set<InetAddress> recordSources) {
+        IgmpGroupRecord record = new IgmpGroupRecord();
+        record.setRecordType(recordType);
+        record.setMcastAddress(mcastAddress);
+        record.setSourceAddresses(new ArrayList<InetAddress>(recordSources));
+        record.setNumSources((char) recordSources.size());
+        return record;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof GroupMembershipSummary)) {
+            return false;
+        }
+        GroupMembershipSummary other = (GroupMembershipSummary) obj;
+        return filterMode == other.filterMode && sources.equals(other.sources);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * filterMode.hashCode() + sources.hashCode();
+    }
+
+    public String debugStr() {
+        return filterMode + " " + sources;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import org.carleton.bbnlab.bloomflow.impl.IgmpGroupRecord.RecordType;
+
+/**
+ * Policy deciding which group records may be applied to the membership state, compiled into binary prefix tries
+ * over the group addresses, one for IPv4 and one for IPv6 groups. A lookup walks at most one node per address bit,
+ * and the rule of the longest matching prefix applies.
+ *
+ * Rules must not be added once the filter is in use by a switch manager.
+ */
+public class GroupPolicyFilter {
+    public enum Action {
+        PERMIT,                 // Every record is applied
+        DENY,                   // Every record is dropped
+        SOURCE_SPECIFIC_ONLY    // Only INCLUDE mode records are applied (RFC 4604, section 2.2.1)
+    }
+
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+    // The roots are never the child of another node
+    private static final int IPV6_ROOT = 0;
+    private static final int IPV4_ROOT = 1;
+    private static final int NO_CHILD = 0;
+    private static final int MIN_NODES = 16;
+
+    // The children of node n are at 2n (bit 0) and 2n + 1 (bit 1)
+    private int[] children;
+    private Action[] actions;
+    private int numNodes;
+    private final Action defaultAction;
+
+    /**
+     * Creates a filter without rules. The default action applies to groups which match no rule, and may be null for
+     * port filters which defer to the filter of the provider.
+     */
+    public GroupPolicyFilter(Action defaultAction) {
+        this.children = new int[2 * MIN_NODES];
+        this.actions = new Action[MIN_NODES];
+        this.numNodes = 2;
+        this.defaultAction = defaultAction;
+    }
+
+    /**
+     * Adds a rule for a range of groups written as an address literal and a prefix length, such as "232.0.0.0/8" or
+     * "ff02::/16". A range without prefix length is a single group. A rule replaces any previous rule of the same
+     * range.
+     */
+    public void addRule(String range, Action action) {
+        int slash = range.indexOf('/');
+        String addressStr = slash < 0 ? range : range.substring(0, slash);
+        for (int i = 0; i < addressStr.length(); i++) {
+            char c = addressStr.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != '.' && c != ':') {
+                // Only literals are accepted, InetAddress.getByName() would resolve host names
+                throw new IllegalArgumentException("Invalid group range: " + range);
+            }
+        }
+
+        InetAddress address;
+        int prefixLen;
+        try {
+            address = InetAddress.getByName(addressStr);
+            prefixLen = slash < 0 ? address.getAddress().length * 8 : Integer.parseInt(range.substring(slash + 1));
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid group range: " + range, e);
+        }
+        addRule(address, prefixLen, action);
+    }
+
+    /**
+     * Adds a rule for the groups whose first prefixLen bits match the address.
+     */
+    public void addRule(InetAddress address, int prefixLen, Action action) {
+        int addressBits = address.getAddress().length * 8;
+        if (prefixLen < 0 || prefixLen > addressBits) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLen + " for " + address);
+        }
+
+        boolean ipv4 = address instanceof Inet4Address;
+        // The hash code of an Inet4Address is its address, see AddressKeys
+        long high = ipv4 ? (long) address.hashCode() << 32 : AddressKeys.high(address);
+        long low = ipv4 ? 0 : AddressKeys.low(address);
+        int node = ipv4 ? IPV4_ROOT : IPV6_ROOT;
+        for (int i = 0; i < prefixLen; i++) {
+            int child = 2 * node + keyBit(high, low, i);
+            if (this.children[child] == NO_CHILD) {
+                // Allocated first, the children array is replaced when it grows
+                int newNode = allocateNode();
+                this.children[child] = newNode;
+            }
+            node = this.children[child];
+        }
+        this.actions[node] = action;
+    }
+
+    private int allocateNode() {
+        if (this.numNodes == this.actions.length) {
+            this.children = Arrays.copyOf(this.children, 4 * this.numNodes);
+            this.actions = Arrays.copyOf(this.actions, 2 * this.numNodes);
+        }
+        return this.numNodes++;
+    }
+
+    private static int keyBit(long high, long low, int bit) {
+        long word = bit < 64 ? high : low;
+        return (int) (word >>> (63 - (bit & 63))) & 1;
+    }
+
+    /**
+     * Returns the action of the longest range matching the group, or the default action if no range matches.
+     */
+    public Action getAction(InetAddress group) {
+        boolean ipv4 = group instanceof Inet4Address;
+        long high = ipv4 ? (long) group.hashCode() << 32 : AddressKeys.high(group);
+        long low = ipv4 ? 0 : AddressKeys.low(group);
+        int node = ipv4 ? IPV4_ROOT : IPV6_ROOT;
+        int addressBits = ipv4 ? IPV4_BITS : IPV6_BITS;
+        Action matched = this.actions[node];
+        for (int i = 0; i < addressBits; i++) {
+            node = this.children[2 * node + keyBit(high, low, i)];
+            if (node == NO_CHILD) {
+                break;
+            }
+            if (this.actions[node] != null) {
+                matched = this.actions[node];
+            }
+        }
+        return matched != null ? matched : this.defaultAction;
+    }
+
+    /**
+     * Returns true if a record of the specified type may be applied to a group whose range has the specified action.
+     * IGMPv1/v2 and MLDv1 reports are processed as MODE_IS_EXCLUDE records, and are therefore not admitted in source
+     * specific ranges either.
+     */
+    public static boolean admits(Action action, RecordType recordType) {
+        switch (action) {
+            case PERMIT:
+                return true;
+            case SOURCE_SPECIFIC_ONLY:
+                return recordType != RecordType.MODE_IS_EXCLUDE && recordType != RecordType.CHANGE_TO_EXCLUDE_MODE;
+            default:
+                return false;
+        }
+    }
+}
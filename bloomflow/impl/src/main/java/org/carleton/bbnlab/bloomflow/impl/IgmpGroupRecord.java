@@ -59,7 +59,10 @@ public class IgmpGroupRecord {
         UNKNOWN_TYPE
     }
 
-    private static final int GROUP_RECORD_HEADER_LEN = 8;
+    // Record type, aux data len and number of sources, followed by the group address and source addresses
+    private static final int GROUP_RECORD_FIXED_LEN = 4;
+    public static final int IPV4_ADDRESS_LEN = 4;
+    public static final int IPV6_ADDRESS_LEN = 16;
 
     private RecordType recordType;
     private byte auxDataLen;
@@ -69,12 +72,29 @@ public class IgmpGroupRecord {
 
     private int recordLenBytes;
 
+    // Reused by parseRecord(), see reset()
+    private final List<InetAddress> parsedSources;
+    private final byte[] ipv4ReadBytes;
+    private final byte[] ipv6ReadBytes;
+
     public IgmpGroupRecord() {
+        parsedSources = new ArrayList<InetAddress>();
+        ipv4ReadBytes = new byte[IPV4_ADDRESS_LEN];
+        ipv6ReadBytes = new byte[IPV6_ADDRESS_LEN];
+        reset();
+    }
+
+    /**
+     * Returns the record to its initial state so that it can be reused to parse another record. The list of parsed
+     * sources is kept and cleared, lists passed to setSourceAddresses() are left untouched.
+     */
+    public void reset() {
         recordType = RecordType.UNIMITIALIZED_RECORD;
         auxDataLen = 0;
         numSources = 0;
         mcastAddress = null;
-        sourceAddresses = new ArrayList<InetAddress>();
+        parsedSources.clear();
+        sourceAddresses = parsedSources;
         recordLenBytes = 0;
     }
 
@@ -118,12 +138,14 @@ public class IgmpGroupRecord {
         numBytes += 1;
         outputBuf.putChar(this.numSources);
         numBytes += 2;
-        outputBuf.put(this.getMcastAddress().getAddress());
-        numBytes += 4;
+        byte[] mcastAddressBytes = this.getMcastAddress().getAddress();
+        outputBuf.put(mcastAddressBytes);
+        numBytes += mcastAddressBytes.length;
 
         for(InetAddress sourceAddr : this.sourceAddresses) {
-            outputBuf.put(sourceAddr.getAddress());
-            numBytes += 4;
+            byte[] sourceAddressBytes = sourceAddr.getAddress();
+            outputBuf.put(sourceAddressBytes);
+            numBytes += sourceAddressBytes.length;
         }
 
         return numBytes;
@@ -131,8 +153,47 @@ public class IgmpGroupRecord {
 
     // Returns number of bytes read
     public int parseRecord(final byte[] payloadBytes) {
-        byte[] ipReadBytes = new byte[4];
-        ByteBuffer readBuffer = ByteBuffer.wrap(payloadBytes);
+        return parseRecord(payloadBytes, IPV4_ADDRESS_LEN);
+    }
+
+    /**
+     * Parses a group record whose addresses are addressLen bytes long. MLDv2 multicast address records (RFC 3810,
+     * section 5.2.4) share the layout of IGMPv3 group records with 16 byte addresses.
+     */
+    public int parseRecord(final byte[] payloadBytes, int addressLen) {
+        return parseRecord(payloadBytes, 0, payloadBytes.length, addressLen);
+    }
+
+    /**
+     * Returns the length of the group record starting at offset, as declared by its header (including its auxiliary
+     * data), or -1 if the record does not fit in the length bytes available.
+     */
+    public static int measureRecord(final byte[] payloadBytes, int offset, int length, int addressLen) {
+        if (length < GROUP_RECORD_FIXED_LEN + addressLen) {
+            return -1;
+        }
+        int declaredAuxDataLen = payloadBytes[offset + 1] & 0xff;
+        int declaredNumSources = ((payloadBytes[offset + 2] & 0xff) << 8) | (payloadBytes[offset + 3] & 0xff);
+        int recordLen = GROUP_RECORD_FIXED_LEN + addressLen + declaredNumSources * addressLen + declaredAuxDataLen * 4;
+        return recordLen <= length ? recordLen : -1;
+    }
+
+    /**
+     * Parses a group record starting at offset, reading at most length bytes. The record is reset first, so a single
+     * record can be reused for every parse. A record which does not fit in length bytes is parsed as UNKNOWN_TYPE
+     * without sources, and consumes all of the length bytes.
+     */
+    public int parseRecord(final byte[] payloadBytes, int offset, int length, int addressLen) {
+        reset();
+        recordLenBytes = measureRecord(payloadBytes, offset, length, addressLen);
+        if (recordLenBytes < 0) {
+            recordType = RecordType.UNKNOWN_TYPE;
+            recordLenBytes = length;
+            return recordLenBytes;
+        }
+
+        byte[] ipReadBytes = addressLen == IPV6_ADDRESS_LEN ? ipv6ReadBytes : ipv4ReadBytes;
+        ByteBuffer readBuffer = ByteBuffer.wrap(payloadBytes, offset, length);
 
         int recordTypeChar = readBuffer.get();
         switch (recordTypeChar) {
@@ -171,7 +232,7 @@ public class IgmpGroupRecord {
                 LOG.error("parseRecord() - Exception getting mcast IP address [{}]", e.getMessage(), e);
             }
         }
-        recordLenBytes = GROUP_RECORD_HEADER_LEN + (numSources * 4);
+        // Auxiliary data is skipped, recordLenBytes already accounts for it
         return recordLenBytes;
     }
 
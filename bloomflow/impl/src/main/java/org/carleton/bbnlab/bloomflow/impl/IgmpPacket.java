@@ -11,7 +11,6 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -91,6 +90,17 @@ public class IgmpPacket {
         UNKNOWN_TYPE
     }
 
+    /**
+     * Reason a message was rejected by the decoder. Rejected messages are parsed as UNKNOWN_TYPE.
+     */
+    public enum ParseError {
+        NONE,
+        TRUNCATED,          // Shorter than the fixed header of the message
+        BAD_SOURCE_COUNT,   // The declared number of sources does not fit in the message
+        BAD_RECORD_LENGTH,  // The declared group records do not fit in the message
+        BAD_CHECKSUM
+    }
+
     public final String IGMP_ADDRESS = "224.0.0.22";
     public final String IGMP_V3_ALL_SYSTEMS_ADDRESS = "224.0.0.1";
 
@@ -98,6 +108,8 @@ public class IgmpPacket {
     private final int TYPE_FIELD_LEN = 1;
     private final int V3_QUERY_HDR_LEN = 12;
     private final int V3_REPORT_HDR_LEN = 8;
+    private static final int MIN_GROUP_RECORD_LEN = 8;
+    private static final int CHECKSUM_OFFSET = 2;
 
     private final byte FLAG_MEMBERSHIP_QUERY     = 0x11;
     private final byte FLAG_MEMBERSHIP_REPORT_V1 = 0x12;
@@ -116,31 +128,28 @@ public class IgmpPacket {
     private byte qrv;
     private byte qqic;
     private char csum;
+    private boolean checksumValid;
+    private ParseError parseError;
     private InetAddress address;
     private char numSources;
     private List<InetAddress> sourceAddresses;
     private char numGroupRecords;
     private List<IgmpGroupRecord> groupRecords;
 
-    private byte[] extra;    // Stores extra binary data at end of message, not currently used
-
     private int dataLenBytes;
 
+    // Reused by parseMessage(), see reset()
+    private final List<InetAddress> parsedSources;
+    private final List<IgmpGroupRecord> parsedRecords;
+    private final List<IgmpGroupRecord> spareRecords;
+    private final byte[] ipReadBytes;
+
     public IgmpPacket() {
-        dataLenBytes = 0;
-        versionAndType = 0;
-        messageType = MessageType.UNIMITIALIZED_MESSAGE;
-        maxResponseTime = 0;
-        suppressRouterProcessing = false;
-        qrv = 0;
-        qqic = 0;
-        csum = 0;
-        address = null;
-        numSources = 0;
-        sourceAddresses = new ArrayList<InetAddress>();
-        numGroupRecords = 0;
-        groupRecords = new ArrayList<IgmpGroupRecord>();
-        extra = null;
+        parsedSources = new ArrayList<InetAddress>();
+        parsedRecords = new ArrayList<IgmpGroupRecord>();
+        spareRecords = new ArrayList<IgmpGroupRecord>();
+        ipReadBytes = new byte[IgmpGroupRecord.IPV4_ADDRESS_LEN];
+        reset();
     }
 
     public IgmpPacket(final byte[] payloadBytes) {
@@ -149,52 +158,52 @@ public class IgmpPacket {
     }
 
     static public char calcChecksum(byte[] buf, int byteLen) {
-        int length = byteLen;
-        int i = 0;
+        return calcChecksum(buf, 0, byteLen);
+    }
 
+    /**
+     * Computes the Internet checksum (RFC 1071) of byteLen bytes of buf starting at offset. Words are summed 32 bits
+     * at a time into a long, and the carries are only folded back into 16 bits once at the end (2^16 and 2^32 are
+     * both congruent to 1 modulo 0xFFFF). The checksum of a message carrying a correct checksum field is 0.
+     */
+    static public char calcChecksum(byte[] buf, int offset, int byteLen) {
+        int end = offset + byteLen;
+        int i = offset;
         long sum = 0;
-        long data;
-
-        while (length > 1) {
-            data = (((buf[i] << 8) & 0xFF00) | ((buf[i + 1]) & 0xFF));
-            sum += data;
-            // 1's complement carry bit correction in 16-bits (detecting sign extension)
-            if ((sum & 0xFFFF0000) > 0) {
-                sum = sum & 0xFFFF;
-                sum += 1;
-            }
 
+        for (; i + 4 <= end; i += 4) {
+            sum += ((buf[i] & 0xFFL) << 24) | ((buf[i + 1] & 0xFF) << 16) | ((buf[i + 2] & 0xFF) << 8)
+                    | (buf[i + 3] & 0xFF);
+        }
+        if (i + 2 <= end) {
+            sum += ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
             i += 2;
-            length -= 2;
         }
-
         // Handle remaining byte in odd length buffers
-        if (length > 0) {
-            sum += (buf[i] << 8 & 0xFF00);
-            // 1's complement carry bit correction in 16-bits (detecting sign extension)
-            if ((sum & 0xFFFF0000) > 0) {
-                sum = sum & 0xFFFF;
-                sum += 1;
-            }
+        if (i < end) {
+            sum += (buf[i] & 0xFF) << 8;
         }
 
-        // Final 1's complement value correction to 16-bits
-        sum = ~sum;
-        sum = sum & 0xFFFF;
-        return (char)sum;
+        while ((sum >>> 16) != 0) {
+            sum = (sum >>> 16) + (sum & 0xFFFF);
+        }
+        return (char) (~sum & 0xFFFF);
     }
 
+    /**
+     * Packs the message into outputBuf at its current position, and returns the number of bytes packed. If
+     * recalcChecksum is set, the checksum is computed over the packed bytes and written back into the checksum field,
+     * so the message is only packed once. Otherwise the checksum field is left as 0. The buffer must be backed by an
+     * array, such as the pack buffer of the PacketPool.
+     */
     public int packMessage(ByteBuffer outputBuf, boolean recalcChecksum) {
+        if (!outputBuf.hasArray()) {
+            throw new IllegalArgumentException("IGMP messages can only be packed into array backed buffers");
+        }
         int numBytes = 0;
+        int startPosition = outputBuf.position();
         outputBuf.order(ByteOrder.BIG_ENDIAN);
 
-        if (recalcChecksum) {
-            byte[] packedNoChecksum = new byte[MAX_PACKET_LEN];
-            ByteBuffer checksumBuf = ByteBuffer.wrap(packedNoChecksum);
-            int numChecksumBufBytes = this.packMessage(checksumBuf, false);
-            this.csum = IgmpPacket.calcChecksum(packedNoChecksum, numChecksumBufBytes);
-        }
-
         if (this.maxResponseTime >= 128) {
             LOG.error("packMessage() - IGMP messages with floating point maxResponseTime are currently unsupported");
         }
@@ -206,11 +215,7 @@ public class IgmpPacket {
             outputBuf.put(this.versionAndType);
             outputBuf.put((byte)0); // Reserved
             numBytes += 2;
-            if (recalcChecksum) {
-                outputBuf.putChar(this.csum);
-            } else {
-                outputBuf.putChar((char)0);
-            }
+            outputBuf.putChar((char)0);    // Checksum, back-patched below
             numBytes += 2;
             outputBuf.putChar((char)0);    // Reserved
             outputBuf.putChar(this.numGroupRecords);
@@ -223,11 +228,7 @@ public class IgmpPacket {
             numBytes += 1;
             outputBuf.put(this.maxResponseTime);
             numBytes += 1;
-            if (recalcChecksum) {
-                outputBuf.putChar(this.csum);
-            } else {
-                outputBuf.putChar((char)0);
-            }
+            outputBuf.putChar((char)0);    // Checksum, back-patched below
             numBytes += 2;
             outputBuf.put(this.address.getAddress());
             numBytes += 4;
@@ -248,16 +249,123 @@ public class IgmpPacket {
             }
         }
 
+        if (recalcChecksum) {
+            this.csum = calcChecksum(outputBuf.array(), outputBuf.arrayOffset() + startPosition, numBytes);
+            outputBuf.putChar(startPosition + CHECKSUM_OFFSET, this.csum);
+        }
+
         LOG.debug("packMessage() - numBytesPacked: " + numBytes);
         return numBytes;
     }
 
+    /**
+     * Returns true if the checksum of the parsed message was correct. Messages with a bad checksum (or rejected before
+     * their checksum was checked, see getParseError()) are not decoded, and are parsed as UNKNOWN_TYPE.
+     */
+    public boolean isChecksumValid() {
+        return checksumValid;
+    }
+
+    public ParseError getParseError() {
+        return parseError;
+    }
+
+    public boolean isMalformed() {
+        return parseError != ParseError.NONE;
+    }
+
+    /**
+     * Returns the packet to its initial state so that it can be reused to parse or pack another message. Group records
+     * created by previous parses are kept for reuse, lists passed to the setters are left untouched.
+     */
+    public void reset() {
+        dataLenBytes = 0;
+        versionAndType = 0;
+        messageType = MessageType.UNIMITIALIZED_MESSAGE;
+        maxResponseTime = 0;
+        suppressRouterProcessing = false;
+        qrv = 0;
+        qqic = 0;
+        csum = 0;
+        checksumValid = false;
+        parseError = ParseError.NONE;
+        address = null;
+        numSources = 0;
+        parsedSources.clear();
+        sourceAddresses = parsedSources;
+        numGroupRecords = 0;
+        for (IgmpGroupRecord record : parsedRecords) {
+            record.reset();
+            spareRecords.add(record);
+        }
+        parsedRecords.clear();
+        groupRecords = parsedRecords;
+    }
+
     public int parseMessage(final byte[] payloadBytes) {
-        byte[] ipReadBytes = new byte[4];
+        return parseMessage(payloadBytes, 0, payloadBytes.length);
+    }
+
+    /**
+     * Checks the lengths declared by the message against the length bytes available, before anything is decoded.
+     * Source counts are checked in constant time, and group records by walking their headers only, so a message
+     * declaring more sources or records than it holds is rejected without looping over the declared counts.
+     */
+    private ParseError validateMessage(final byte[] payloadBytes, int offset, int length) {
+        if (length < MIN_PACKET_LEN) {
+            return ParseError.TRUNCATED;
+        }
+
+        byte type = payloadBytes[offset];
+        if (type == FLAG_MEMBERSHIP_REPORT_V3) {
+            int declaredNumRecords = ((payloadBytes[offset + 6] & 0xff) << 8) | (payloadBytes[offset + 7] & 0xff);
+            int recordBytes = length - V3_REPORT_HDR_LEN;
+            if (declaredNumRecords * MIN_GROUP_RECORD_LEN > recordBytes) {
+                return ParseError.BAD_RECORD_LENGTH;
+            }
+            int recordOffset = offset + V3_REPORT_HDR_LEN;
+            for (int i = 0; i < declaredNumRecords; i++) {
+                int recordLen = IgmpGroupRecord.measureRecord(payloadBytes, recordOffset, recordBytes,
+                        IgmpGroupRecord.IPV4_ADDRESS_LEN);
+                if (recordLen < 0) {
+                    return ParseError.BAD_RECORD_LENGTH;
+                }
+                recordOffset += recordLen;
+                recordBytes -= recordLen;
+            }
+        } else if (type == FLAG_MEMBERSHIP_QUERY && length >= V3_QUERY_HDR_LEN) {
+            int declaredNumSources = ((payloadBytes[offset + 10] & 0xff) << 8) | (payloadBytes[offset + 11] & 0xff);
+            if (V3_QUERY_HDR_LEN + declaredNumSources * IgmpGroupRecord.IPV4_ADDRESS_LEN > length) {
+                return ParseError.BAD_SOURCE_COUNT;
+            }
+        }
+
+        if (calcChecksum(payloadBytes, offset, length) != 0) {
+            return ParseError.BAD_CHECKSUM;
+        }
+        return ParseError.NONE;
+    }
+
+    /**
+     * Parses the IGMP message held in length bytes of payloadBytes starting at offset, and returns the number of bytes
+     * processed. The packet is reset first, so a single packet can be reused for every message. Messages rejected by
+     * validateMessage() are parsed as UNKNOWN_TYPE, see getParseError().
+     */
+    public int parseMessage(final byte[] payloadBytes, int offset, int length) {
         int numBytesProcessed = 0;
 
-        ByteBuffer readBuffer = ByteBuffer.wrap(payloadBytes);
-        dataLenBytes = payloadBytes.length;
+        reset();
+        dataLenBytes = length;
+        // Reject truncated, inconsistent and corrupt messages before decoding any field
+        parseError = validateMessage(payloadBytes, offset, length);
+        checksumValid = parseError == ParseError.NONE;
+        if (parseError != ParseError.NONE) {
+            messageType = MessageType.UNKNOWN_TYPE;
+            LOG.debug("parseMessage() - Rejected IGMP message (" + parseError + "), length: " + dataLenBytes);
+            return 0;
+        }
+
+        ByteBuffer readBuffer = ByteBuffer.wrap(payloadBytes, offset, length);
         versionAndType = readBuffer.get();
         numBytesProcessed += 1;
 
@@ -272,9 +380,10 @@ public class IgmpPacket {
 
             // Read in group records
             for(int i = 0; i < numGroupRecords; i++) {
-                IgmpGroupRecord newRecord = new IgmpGroupRecord();
-                numBytesProcessed += newRecord.parseRecord(Arrays.copyOfRange(payloadBytes,
-                        numBytesProcessed, payloadBytes.length));
+                IgmpGroupRecord newRecord = spareRecords.isEmpty() ? new IgmpGroupRecord()
+                        : spareRecords.remove(spareRecords.size() - 1);
+                numBytesProcessed += newRecord.parseRecord(payloadBytes, offset + numBytesProcessed,
+                        length - numBytesProcessed, IgmpGroupRecord.IPV4_ADDRESS_LEN);
                 groupRecords.add(newRecord);
             }
         } else {
@@ -293,12 +402,16 @@ public class IgmpPacket {
             numBytesProcessed += 7;
 
             // Determine the message type
-            if (versionAndType == FLAG_MEMBERSHIP_QUERY && dataLenBytes == 8 && maxResponseTime == 0) {
+            if (versionAndType == FLAG_MEMBERSHIP_REPORT_V1) {
+                messageType = MessageType.MEMBERSHIP_REPORT_V1;
+            } else if (versionAndType == FLAG_MEMBERSHIP_REPORT_V2) {
+                messageType = MessageType.MEMBERSHIP_REPORT_V2;
+            } else if (versionAndType == FLAG_LEAVE_GROUP_V2) {
+                messageType = MessageType.LEAVE_GROUP_V2;
+            } else if (versionAndType == FLAG_MEMBERSHIP_QUERY && dataLenBytes == 8 && maxResponseTime == 0) {
                 messageType = MessageType.MEMBERSHIP_QUERY_V1;
-                extra = Arrays.copyOfRange(payloadBytes, numBytesProcessed, payloadBytes.length);
             } else if (versionAndType == FLAG_MEMBERSHIP_QUERY && dataLenBytes == 8 && maxResponseTime != 0) {
                 messageType = MessageType.MEMBERSHIP_QUERY_V2;
-                extra = Arrays.copyOfRange(payloadBytes, numBytesProcessed, payloadBytes.length);
             } else if (versionAndType == FLAG_MEMBERSHIP_QUERY && dataLenBytes >= 12) {
                 messageType = MessageType.MEMBERSHIP_QUERY_V3;
                 byte sFlagQrv = 0;
@@ -328,10 +441,6 @@ public class IgmpPacket {
             }
         }
 
-        // TODO: Implement checksum verification once packing is implemented
-
-        extra = Arrays.copyOfRange(payloadBytes, numBytesProcessed, payloadBytes.length);
-
         LOG.debug("parseMessage() - numBytesProcessed: " + numBytesProcessed);
         return numBytesProcessed;
     }
@@ -471,6 +580,27 @@ public class IgmpPacket {
         this.dataLenBytes = dataLenBytes;
     }
 
+    /**
+     * @param maxResponseTime the maxResponseTime to set, in tenths of a second
+     */
+    public void setMaxResponseTime(byte maxResponseTime) {
+        this.maxResponseTime = maxResponseTime;
+    }
+
+    /**
+     * @param qrv the qrv to set
+     */
+    public void setQrv(byte qrv) {
+        this.qrv = qrv;
+    }
+
+    /**
+     * @param qqic the qqic to set, in seconds
+     */
+    public void setQqic(byte qqic) {
+        this.qqic = qqic;
+    }
+
     /**
      * @param messageType the messageType to set
      */
@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.InetAddress;
+import java.util.List;
+import org.carleton.bbnlab.bloomflow.impl.IgmpGroupRecord.RecordType;
+
+/**
+ * IGMPv3 router state transitions (see RFC 3376, sections 6.4.1 and 6.4.2), dispatched through a table indexed by the
+ * filter mode of the membership record and the type of the received group record.
+ *
+ * Current state records:
+ *
+ * +--------------+--------------+--------------------+----------------------+
+ * | Router State | Report Rec'd | New Router State   |     Actions          |
+ * +==============+==============+====================+======================+
+ * | INCLUDE (A)  | IS_IN (B)    | INCLUDE (A+B)      |     (B)=GMI          |
+ * +--------------+--------------+--------------------+----------------------+
+ * | INCLUDE (A)  | IS_EX (B)    | EXCLUDE (A*B,B-A)  |    (B-A)=0,          |
+ * |              |              |                    |    Delete (A-B),     |
+ * |              |              |                    |    Group Timer=GMI   |
+ * +--------------+--------------+--------------------+----------------------+
+ * | EXCLUDE (X,Y)| IS_IN (A)    | EXCLUDE (X+A,Y-A)  |    (A)=GMI           |
+ * +--------------+--------------+--------------------+----------------------+
+ * | EXCLUDE (X,Y)| IS_EX (A)    | EXCLUDE (A-Y,Y*A)  |    (A-X-Y)=GMI,      |
+ * |              |              |                    |    Delete (X-A),     |
+ * |              |              |                    |    Delete (Y-A),     |
+ * |              |              |                    |    Group Timer=GMI   |
+ * +--------------+--------------+--------------------+----------------------+
+ *
+ * State change records:
+ *
+ * +--------------+--------------+-------------------+-----------------------+
+ * | Router State | Report Rec'd | New Router State  |   Actions             |
+ * +==============+==============+===================+=======================+
+ * | INCLUDE (A)  | ALLOW (B)    | INCLUDE (A+B)     |   (B)=GMI             |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | INCLUDE (A)  |  BLOCK (B)   | INCLUDE (A)       |   Send Q(G,A*B)       |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | INCLUDE (A)  | TO_EX (B)    | EXCLUDE (A*B,B-A) |   (B-A)=0,            |
+ * |              |              |                   |   Delete (A-B),       |
+ * |              |              |                   |   Send Q(G,A*B),      |
+ * |              |              |                   |   Group Timer=GMI     |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | INCLUDE (A)  | TO_IN (B)    | INCLUDE (A+B)     |   (B)=GMI,            |
+ * |              |              |                   |   Send Q(G,A-B)       |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | EXCLUDE (X,Y)| ALLOW (A)    | EXCLUDE (X+A,Y-A) |   (A)=GMI             |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | EXCLUDE (X,Y)| BLOCK (A)    | EXCLUDE(X+(A-Y),Y)|   (A-X-Y)=Group Timer,|
+ * |              |              |                   |   Send Q(G,A-Y)       |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | EXCLUDE (X,Y)| TO_EX (A)    | EXCLUDE (A-Y,Y*A) |   (A-X-Y)=Group Timer,|
+ * |              |              |                   |   Delete (X-A),       |
+ * |              |              |                   |   Delete (Y-A),       |
+ * |              |              |                   |   Send Q(G,A-Y),      |
+ * |              |              |                   |   Group Timer=GMI     |
+ * +--------------+--------------+-------------------+-----------------------+
+ * | EXCLUDE (X,Y)| TO_IN (A)    | EXCLUDE (X+A,Y-A) |   (A)=GMI,            |
+ * |              |              |                   |   Send Q(G,X-A),      |
+ * |              |              |                   |   Send Q(G)           |
+ * +--------------+--------------+-------------------+-----------------------+
+ *
+ * Transitions change the source table of the record in place and record what they did in a TransitionActions buffer,
+ * so no memory is allocated once the source table and the buffer have grown to the size of the records received.
+ *
+ * Deviations from RFC 3376: This tree does not act as a querier (apart from the group specific queries sent for
+ * IGMPv2 leaves, see IgmpSwitchManager.processLeave()), and its group and source timers hold the values last set
+ * rather than running down, so the Send Q(G) and Send Q(G,S) actions of the tables are not produced, and
+ * the timers they would lower are left unchanged. Without the group specific query and its last member timer, an
+ * EXCLUDE (X,Y) record receiving TO_IN (A) would never leave EXCLUDE mode, so it moves to INCLUDE (X+A) at once, with
+ * (A)=GMI and Delete (Y), which is the state the RFC reaches once the query goes unanswered. Hosts which are still
+ * members of the group keep receiving its traffic as long as they answer the queries of an external querier.
+ *
+ * Note: When the group is in INCLUDE mode, the set of addresses is stored in the X set.
+ */
+public final class IgmpStateMachine {
+
+    private enum Transition {
+        // INCLUDE (A) + IS_IN (B) / ALLOW (B) / TO_IN (B), and EXCLUDE (X,Y) + IS_IN (A) / ALLOW (A)
+        ALLOW_SOURCES {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                setSourceTimers(record.getSources(), reportSources, gmi, actions);
+            }
+        },
+        INCLUDE_IS_EX {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                includeToExclude(record, reportSources, gmi, actions);
+            }
+        },
+        // INCLUDE (A) + BLOCK (B), which only sends Q(G,A*B) in the RFC (see the deviations above)
+        INCLUDE_BLOCK {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                // The record is left unchanged
+            }
+        },
+        EXCLUDE_IS_EX {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                excludeToExclude(record.getSources(), reportSources, gmi, actions);
+                setGroupTimer(record, gmi, actions);
+            }
+        },
+        EXCLUDE_BLOCK {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                SourceTable sources = record.getSources();
+                for (int i = 0; i < reportSources.size(); i++) {
+                    InetAddress source = reportSources.get(i);
+                    if (sources.putIfAbsent(source, SourceTable.X_SET, record.getGroupTimer())) {
+                        actions.add(TransitionActions.Action.SET_SOURCE_TIMER, source, record.getGroupTimer());
+                    }
+                }
+            }
+        },
+        EXCLUDE_TO_EX {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                excludeToExclude(record.getSources(), reportSources, record.getGroupTimer(), actions);
+                setGroupTimer(record, gmi, actions);
+            }
+        },
+        EXCLUDE_TO_IN {
+            @Override
+            void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                    TransitionActions actions) {
+                // INCLUDE (X+A) instead of EXCLUDE (X+A,Y-A), see the deviations above
+                SourceTable sources = record.getSources();
+                record.setFilterMode(RecordType.MODE_IS_INCLUDE);
+                sources.removeSet(SourceTable.Y_SET, actions);
+                setSourceTimers(sources, reportSources, gmi, actions);
+            }
+        };
+
+        abstract void apply(MulticastMembershipRecord record, List<InetAddress> reportSources, double gmi,
+                TransitionActions actions);
+    }
+
+    private static final int INCLUDE = 0;
+    private static final int EXCLUDE = 1;
+    private static final Transition[][] TRANSITIONS = new Transition[2][RecordType.values().length];
+
+    static {
+        TRANSITIONS[INCLUDE][RecordType.MODE_IS_INCLUDE.ordinal()] = Transition.ALLOW_SOURCES;
+        TRANSITIONS[INCLUDE][RecordType.MODE_IS_EXCLUDE.ordinal()] = Transition.INCLUDE_IS_EX;
+        TRANSITIONS[INCLUDE][RecordType.ALLOW_NEW_SOURCES.ordinal()] = Transition.ALLOW_SOURCES;
+        TRANSITIONS[INCLUDE][RecordType.BLOCK_OLD_SOURCES.ordinal()] = Transition.INCLUDE_BLOCK;
+        // TO_EX and TO_IN only differ from IS_EX and ALLOW in INCLUDE mode by the queries they send
+        TRANSITIONS[INCLUDE][RecordType.CHANGE_TO_EXCLUDE_MODE.ordinal()] = Transition.INCLUDE_IS_EX;
+        TRANSITIONS[INCLUDE][RecordType.CHANGE_TO_INCLUDE_MODE.ordinal()] = Transition.ALLOW_SOURCES;
+        TRANSITIONS[EXCLUDE][RecordType.MODE_IS_INCLUDE.ordinal()] = Transition.ALLOW_SOURCES;
+        TRANSITIONS[EXCLUDE][RecordType.MODE_IS_EXCLUDE.ordinal()] = Transition.EXCLUDE_IS_EX;
+        TRANSITIONS[EXCLUDE][RecordType.ALLOW_NEW_SOURCES.ordinal()] = Transition.ALLOW_SOURCES;
+        TRANSITIONS[EXCLUDE][RecordType.BLOCK_OLD_SOURCES.ordinal()] = Transition.EXCLUDE_BLOCK;
+        TRANSITIONS[EXCLUDE][RecordType.CHANGE_TO_EXCLUDE_MODE.ordinal()] = Transition.EXCLUDE_TO_EX;
+        TRANSITIONS[EXCLUDE][RecordType.CHANGE_TO_INCLUDE_MODE.ordinal()] = Transition.EXCLUDE_TO_IN;
+    }
+
+    private IgmpStateMachine() {
+        // Disable instantiation of this class
+    }
+
+    /**
+     * Returns true if records of the specified type have a transition, in either filter mode.
+     */
+    public static boolean hasTransition(RecordType recordType) {
+        return TRANSITIONS[INCLUDE][recordType.ordinal()] != null;
+    }
+
+    /**
+     * Applies the group record to the membership record, and records the resulting actions in the provided buffer
+     * (which is cleared first). A DELETE_GROUP action is recorded if the membership record is left in INCLUDE mode
+     * without any source. Returns false if the record type has no transition, in which case nothing is changed.
+     *
+     * The source addresses are read by index, so the list should support random access.
+     */
+    public static boolean apply(MulticastMembershipRecord record, RecordType recordType,
+            List<InetAddress> reportSources, double gmi, TransitionActions actions) {
+        actions.clear();
+        int filterMode = record.getFilterMode() == RecordType.MODE_IS_INCLUDE ? INCLUDE : EXCLUDE;
+        Transition transition = TRANSITIONS[filterMode][recordType.ordinal()];
+        if (transition == null) {
+            return false;
+        }
+
+        transition.apply(record, reportSources, gmi, actions);
+        if (record.getFilterMode() == RecordType.MODE_IS_INCLUDE && record.getSources().getNumX() == 0) {
+            actions.add(TransitionActions.Action.DELETE_GROUP);
+        }
+        return true;
+    }
+
+    private static void setSourceTimers(SourceTable sources, List<InetAddress> reportSources, double timer,
+            TransitionActions actions) {
+        for (int i = 0; i < reportSources.size(); i++) {
+            sources.put(reportSources.get(i), SourceTable.X_SET, timer);
+            actions.add(TransitionActions.Action.SET_SOURCE_TIMER, reportSources.get(i), timer);
+        }
+    }
+
+    private static void setGroupTimer(MulticastMembershipRecord record, double timer, TransitionActions actions) {
+        record.setGroupTimer(timer);
+        actions.add(TransitionActions.Action.SET_GROUP_TIMER, null, timer);
+    }
+
+    /**
+     * INCLUDE (A) to EXCLUDE (A*B,B-A) with (B-A)=0, Delete (A-B) and Group Timer=GMI. Sources of A*B keep their
+     * timers.
+     */
+    private static void includeToExclude(MulticastMembershipRecord record, List<InetAddress> reportSources,
+            double gmi, TransitionActions actions) {
+        SourceTable sources = record.getSources();
+        record.setFilterMode(RecordType.MODE_IS_EXCLUDE);
+        sources.beginMark();
+        for (int i = 0; i < reportSources.size(); i++) {
+            if (!sources.markOrAdd(reportSources.get(i), SourceTable.Y_SET, 0)) {
+                actions.add(TransitionActions.Action.SET_SOURCE_TIMER, reportSources.get(i), 0);
+            }
+        }
+        sources.removeUnmarked(actions);
+        setGroupTimer(record, gmi, actions);
+    }
+
+    /**
+     * EXCLUDE (X,Y) to EXCLUDE (A-Y,Y*A) with (A-X-Y)=newSourceTimer, Delete (X-A) and Delete (Y-A).
+     */
+    private static void excludeToExclude(SourceTable sources, List<InetAddress> reportSources,
+            double newSourceTimer, TransitionActions actions) {
+        sources.beginMark();
+        for (int i = 0; i < reportSources.size(); i++) {
+            if (!sources.markOrAdd(reportSources.get(i), SourceTable.X_SET, newSourceTimer)) {
+                actions.add(TransitionActions.Action.SET_SOURCE_TIMER, reportSources.get(i), newSourceTimer);
+            }
+        }
+        sources.removeUnmarked(actions);
+    }
+
+}
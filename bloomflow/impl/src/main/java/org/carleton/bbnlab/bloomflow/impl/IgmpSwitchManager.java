@@ -7,19 +7,28 @@
  */
 package org.carleton.bbnlab.bloomflow.impl;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.carleton.bbnlab.bloomflow.impl.IgmpGroupRecord.RecordType;
 import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
-import org.opendaylight.controller.md.sal.binding.api.ReadWriteTransaction;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
 import org.opendaylight.openflowplugin.api.OFConstants;
 import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev130715.IpVersion;
@@ -29,7 +38,12 @@ import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.acti
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNodeConnector;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.Meter;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.MeterBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.MeterKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.TableKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
@@ -37,9 +51,11 @@ import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.ta
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowModFlags;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.OutputPortValues;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.table.statistics.rev131215.FlowTableStatisticsData;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.InstructionsBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.MatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.ApplyActionsCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.MeterCaseBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.apply.actions._case.ApplyActionsBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.Instruction;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.InstructionBuilder;
@@ -50,10 +66,22 @@ import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.N
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.l2.types.rev130827.EtherType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.BandId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterBandType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterFlags;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.band.type.band.type.DropBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.MeterBandHeadersBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.MeterBandHeader;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.MeterBandHeaderBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.MeterBandHeaderKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.meter.band.header.MeterBandTypesBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.ethernet.match.fields.EthernetTypeBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.EthernetMatchBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.Icmpv6MatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.IpMatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketReceived;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.table.types.rev131026.table.features.TableFeatures;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev130712.NodeId;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
 import org.slf4j.Logger;
@@ -61,25 +89,112 @@ import org.slf4j.LoggerFactory;
 
 public class IgmpSwitchManager {
     private static final Logger LOG = LoggerFactory.getLogger(IgmpSwitchManager.class);
+    private static final int IGMP_PUNT_PRIORITY = 0;
+    private static final int IGMP_PORT_PUNT_PRIORITY = 1;
+    private static final int IGMP_PORT_BLOCK_PRIORITY = 2;
+    private static final long SWITCH_PUNT_METER_ID = 1;
+    private static final long FIRST_PORT_PUNT_METER_ID = 2;
+
+    // Proxy membership reports are sent from a locally administered MAC address with an unspecified source IP, which
+    // queriers must accept (RFC 3376, section 4.2.13)
+    private static final byte[] PROXY_REPORT_SRC_MAC = {0x02, 0x00, 0x00, 0x00, 0x00, 0x01};
+    private static final String PROXY_REPORT_SRC_IP = "0.0.0.0";
+    private static final int PROXY_REPORT_MAX_IP_LEN = 1500;
+    private static final int IGMP_V3_REPORT_HEADER_LEN = 8;
+    private static final int IGMP_GROUP_RECORD_HEADER_LEN = 8;
+
+    /**
+     * Rate limiting applied to the IGMP packets sent to the controller.
+     */
+    public enum PuntMeterMode {
+        NONE,       // No rate limiting
+        PER_SWITCH, // One meter shared by all ports of the switch
+        PER_PORT    // One meter per port, so a single misbehaving host cannot starve the other ports
+    }
+
+    /**
+     * Handling of a report for a new group once the group limit of the port or of the switch is reached.
+     */
+    public enum MembershipLimitPolicy {
+        REJECT,     // The report is ignored, existing members keep their groups
+        EVICT_LRU   // The least recently reported group of the port (or of the switch) is pruned to make room
+    }
 
     private final InstanceIdentifier<Node> node;
+    // The records of each port are kept in order of their last report, least recently reported first
     private final Map<InstanceIdentifier<NodeConnector>, Map<InetAddress, MulticastMembershipRecord>> multicastRecords;
+    // Membership of each reporting host by port and group, only maintained in explicit host tracking mode. The
+    // records of multicastRecords are then the merge of the host records of the same port and group.
+    private final Map<InstanceIdentifier<NodeConnector>,
+            Map<InetAddress, Map<InetAddress, MulticastMembershipRecord>>> hostRecords;
     private final BloomflowProvider provider;
-
-    // TODO: These lists should be populated by querying the inventory module. For now, we simply enable IGMP support
-    // on any port over which an IGMP message has previously been received.
-    private final List<InstanceIdentifier<NodeConnector>> ports;
-    private final List<InstanceIdentifier<NodeConnector>> igmpEnabledPorts;
-
+    private final FlowTableOccupancy tableOccupancy;
+    private final Map<NodeConnectorId, Long> portPuntMeterIds;
+    private final PortDictionary portDictionary;
+    // Reused by every state transition, only accessed while holding the switch manager lock
+    private final TransitionActions transitionActions;
+
+    // Ports reported by the inventory (or learned from IGMP packets received before the inventory reported them), and
+    // the subset which is currently up. All ports which are up are IGMP enabled.
+    private long[] portBits;
+    private long[] igmpEnabledPortBits;
+    // Ports on which IGMPv2 leaves are applied immediately, without waiting for other members to report
+    private long[] fastLeavePortBits;
+    // Malformed membership messages received by port index, and the count within the current window of each port
+    private long[] malformedPacketCounts;
+    private int[] malformedWindowCounts;
+    private long[] malformedWindowStarts;
+    // Ports whose membership messages are dropped by block flows, see processMalformedPacket()
+    private long[] blockedPortBits;
+    private final Map<NodeConnectorId, List<Flow>> portBlockFlows;
+    // Records dropped by the group policy, see admitGroupPolicy()
+    private long policyDroppedRecords;
+    // Reports affected by the membership limits, see admitGroup() and limitSources()
+    private long rejectedGroupJoins;
+    private long evictedGroups;
+    private long rejectedSources;
+
+    // Only accessed while holding the switch manager lock, readers on other threads use the published snapshot
     Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState;
+    private volatile ReceptionStateSnapshot receptionSnapshot;
+    // Groups whose records were created, changed or removed since the last updateDesiredReceptionState() call
+    private final Set<InetAddress> dirtyGroups;
+    // Reception changes and routing events queued under the switch manager lock, and delivered by
+    // publishReceptionChanges() once it is released
+    private final Set<InetAddress> unpublishedGroups;
+    private final List<MulticastGroupEvent> undispatchedEvents;
+    // Orders the delivery of queued reception changes, always acquired before the switch manager lock
+    private final Object publicationLock = new Object();
+    // Membership merged across all ports, only maintained when proxy reporting is enabled
+    private Map<InetAddress, GroupMembershipSummary> membershipSummary;
+    private boolean closed;
 
     public IgmpSwitchManager(InstanceIdentifier<Node> node, BloomflowProvider provider) {
         this.node = node;
         this.provider = provider;
-        ports = new ArrayList<>();
-        igmpEnabledPorts = new ArrayList<>();
+        portBits = new long[0];
+        igmpEnabledPortBits = new long[0];
+        fastLeavePortBits = new long[0];
+        malformedPacketCounts = new long[0];
+        malformedWindowCounts = new int[0];
+        malformedWindowStarts = new long[0];
+        blockedPortBits = new long[0];
+        portBlockFlows = new HashMap<>();
         multicastRecords = new HashMap<>();
+        hostRecords = new HashMap<>();
         desiredReceptionState = null;
+        portDictionary = provider.getPortDictionary(node);
+        receptionSnapshot = new ReceptionStateSnapshot(node,
+                new HashMap<InetAddress, Map<NodeConnectorId, Set<InetAddress>>>(), portDictionary);
+        dirtyGroups = new HashSet<>();
+        unpublishedGroups = new HashSet<>();
+        undispatchedEvents = new ArrayList<>();
+        membershipSummary = new HashMap<>();
+        closed = false;
+        portPuntMeterIds = new HashMap<>();
+        transitionActions = new TransitionActions();
+        tableOccupancy = new FlowTableOccupancy(BloomflowProvider.FLOW_TABLE_ID, provider.flowTableOverflowPolicy,
+                provider.flowTableHighWatermark);
     }
 
     public String getNodeIdStr() {
@@ -92,15 +207,60 @@ public class IgmpSwitchManager {
             returnStr += "Membership Records for Port: " + port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId() + "\n";
             for (InetAddress mcastAddr : multicastRecords.get(port).keySet()) {
                 returnStr += multicastRecords.get(port).get(mcastAddr).debugStr();
+                if (hostRecords.get(port) != null && hostRecords.get(port).get(mcastAddr) != null) {
+                    returnStr += "\tReporting Hosts: " + hostRecords.get(port).get(mcastAddr).keySet() + "\n";
+                }
+            }
+        }
+        if (this.provider.igmpProxyReporting) {
+            returnStr += "Proxy Membership Summary:\n";
+            for (InetAddress mcastAddr : membershipSummary.keySet()) {
+                returnStr += "\t" + mcastAddr + ": " + membershipSummary.get(mcastAddr).debugStr() + "\n";
             }
         }
+        returnStr += "Group Policy: dropped records " + policyDroppedRecords + "\n";
+        returnStr += "Membership Limits: rejected joins " + rejectedGroupJoins + ", evicted groups " + evictedGroups
+                + ", rejected sources " + rejectedSources + "\n";
+        returnStr += tableOccupancy.debugStr();
         return returnStr;
     }
 
+    /**
+     * Returns true if membership messages received on the port should be processed. Ports which the inventory has not
+     * reported yet are learned from the packet until the listener catches up.
+     */
+    private boolean admitIngressPort(NodeConnectorId ingressPortId) {
+        if (this.closed) {
+            return false;
+        }
+        int ingressPortIndex = this.portDictionary.lookup(ingressPortId);
+        if (ingressPortIndex < 0 || !PortBitSets.get(this.portBits, ingressPortIndex)) {
+            this.portUp(ingressPortId);
+        } else if (!PortBitSets.get(this.igmpEnabledPortBits, ingressPortIndex)) {
+            LOG.debug("admitIngressPort() - Dropping membership message received on down port "
+                    + ingressPortId.getValue());
+            return false;
+        } else if (PortBitSets.get(this.blockedPortBits, ingressPortIndex)) {
+            // Punted before the block flows were installed
+            LOG.debug("admitIngressPort() - Dropping membership message received on blocked port "
+                    + ingressPortId.getValue());
+            return false;
+        }
+        return true;
+    }
+
     public void processIgmpPacket(IgmpPacket igmpPacket, PacketReceived packetIn, int ipHeaderLenBytes) {
+        this.applyIgmpPacket(igmpPacket, packetIn, ipHeaderLenBytes);
+        this.publishReceptionChanges();
+    }
+
+    private synchronized void applyIgmpPacket(IgmpPacket igmpPacket, PacketReceived packetIn, int ipHeaderLenBytes) {
         byte[] payload = packetIn.getPayload();
         InstanceIdentifier<NodeConnector> ingressPort = packetIn.getIngress().getValue().firstIdentifierOf(NodeConnector.class);
-        this.addIgmpPort(ingressPort);
+        NodeConnectorId ingressPortId = ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+        if (!admitIngressPort(ingressPortId)) {
+            return;
+        }
 
         LOG.info(getNodeIdStr() + " processIgmpPacket() - Decoded IGMP message:\n" + igmpPacket.debugStr());
 
@@ -119,6 +279,7 @@ public class IgmpSwitchManager {
         */
         /// ==== END
 
+        InetAddress reporter = this.provider.igmpExplicitHostTracking ? PacketUtils.getSrcIp(payload) : null;
         try {
             if (igmpPacket.getMessageType() == IgmpPacket.MessageType.UNKNOWN_TYPE) {
                 String headerHex = "0x ";
@@ -138,416 +299,589 @@ public class IgmpSwitchManager {
                 LOG.info("processIgmpPacket() - igmp bytes:\n" + igmpHex);
             } else if (igmpPacket.getMessageType() == IgmpPacket.MessageType.MEMBERSHIP_REPORT_V3) {
                 for (IgmpGroupRecord record : igmpPacket.getGroupRecords()) {
-                    if (record.getRecordType() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE
-                            || record.getRecordType() == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE) {
-                        this.processCurrentStateRecord(record, packetIn, ingressPort);
-                    } else if (record.getRecordType() == IgmpGroupRecord.RecordType.CHANGE_TO_INCLUDE_MODE
-                            || record.getRecordType() == IgmpGroupRecord.RecordType.CHANGE_TO_EXCLUDE_MODE
-                            || record.getRecordType() == IgmpGroupRecord.RecordType.ALLOW_NEW_SOURCES
-                            || record.getRecordType() == IgmpGroupRecord.RecordType.BLOCK_OLD_SOURCES) {
-                        this.processStateChangeRecord(record, packetIn, ingressPort);
-                    }
+                    this.processGroupRecord(record, packetIn, ingressPort, reporter);
                 }
                 this.updateDesiredReceptionState();
-            } else if (igmpPacket.getMessageType() == IgmpPacket.MessageType.MEMBERSHIP_QUERY_V3
-                    && igmpPacket.getSuppressRouterProcessing() == false
-                    && !igmpPacket.getAddress().equals(InetAddress.getByName("0.0.0.0"))) {
-                // TODO: Implement
-                LOG.info("processIgmpPacket() - MEMBERSHIP_QUERY_V3 not yet supported");
+            } else if (igmpPacket.getMessageType() == IgmpPacket.MessageType.MEMBERSHIP_REPORT_V1
+                    || igmpPacket.getMessageType() == IgmpPacket.MessageType.MEMBERSHIP_REPORT_V2) {
+                int version = igmpPacket.getMessageType() == IgmpPacket.MessageType.MEMBERSHIP_REPORT_V1 ? 1 : 2;
+                this.processLegacyReport(igmpPacket.getAddress(), version, ingressPort, reporter);
+                this.updateDesiredReceptionState();
+            } else if (igmpPacket.getMessageType() == IgmpPacket.MessageType.LEAVE_GROUP_V2) {
+                this.processLeave(igmpPacket.getAddress(), ingressPort, reporter);
+                this.updateDesiredReceptionState();
+            } else if (igmpPacket.getMessageType() == IgmpPacket.MessageType.MEMBERSHIP_QUERY_V3) {
+                if (this.provider.igmpProxyReporting) {
+                    this.answerMembershipQuery(igmpPacket, ingressPort);
+                } else if (igmpPacket.getSuppressRouterProcessing() == false
+                        && !igmpPacket.getAddress().equals(InetAddress.getByName("0.0.0.0"))) {
+                    // TODO: Implement
+                    LOG.info("processIgmpPacket() - MEMBERSHIP_QUERY_V3 not yet supported");
+                }
             }
         } catch (Exception e) {
             LOG.error("processIgmpPacket() - Exception getting IP address [{}]", e.getMessage(), e);
         }
     }
 
+    /**
+     * Processes an MLD message, which feeds the same membership state as IGMP: MLDv2 reports are handled as IGMPv3
+     * reports, and MLDv1 reports and dones as IGMPv2 reports and leaves (RFC 3810, section 8). Queries are ignored.
+     */
+    public void processMldPacket(MldPacket mldPacket, PacketReceived packetIn) {
+        this.applyMldPacket(mldPacket, packetIn);
+        this.publishReceptionChanges();
+    }
+
+    private synchronized void applyMldPacket(MldPacket mldPacket, PacketReceived packetIn) {
+        InstanceIdentifier<NodeConnector> ingressPort = packetIn.getIngress().getValue()
+                .firstIdentifierOf(NodeConnector.class);
+        NodeConnectorId ingressPortId = ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+        if (!admitIngressPort(ingressPortId)) {
+            return;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(getNodeIdStr() + " processMldPacket() - Decoded MLD message:\n" + mldPacket.debugStr());
+        }
+        InetAddress reporter = this.provider.igmpExplicitHostTracking
+                ? PacketUtils.getIpv6SrcIp(packetIn.getPayload()) : null;
+        if (mldPacket.getMessageType() == MldPacket.MessageType.LISTENER_REPORT_V2) {
+            for (IgmpGroupRecord record : mldPacket.getGroupRecords()) {
+                this.processGroupRecord(record, packetIn, ingressPort, reporter);
+            }
+            this.updateDesiredReceptionState();
+        } else if (mldPacket.getMessageType() == MldPacket.MessageType.LISTENER_REPORT_V1) {
+            // MLDv1 hosts are the counterpart of IGMPv2 hosts
+            this.processLegacyReport(mldPacket.getAddress(), 2, ingressPort, reporter);
+            this.updateDesiredReceptionState();
+        } else if (mldPacket.getMessageType() == MldPacket.MessageType.LISTENER_DONE) {
+            this.processLeave(mldPacket.getAddress(), ingressPort, reporter);
+            this.updateDesiredReceptionState();
+        } else {
+            LOG.debug("processMldPacket() - Ignoring MLD message of type " + mldPacket.getMessageType());
+        }
+    }
+
     /**
      * Creates a MulticastMembershipRecord from the PacketIn event and associated IgmpGroupRecord read from the packet.
      *
      * If the record did not already exist it is initialized with the provided group timer.
-     * If it did exist, the existing record IS NOT modified.
+     * If it did exist, the existing record IS NOT modified, other than being marked as the most recently reported
+     * group of the port. Membership limits are not checked, see admitGroup().
      */
     public MulticastMembershipRecord createMcastMembershipRecord(IgmpGroupRecord record, PacketReceived packetIn, double groupTimer) {
         InstanceIdentifier<NodeConnector> ingressPort = packetIn.getIngress().getValue().firstIdentifierOf(NodeConnector.class);
+        return createMcastMembershipRecord(record.getMcastAddress(), ingressPort, groupTimer);
+    }
 
+    public MulticastMembershipRecord createMcastMembershipRecord(InetAddress mcastAddress,
+            InstanceIdentifier<NodeConnector> ingressPort, double groupTimer) {
         if (!multicastRecords.keySet().contains(ingressPort)) {
-            multicastRecords.put(ingressPort, new HashMap<InetAddress, MulticastMembershipRecord>());
+            multicastRecords.put(ingressPort, new LinkedHashMap<InetAddress, MulticastMembershipRecord>());
+        }
+
+        Map<InetAddress, MulticastMembershipRecord> portRecords = multicastRecords.get(ingressPort);
+        MulticastMembershipRecord record = portRecords.remove(mcastAddress);
+        if (record == null) {
+            record = new MulticastMembershipRecord(mcastAddress, groupTimer);
+        }
+        // Re-inserted so that the least recently reported group of the port is always the first one
+        portRecords.put(mcastAddress, record);
+        this.dirtyGroups.add(mcastAddress);
+        record.setLastReportNanos(System.nanoTime());
+        return record;
+    }
+
+    /**
+     * Returns true if the group policy allows a record of the specified type for the group to be applied on the port.
+     * The filter configured for the port takes precedence over the filter of the provider. The policy is checked
+     * before any membership state is looked up or created, so unwanted joins never reach the membership or routing
+     * state. It runs on the parsed group record, whose group and source addresses were already allocated by
+     * IgmpGroupRecord.parseRecord().
+     */
+    private boolean admitGroupPolicy(InstanceIdentifier<NodeConnector> port, InetAddress mcastAddress,
+            RecordType recordType) {
+        if (mcastAddress == null) {
+            return false;
+        }
+        GroupPolicyFilter.Action action = null;
+        if (!this.provider.igmpPortGroupPolicies.isEmpty()) {
+            GroupPolicyFilter portFilter = this.provider.igmpPortGroupPolicies.get(
+                    port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue());
+            action = portFilter == null ? null : portFilter.getAction(mcastAddress);
+        }
+        if (action == null) {
+            action = this.provider.igmpGroupPolicy.getAction(mcastAddress);
+        }
+        if (GroupPolicyFilter.admits(action, recordType)) {
+            return true;
         }
 
-        if (!multicastRecords.get(ingressPort).keySet().contains(record.getMcastAddress())) {
-            MulticastMembershipRecord newRecord = new MulticastMembershipRecord(record.getMcastAddress(), groupTimer);
-            multicastRecords.get(ingressPort).put(record.getMcastAddress(), newRecord);
+        this.policyDroppedRecords++;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("admitGroupPolicy() - Dropped " + recordType + " record for group " + mcastAddress
+                    + " on port " + port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue()
+                    + ", the group policy action is " + action);
         }
+        return false;
+    }
 
-        return multicastRecords.get(ingressPort).get(record.getMcastAddress());
+    /**
+     * Returns true if a report for the group received on the port should be applied. Reports for groups which already
+     * have a record on the port are always admitted. A report for a new group is only admitted if it can create a
+     * membership, and if the group fits within igmpMaxGroupsPerPort and igmpMaxGroupsPerSwitch. Once a limit is
+     * reached, the configured MembershipLimitPolicy either rejects the report or evicts the least recently reported
+     * group to make room.
+     */
+    private boolean admitGroup(InstanceIdentifier<NodeConnector> port, InetAddress mcastAddress, RecordType recordType,
+            List<InetAddress> sourceAddresses) {
+        Map<InetAddress, MulticastMembershipRecord> portRecords = this.multicastRecords.get(port);
+        if (portRecords != null && portRecords.containsKey(mcastAddress)) {
+            return true;
+        }
+        if (recordType == RecordType.BLOCK_OLD_SOURCES || (sourceAddresses.isEmpty()
+                && recordType != RecordType.MODE_IS_EXCLUDE && recordType != RecordType.CHANGE_TO_EXCLUDE_MODE)) {
+            // The record would leave the group without members, so there is nothing to create
+            return false;
+        }
+
+        int maxGroupsPerPort = this.provider.igmpMaxGroupsPerPort;
+        if (maxGroupsPerPort > 0 && portRecords != null && portRecords.size() >= maxGroupsPerPort
+                && !applyLimitPolicy(port, portRecords.keySet().iterator().next(), mcastAddress, "port")) {
+            return false;
+        }
+
+        int maxGroupsPerSwitch = this.provider.igmpMaxGroupsPerSwitch;
+        if (maxGroupsPerSwitch <= 0) {
+            return true;
+        }
+        int numGroups = 0;
+        InstanceIdentifier<NodeConnector> lruPort = null;
+        MulticastMembershipRecord lruRecord = null;
+        for (Map.Entry<InstanceIdentifier<NodeConnector>, Map<InetAddress, MulticastMembershipRecord>> portEntry
+                : this.multicastRecords.entrySet()) {
+            if (portEntry.getValue().isEmpty()) {
+                continue;
+            }
+            numGroups += portEntry.getValue().size();
+            MulticastMembershipRecord oldestRecord = portEntry.getValue().values().iterator().next();
+            if (lruRecord == null || oldestRecord.getLastReportNanos() - lruRecord.getLastReportNanos() < 0) {
+                lruPort = portEntry.getKey();
+                lruRecord = oldestRecord;
+            }
+        }
+        return numGroups < maxGroupsPerSwitch
+                || applyLimitPolicy(lruPort, lruRecord.getMcastAddress(), mcastAddress, "switch");
     }
 
-    private void getNodeConnectors() {
+    /**
+     * Applies the MembershipLimitPolicy to a report for newGroup which exceeds a group limit. Returns true if the
+     * report should be admitted, in which case the lruGroup record of lruPort was evicted.
+     */
+    private boolean applyLimitPolicy(InstanceIdentifier<NodeConnector> lruPort, InetAddress lruGroup,
+            InetAddress newGroup, String limitName) {
+        if (this.provider.igmpMembershipLimitPolicy == MembershipLimitPolicy.REJECT) {
+            this.rejectedGroupJoins++;
+            LOG.debug("applyLimitPolicy() - Rejected join of group " + newGroup + ", the group limit of the "
+                    + limitName + " is reached on " + getNodeIdStr());
+            return false;
+        }
+
+        this.evictedGroups++;
+        LOG.info("applyLimitPolicy() - Evicted group " + lruGroup + " from port "
+                + lruPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue()
+                + " to admit group " + newGroup + ", the group limit of the " + limitName + " is reached");
+        Map<InetAddress, Map<InetAddress, MulticastMembershipRecord>> portHosts = this.hostRecords.get(lruPort);
+        if (portHosts != null) {
+            portHosts.remove(lruGroup);
+            if (portHosts.isEmpty()) {
+                this.hostRecords.remove(lruPort);
+            }
+        }
+        this.removeGroupRecord(lruPort, lruGroup);
+        return true;
+    }
+
+    /**
+     * Returns the sources of a record which can be applied to the membership record without exceeding
+     * igmpMaxSourcesPerGroup. Sources which the record already tracks are always kept, and new sources beyond the limit
+     * are dropped. Source timers are not run down, so there is no reporting order by which to evict sources, and the
+     * limit applies under both policies.
+     */
+    private List<InetAddress> limitSources(MulticastMembershipRecord record, List<InetAddress> sourceAddresses) {
+        int maxSources = this.provider.igmpMaxSourcesPerGroup;
+        SourceTable sources = record.getSources();
+        if (maxSources <= 0 || sources.size() + sourceAddresses.size() <= maxSources) {
+            return sourceAddresses;
+        }
+
+        int room = maxSources - sources.size();
+        List<InetAddress> limitedSources = new ArrayList<>(Math.min(sourceAddresses.size(), maxSources));
+        for (InetAddress source : sourceAddresses) {
+            if (sources.getSet(source) == SourceTable.X_SET || sources.getSet(source) == SourceTable.Y_SET) {
+                limitedSources.add(source);
+            } else if (room > 0) {
+                limitedSources.add(source);
+                room--;
+            }
+        }
+        int numDropped = sourceAddresses.size() - limitedSources.size();
+        if (numDropped > 0) {
+            this.rejectedSources += numDropped;
+            LOG.debug("limitSources() - Dropped " + numDropped + " sources of group " + record.getMcastAddress()
+                    + ", the source limit of the group is reached on " + getNodeIdStr());
+        }
+        return limitedSources;
+    }
+
+    /**
+     * Seeds the port set of this switch from the ports currently in the operational inventory. Later changes are
+     * delivered incrementally by the NodeConnectorListener.
+     */
+    public void syncNodeConnectors() {
         ReadOnlyTransaction readOnlyTransaction = this.provider.getDataBroker().newReadOnlyTransaction();
         try {
-            Optional<Node> dataObjectOptional = null;
-            dataObjectOptional = readOnlyTransaction.read(LogicalDatastoreType.OPERATIONAL, this.node).get();
-            if (dataObjectOptional.isPresent()) {
-                Node node = dataObjectOptional.get();
-                for (NodeConnector nc : node.getNodeConnector()) {
-                    // Don't look for mac in discarding node connectors
-                    InstanceIdentifier<NodeConnector> newPort = this.node.child(NodeConnector.class, nc.getKey());
-                    LOG.debug("getNodeConnectors() - Discovered NodeConnector:\n" + newPort);
-                    this.addIgmpPort(newPort);
+            Optional<Node> dataObjectOptional = readOnlyTransaction.read(LogicalDatastoreType.OPERATIONAL,
+                    this.node).get();
+            if (dataObjectOptional.isPresent() && dataObjectOptional.get().getNodeConnector() != null) {
+                for (NodeConnector nc : dataObjectOptional.get().getNodeConnector()) {
+                    if (NodeConnectorListener.isPortUp(nc.getAugmentation(FlowCapableNodeConnector.class))) {
+                        this.portUp(nc.getId());
+                    } else {
+                        this.portDown(nc.getId());
+                    }
                 }
             }
-        } catch (InterruptedException e) {
-            LOG.error("Failed to read nodes from Operation data store.");
-            readOnlyTransaction.close();
-            throw new RuntimeException("Failed to read nodes from Operation data store.", e);
-        } catch (ExecutionException e) {
-            LOG.error("Failed to read nodes from Operation data store.");
-            readOnlyTransaction.close();
-            throw new RuntimeException("Failed to read nodes from Operation data store.", e);
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warn("syncNodeConnectors() - Failed to read ports of node " + getNodeIdStr()
+                    + ", relying on port updates from the inventory");
         }
         readOnlyTransaction.close();
     }
 
     /**
-     * Processes current state IGMP membership reports according to the following table (See RFC 3376):
-     *
-     * +--------------+--------------+--------------------+----------------------+
-     * | Router State | Report Rec'd | New Router State   |     Actions          |
-     * +==============+==============+====================+======================+
-     * | INCLUDE (A)  | IS_IN (B)    | INCLUDE (A+B)      |     (B)=GMI          |
-     * +--------------+--------------+--------------------+----------------------+
-     * | INCLUDE (A)  | IS_EX (B)    | EXCLUDE (A*B,B-A)  |    (B-A)=0,          |
-     * |              |              |                    |    Delete (A-B),     |
-     * |              |              |                    |    Group Timer=GMI   |
-     * +--------------+--------------+--------------------+----------------------+
-     * | EXCLUDE (X,Y)| IS_IN (A)    | EXCLUDE (X+A,Y-A)  |    (A)=GMI           |
-     * +--------------+--------------+--------------------+----------------------+
-     * | EXCLUDE (X,Y)| IS_EX (A)    | EXCLUDE (A-Y,Y*A)  |    (A-X-Y)=GMI,      |
-     * |              |              |                    |    Delete (X-A),     |
-     * |              |              |                    |    Delete (Y-A),     |
-     * |              |              |                    |    Group Timer=GMI   |
-     * +--------------+--------------+--------------------+----------------------+
-     *
-     * Note: When the group is in INCLUDE mode, the set of addresses is stored in
-     * the same list as the X set when in EXCLUDE mode
-     *
+     * Seeds the capacity of the BloomFlow flow table from the table features reported by the switch.
      */
-    public void processCurrentStateRecord(IgmpGroupRecord packetRecord, PacketReceived packetIn,
-            InstanceIdentifier<NodeConnector> ingressPort) {
-        LOG.info("processCurrentStateRecord() - Called");
-        MulticastMembershipRecord switchRecord = this.createMcastMembershipRecord(packetRecord, packetIn,
-                this.provider.igmpGroupMembershipInterval);
-        List<SourceRecord> newXSourceRecords = new ArrayList<>();
-        List<SourceRecord> newYSourceRecords = new ArrayList<>();
-        Set<InetAddress> recordAddresses = packetRecord.getSourceAddressSet();
-        Set<InetAddress> newXSet = new HashSet<>();
-        Set<InetAddress> newYSet = new HashSet<>();
-
-        if (switchRecord.getFilterMode() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE) {
-            if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE) {
-                // ==== Switch State: MODE_IS_INCLUDE, Message: MODE_IS_INCLUDE ====
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.addAll(recordAddresses);
-                for (InetAddress addr : newXSet) {
-                    if (recordAddresses.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
+    public void seedTableCapacity() {
+        ReadOnlyTransaction readOnlyTransaction = this.provider.getDataBroker().newReadOnlyTransaction();
+        try {
+            Optional<FlowCapableNode> dataObjectOptional = readOnlyTransaction.read(LogicalDatastoreType.OPERATIONAL,
+                    this.node.augmentation(FlowCapableNode.class)).get();
+            if (dataObjectOptional.isPresent() && dataObjectOptional.get().getTableFeatures() != null) {
+                for (TableFeatures features : dataObjectOptional.get().getTableFeatures()) {
+                    if (features.getTableId() != null && features.getMaxEntries() != null
+                            && features.getTableId() == tableOccupancy.getTableId()) {
+                        tableOccupancy.setMaxEntries(features.getMaxEntries());
                     }
                 }
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE) {
-                // ==== Switch State: MODE_IS_INCLUDE, Message: MODE_IS_EXCLUDE ====
-                switchRecord.setFilterMode(IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE);
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.retainAll(recordAddresses);
-                newYSet = new HashSet<>(recordAddresses);
-                newYSet.removeAll(switchRecord.getXAddressSet());
-
-                for (InetAddress addr : newXSet) {
-                    newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
             }
-        } else if (switchRecord.getFilterMode() == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE) {
-            if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE) {
-                // ==== Switch State: MODE_IS_EXCLUDE, Message: MODE_IS_INCLUDE ====
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.addAll(recordAddresses);
-                newYSet = new HashSet<>(switchRecord.getYAddressSet());
-                newYSet.removeAll(recordAddresses);
-
-                for (InetAddress addr : newXSet) {
-                    if (recordAddresses.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.warn("seedTableCapacity() - Failed to read table features for node " + getNodeIdStr()
+                    + ", admission control disabled until capacity is known");
+        }
+        readOnlyTransaction.close();
+    }
 
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE) {
-                // ==== Switch State: MODE_IS_EXCLUDE, Message: MODE_IS_EXCLUDE ====
-                newXSet = new HashSet<>(recordAddresses);
-                newXSet.removeAll(switchRecord.getYAddressSet());
-                newYSet = new HashSet<>(switchRecord.getYAddressSet());
-                newYSet.retainAll(recordAddresses);
-                Set<InetAddress> gmiSet = new HashSet<>(recordAddresses);
-                gmiSet.removeAll(switchRecord.getXAddressSet());
-                gmiSet.removeAll(switchRecord.getYAddressSet());
-
-                for (InetAddress addr : newXSet) {
-                    if (gmiSet.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
+    /**
+     * Refreshes the table occupancy model from the flow table statistics published in the operational datastore.
+     */
+    public void updateTableStatistics(Table table) {
+        FlowTableStatisticsData statsData = table.getAugmentation(FlowTableStatisticsData.class);
+        if (statsData != null && statsData.getFlowTableStatistics() != null
+                && statsData.getFlowTableStatistics().getActiveFlows() != null) {
+            tableOccupancy.updateActiveEntries(statsData.getFlowTableStatistics().getActiveFlows().getValue());
+        }
+    }
+
+    /**
+     * Performs admission control for a set of multicast flows to be installed on this switch. Callers must report
+     * admitted flows through getTableOccupancy().flowsInstalled() once they have been submitted.
+     */
+    public FlowTableOccupancy.AdmissionDecision admitMulticastFlows(int numFlows) {
+        return tableOccupancy.admitFlows(numFlows);
+    }
 
-                switchRecord.setGroupTimer(this.provider.igmpGroupMembershipInterval);
+    public FlowTableOccupancy getTableOccupancy() {
+        return tableOccupancy;
+    }
+
+    /**
+     * Applies an IGMPv3 group record received on the ingress port to the membership record of the group (see
+     * IgmpStateMachine for the transition tables).
+     *
+     * While IGMPv1 or IGMPv2 hosts are present the group is in compatibility mode, and source filtering requests
+     * which older hosts could not express are ignored (RFC 3376, section 7.3.2).
+     */
+    public void processGroupRecord(IgmpGroupRecord packetRecord, PacketReceived packetIn,
+            InstanceIdentifier<NodeConnector> ingressPort, InetAddress reporter) {
+        if (!IgmpStateMachine.hasTransition(packetRecord.getRecordType())) {
+            // Checked first, so that records which cannot change the membership never create a record
+            LOG.debug("processGroupRecord() - Ignoring group record of type " + packetRecord.getRecordType());
+            return;
+        }
+        if (!this.admitGroupPolicy(ingressPort, packetRecord.getMcastAddress(), packetRecord.getRecordType())) {
+            return;
+        }
+        if (this.provider.igmpExplicitHostTracking) {
+            this.processHostRecord(ingressPort, packetRecord.getMcastAddress(), reporter,
+                    packetRecord.getRecordType(), packetRecord.getSourceAddresses());
+            return;
+        }
+
+        RecordType recordType = packetRecord.getRecordType();
+        List<InetAddress> sourceAddresses = packetRecord.getSourceAddresses();
+        if (!this.admitGroup(ingressPort, packetRecord.getMcastAddress(), recordType, sourceAddresses)) {
+            return;
+        }
+        MulticastMembershipRecord switchRecord = this.createMcastMembershipRecord(packetRecord, packetIn,
+                this.provider.igmpGroupMembershipInterval);
+        if (switchRecord.getCompatibilityMode(System.nanoTime()) < 3) {
+            if (recordType == RecordType.BLOCK_OLD_SOURCES) {
+                return;
+            } else if (recordType == RecordType.CHANGE_TO_EXCLUDE_MODE) {
+                sourceAddresses = Collections.emptyList();
             }
         }
+        this.applyGroupRecord(switchRecord, recordType, this.limitSources(switchRecord, sourceAddresses), ingressPort);
+    }
 
-        if (switchRecord.getFilterMode() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE && newXSourceRecords.isEmpty()) {
-            // Prune INCLUDE mode records which do not specify any sources
-            this.removeGroupRecord(ingressPort, packetRecord.getMcastAddress());
-        } else {
-            switchRecord.setXSourceRecords(newXSourceRecords);
-            switchRecord.setYSourceRecords(newYSourceRecords);
+    /**
+     * Processes an IGMPv1 or IGMPv2 membership report (or an MLDv1 report, as version 2) as an IS_EX({}) record, and
+     * restarts the older host present timer of the group (RFC 3376, section 7.3.2).
+     */
+    public void processLegacyReport(InetAddress mcastAddress, int version,
+            InstanceIdentifier<NodeConnector> ingressPort, InetAddress reporter) {
+        if (mcastAddress == null || !mcastAddress.isMulticastAddress()) {
+            LOG.debug("processLegacyReport() - Ignoring report for non multicast address " + mcastAddress);
+            return;
+        }
+        if (!this.admitGroupPolicy(ingressPort, mcastAddress, RecordType.MODE_IS_EXCLUDE)) {
+            return;
+        }
+        if (this.provider.igmpExplicitHostTracking) {
+            this.processHostRecord(ingressPort, mcastAddress, reporter, RecordType.MODE_IS_EXCLUDE,
+                    Collections.<InetAddress>emptyList());
+            return;
         }
+
+        if (!this.admitGroup(ingressPort, mcastAddress, RecordType.MODE_IS_EXCLUDE,
+                Collections.<InetAddress>emptyList())) {
+            return;
+        }
+        MulticastMembershipRecord switchRecord = this.createMcastMembershipRecord(mcastAddress, ingressPort,
+                this.provider.igmpGroupMembershipInterval);
+        switchRecord.setOlderHostPresent(version,
+                System.nanoTime() + (long) (this.provider.igmpOlderHostPresentInterval * 1e9));
+        this.applyGroupRecord(switchRecord, RecordType.MODE_IS_EXCLUDE, Collections.<InetAddress>emptyList(),
+                ingressPort);
     }
 
     /**
-     * Processes state change IGMP membership reports according to the following table (See RFC 3376):
+     * Processes an IGMPv2 leave (or an MLDv1 done) as a TO_IN({}) record. On fast-leave ports the record is applied
+     * immediately. On other ports a group specific query is sent on the port igmpLastMemberQueryCount times, and the
+     * record is applied once igmpLeaveLatency (the last member query count times the last member query interval) has
+     * passed without any other member of the group reporting on the port (RFC 3376, section 6.6.3.1).
      *
+     * MLD queries are not encoded by this switch manager, so after an MLDv1 done the remaining listeners only report
+     * within the leave latency if an external querier sends the query.
      *
-     * +--------------+--------------+-------------------+-----------------------+
-     * | Router State | Report Rec'd | New Router State  |   Actions             |
-     * +==============+==============+===================+=======================+
-     * | INCLUDE (A)  | ALLOW (B)    | INCLUDE (A+B)     |   (B)=GMI             |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | INCLUDE (A)  |  BLOCK (B)   | INCLUDE (A)       |   Send Q(G,A*B)       |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | INCLUDE (A)  | TO_EX (B)    | EXCLUDE (A*B,B-A) |   (B-A)=0,            |
-     * |              |              |                   |   Delete (A-B),       |
-     * |              |              |                   |   Send Q(G,A*B),      |
-     * |              |              |                   |   Group Timer=GMI     |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | INCLUDE (A)  | TO_IN (B)    | INCLUDE (A+B)     |   (B)=GMI,            |
-     * |              |              |                   |   Send Q(G,A-B)       |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | EXCLUDE (X,Y)| ALLOW (A)    | EXCLUDE (X+A,Y-A) |   (A)=GMI             |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | EXCLUDE (X,Y)| BLOCK (A)    | EXCLUDE(X+(A-Y),Y)|   (A-X-Y)=Group Timer,|
-     * |              |              |                   |   Send Q(G,A-Y)       |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | EXCLUDE (X,Y)| TO_EX (A)    | EXCLUDE (A-Y,Y*A) |   (A-X-Y)=Group Timer,|
-     * |              |              |                   |   Delete (X-A),       |
-     * |              |              |                   |   Delete (Y-A),       |
-     * |              |              |                   |   Send Q(G,A-Y),      |
-     * |              |              |                   |   Group Timer=GMI     |
-     * +--------------+--------------+-------------------+-----------------------+
-     * | EXCLUDE (X,Y)| TO_IN (A)    | EXCLUDE (X+A,Y-A) |   (A)=GMI,            |
-     * |              |              |                   |   Send Q(G,X-A),      |
-     * |              |              |                   |   Send Q(G)           |
-     * +--------------+--------------+-------------------+-----------------------+
-     *
-     * Note: When the group is in INCLUDE mode, the set of addresses is stored in the same list as the X set when
-     * in EXCLUDE mode
+     * In explicit host tracking mode the leave only removes the membership of the reporting host.
      */
-    public void processStateChangeRecord(IgmpGroupRecord packetRecord, PacketReceived packetIn,
-            InstanceIdentifier<NodeConnector> ingressPort) {
-        LOG.info("processStateChangeRecord() - Called");
-        MulticastMembershipRecord switchRecord = this.createMcastMembershipRecord(packetRecord, packetIn,
-                this.provider.igmpGroupMembershipInterval);
-        List<SourceRecord> newXSourceRecords = new ArrayList<>();
-        List<SourceRecord> newYSourceRecords = new ArrayList<>();
-        Set<InetAddress> recordAddresses = packetRecord.getSourceAddressSet();
-        Set<InetAddress> newXSet = new HashSet<>();
-        Set<InetAddress> newYSet = new HashSet<>();
-
-        if (switchRecord.getFilterMode() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE) {
-            if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.ALLOW_NEW_SOURCES) {
-                // ==== Switch State: MODE_IS_INCLUDE, Message: ALLOW_NEW_SOURCES ====
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.addAll(recordAddresses);
-                for (InetAddress addr : newXSet) {
-                    if (recordAddresses.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.BLOCK_OLD_SOURCES) {
-                // ==== Switch State: MODE_IS_INCLUDE, Message: BLOCK_OLD_SOURCES ====
-                Set<InetAddress> queryAddrSet = new HashSet<>(switchRecord.getXAddressSet());
-                queryAddrSet.retainAll(recordAddresses);
-
-                // TODO: Send: Q(G, A*B)
-                // self.send_group_and_source_specific_query(event.port, igmp_group_record.multicast_address, router_group_record, query_addr_set)
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.CHANGE_TO_EXCLUDE_MODE) {
-                // ==== Switch State: MODE_IS_INCLUDE, Message: CHANGE_TO_EXCLUDE_MODE ====
-                switchRecord.setFilterMode(IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE);
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.retainAll(recordAddresses);
-                newYSet = new HashSet<>(recordAddresses);
-                newYSet.removeAll(switchRecord.getXAddressSet());
-                for (InetAddress addr : newXSet) {
-                    newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
-                switchRecord.setGroupTimer(this.provider.igmpGroupMembershipInterval);
-
-                // TODO: Send: Q(G, A*B)
-                // self.send_group_and_source_specific_query(event.port, igmp_group_record.multicast_address, router_group_record, new_x_set)
-
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.CHANGE_TO_INCLUDE_MODE) {
-                // ==== Switch State: MODE_IS_INCLUDE, Message: CHANGE_TO_INCLUDE_MODE ====
-                switchRecord.setFilterMode(IgmpGroupRecord.RecordType.MODE_IS_INCLUDE);
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.addAll(recordAddresses);
-
-                for (InetAddress addr : newXSet) {
-                    if (recordAddresses.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
+    public void processLeave(InetAddress mcastAddress, InstanceIdentifier<NodeConnector> ingressPort,
+            InetAddress reporter) {
+        if (this.provider.igmpExplicitHostTracking) {
+            this.processHostRecord(ingressPort, mcastAddress, reporter,
+                    RecordType.CHANGE_TO_INCLUDE_MODE, Collections.<InetAddress>emptyList());
+            return;
+        }
+
+        Map<InetAddress, MulticastMembershipRecord> portRecords = this.multicastRecords.get(ingressPort);
+        final MulticastMembershipRecord switchRecord = portRecords == null ? null : portRecords.get(mcastAddress);
+        if (switchRecord == null) {
+            return;
+        }
+        if (switchRecord.getCompatibilityMode(System.nanoTime()) == 1) {
+            // IGMPv1 hosts never send leaves, so leaves are ignored while they may still be members
+            LOG.debug("processLeave() - Ignoring leave for group " + mcastAddress + " in IGMPv1 mode");
+            return;
+        }
 
-                // TODO: Send Q(G,A-B)
-                // query_addr_set = router_group_record.get_x_addr_set() - igmp_record_addresses
-                // self.send_group_and_source_specific_query(event.port, igmp_group_record.multicast_address, router_group_record, query_addr_set)
+        NodeConnectorId portId = ingressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+        int portIndex = this.portDictionary.lookup(portId);
+        if (portIndex >= 0 && PortBitSets.get(this.fastLeavePortBits, portIndex)) {
+            switchRecord.cancelLeave();
+            this.applyGroupRecord(switchRecord, RecordType.CHANGE_TO_INCLUDE_MODE,
+                    Collections.<InetAddress>emptyList(), ingressPort);
+            return;
+        }
+
+        final InstanceIdentifier<NodeConnector> port = ingressPort;
+        final int generation = switchRecord.prepareLeave();
+        switchRecord.setLeaveTimer(this.provider.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                leaveTimerExpired(port, switchRecord, generation);
+                publishReceptionChanges();
             }
-        } else if (switchRecord.getFilterMode() == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE) {
-            if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.ALLOW_NEW_SOURCES) {
-                // ==== Switch State: MODE_IS_EXCLUDE, Message: ALLOW_NEW_SOURCES ====
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.addAll(recordAddresses);
-                newYSet = new HashSet<>(switchRecord.getYAddressSet());
-                newYSet.removeAll(recordAddresses);
-
-                for (InetAddress addr : newXSet) {
-                    if (recordAddresses.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
-
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.BLOCK_OLD_SOURCES) {
-                // ==== Switch State: MODE_IS_EXCLUDE, Message: BLOCK_OLD_SOURCES ====
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                Set<InetAddress> xSubtractionSet = new HashSet<>(recordAddresses);
-                xSubtractionSet.removeAll(switchRecord.getYAddressSet());
-                newXSet.addAll(xSubtractionSet);
-                newYSet = new HashSet<>(switchRecord.getYAddressSet());
-                Set<InetAddress> groupTimerSet = new HashSet<>(recordAddresses);
-                groupTimerSet.removeAll(switchRecord.getXAddressSet());
-                groupTimerSet.removeAll(switchRecord.getYAddressSet());
-                Set<InetAddress> queryAddrSet = new HashSet<>(recordAddresses);
-                queryAddrSet.remove(switchRecord.getYAddressSet());
-
-                for (InetAddress addr : newXSet) {
-                    if (groupTimerSet.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getGroupTimer()));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
-
-                // TODO: Send Q(G, A-Y)
-                // self.send_group_and_source_specific_query(event.port, igmp_group_record.multicast_address, router_group_record, query_addr_set)
-
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.CHANGE_TO_EXCLUDE_MODE) {
-                // ==== Switch State: MODE_IS_EXCLUDE, Message: CHANGE_TO_EXCLUDE_MODE ====
-                switchRecord.setFilterMode(IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE);
-                newXSet = new HashSet(recordAddresses);
-                newXSet.removeAll(switchRecord.getYAddressSet());
-                newYSet = new HashSet(switchRecord.getYAddressSet());
-                newYSet.retainAll(recordAddresses);
-
-                HashSet<InetAddress> groupTimerSet = new HashSet<>(recordAddresses);
-                groupTimerSet.removeAll(switchRecord.getXAddressSet());
-                groupTimerSet.removeAll(switchRecord.getYAddressSet());
-
-                for (InetAddress addr : newXSet) {
-                    if (groupTimerSet.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getGroupTimer()));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
+        }, (long) (this.provider.igmpLeaveLatency * 1000), TimeUnit.MILLISECONDS));
+        if (mcastAddress instanceof Inet4Address) {
+            this.sendLastMemberQuery(port, switchRecord, generation, this.provider.igmpLastMemberQueryCount);
+        }
+    }
+
+    /**
+     * Sends a group specific query for a pending leave, and schedules the next one igmpLastMemberQueryInterval later
+     * until remainingQueries have been sent. Queries stop as soon as the leave is cancelled by a report or completes.
+     */
+    private void sendLastMemberQuery(final InstanceIdentifier<NodeConnector> port,
+            final MulticastMembershipRecord switchRecord, final int generation, final int remainingQueries) {
+        try {
+            sendGroupSpecificQuery(switchRecord, port);
+        } catch (UnknownHostException e) {
+            LOG.warn("sendLastMemberQuery() - Failed to build group specific query: " + e.getMessage());
+        }
+
+        if (remainingQueries > 1) {
+            this.provider.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lastMemberQueryTimerExpired(port, switchRecord, generation, remainingQueries - 1);
                 }
-                switchRecord.setGroupTimer(this.provider.igmpGroupMembershipInterval);
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
+            }, this.provider.igmpLastMemberQueryInterval * 100L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void lastMemberQueryTimerExpired(InstanceIdentifier<NodeConnector> port,
+            MulticastMembershipRecord switchRecord, int generation, int remainingQueries) {
+        if (this.closed || !switchRecord.isLeavePending(generation)) {
+            return;
+        }
+        this.sendLastMemberQuery(port, switchRecord, generation, remainingQueries);
+    }
 
-                // TODO: self.send_group_and_source_specific_query(event.port, igmp_group_record.multicast_address, router_group_record, new_x_set)
+    /**
+     * Sends a group specific query for the group of the specified record, in the IGMP version the members of the group
+     * on the port are compatible with. The query is sent from the same addresses as the proxy reports.
+     */
+    private void sendGroupSpecificQuery(MulticastMembershipRecord switchRecord,
+            InstanceIdentifier<NodeConnector> egressPort) throws UnknownHostException {
+        IgmpPacket query = PacketPool.encodeIgmp();
+        if (switchRecord.getCompatibilityMode(System.nanoTime()) == 2) {
+            query.setMessageType(IgmpPacket.MessageType.MEMBERSHIP_QUERY_V2);
+        } else {
+            query.setMessageType(IgmpPacket.MessageType.MEMBERSHIP_QUERY_V3);
+            query.setQrv((byte) this.provider.igmpRobustness);
+            query.setQqic((byte) this.provider.igmpQueryInterval);
+        }
+        query.setMaxResponseTime((byte) this.provider.igmpLastMemberQueryInterval);
+        query.setAddress(switchRecord.getMcastAddress());
+
+        // The frame is handed over to the transmit RPC, so only the pack buffer can be reused
+        ByteBuffer packBuffer = PacketPool.encodeBuffer();
+        int igmpLen = query.packMessage(packBuffer, true);
+        byte[] frame = PacketUtils.buildIgmpFrame(PROXY_REPORT_SRC_MAC, InetAddress.getByName(PROXY_REPORT_SRC_IP),
+                switchRecord.getMcastAddress(), packBuffer.array(), igmpLen);
+
+        this.provider.transmitPacket(egressPort, frame);
+        LOG.debug("sendGroupSpecificQuery() - Sent query for group " + switchRecord.getMcastAddress() + " to port "
+                + egressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId());
+    }
 
-            } else if (packetRecord.getRecordType() == IgmpGroupRecord.RecordType.CHANGE_TO_INCLUDE_MODE) {
-                // ==== Switch State: MODE_IS_EXCLUDE, Message: CHANGE_TO_INCLUDE_MODE ====
-                switchRecord.setFilterMode(IgmpGroupRecord.RecordType.MODE_IS_INCLUDE);
+    /**
+     * Completes a leave which was not cancelled by a membership report during the leave latency.
+     */
+    synchronized void leaveTimerExpired(InstanceIdentifier<NodeConnector> port, MulticastMembershipRecord switchRecord,
+            int generation) {
+        Map<InetAddress, MulticastMembershipRecord> portRecords = this.multicastRecords.get(port);
+        if (this.closed || !switchRecord.isLeavePending(generation) || portRecords == null
+                || portRecords.get(switchRecord.getMcastAddress()) != switchRecord) {
+            return;
+        }
 
-                newXSet = new HashSet<>(switchRecord.getXAddressSet());
-                newXSet.addAll(recordAddresses);
-                newYSet = new HashSet<>(switchRecord.getYAddressSet());
-                newYSet.removeAll(recordAddresses);
+        switchRecord.cancelLeave();
+        LOG.info("leaveTimerExpired() - No member of group " + switchRecord.getMcastAddress() + " left on port "
+                + port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue());
+        this.applyGroupRecord(switchRecord, RecordType.CHANGE_TO_INCLUDE_MODE, Collections.<InetAddress>emptyList(),
+                port);
+        this.updateDesiredReceptionState();
+    }
 
-                for (InetAddress addr : newXSet) {
-                    if (recordAddresses.contains(addr)) {
-                        newXSourceRecords.add(new SourceRecord(addr, this.provider.igmpGroupMembershipInterval));
-                    } else {
-                        newXSourceRecords.add(new SourceRecord(addr, switchRecord.getCurrSourceTimer(addr)));
-                    }
-                }
-                for (InetAddress addr : newYSet) {
-                    newYSourceRecords.add(new SourceRecord(addr, 0));
-                }
-                switchRecord.setXSourceRecords(newXSourceRecords);
-                switchRecord.setYSourceRecords(newYSourceRecords);
+    /**
+     * Applies a record to the membership of the host which sent it, in explicit host tracking mode. A host only
+     * changes its own membership, so no query is needed to confirm a leave. The record of the port is then rebuilt
+     * from the hosts which are still members of the group, and the group is pruned from the port as soon as its last
+     * host leaves.
+     */
+    private void processHostRecord(InstanceIdentifier<NodeConnector> port, InetAddress mcastAddress,
+            InetAddress reporter, RecordType recordType, List<InetAddress> sourceAddresses) {
+        if (mcastAddress == null || reporter == null || !IgmpStateMachine.hasTransition(recordType)
+                || !this.admitGroup(port, mcastAddress, recordType, sourceAddresses)) {
+            return;
+        }
+        Map<InetAddress, Map<InetAddress, MulticastMembershipRecord>> portHosts = this.hostRecords.get(port);
+        if (portHosts == null) {
+            portHosts = new HashMap<>();
+            this.hostRecords.put(port, portHosts);
+        }
+        Map<InetAddress, MulticastMembershipRecord> groupHosts = portHosts.get(mcastAddress);
+        if (groupHosts == null) {
+            groupHosts = new HashMap<>();
+            portHosts.put(mcastAddress, groupHosts);
+        }
+        MulticastMembershipRecord hostRecord = groupHosts.get(reporter);
+        if (hostRecord == null) {
+            hostRecord = new MulticastMembershipRecord(mcastAddress, this.provider.igmpGroupMembershipInterval);
+            groupHosts.put(reporter, hostRecord);
+        }
 
-                // TODO: Send Q(G, X-A)
-                // self.send_group_and_source_specific_query(event.port, igmp_group_record.multicast_address, router_group_record, query_addr_set)
-                // TODO: # Send Q(G)
-                // self.send_group_specific_query(event.port, igmp_group_record.multicast_address, router_group_record)
+        if (IgmpStateMachine.apply(hostRecord, recordType, this.limitSources(hostRecord, sourceAddresses),
+                this.provider.igmpGroupMembershipInterval, this.transitionActions)
+                && this.transitionActions.contains(TransitionActions.Action.DELETE_GROUP)) {
+            groupHosts.remove(reporter);
+        }
+
+        if (groupHosts.isEmpty()) {
+            portHosts.remove(mcastAddress);
+            if (portHosts.isEmpty()) {
+                this.hostRecords.remove(port);
+            }
+            if (this.multicastRecords.get(port) != null && this.multicastRecords.get(port).containsKey(mcastAddress)) {
+                NodeConnectorId portId = port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+                LOG.info("processHostRecord() - Last host " + reporter + " left group " + mcastAddress + " on port "
+                        + portId.getValue());
+                this.removeGroupRecord(port, mcastAddress);
             }
+            return;
         }
 
-        if (switchRecord.getFilterMode() == IgmpGroupRecord.RecordType.MODE_IS_INCLUDE && newXSourceRecords.isEmpty()) {
-            this.removeGroupRecord(ingressPort, packetRecord.getMcastAddress());
+        this.createMcastMembershipRecord(mcastAddress, port, this.provider.igmpGroupMembershipInterval)
+                .mergeHostRecords(groupHosts.values());
+    }
+
+    private void applyGroupRecord(MulticastMembershipRecord switchRecord, RecordType recordType,
+            List<InetAddress> sourceAddresses, InstanceIdentifier<NodeConnector> ingressPort) {
+        this.dirtyGroups.add(switchRecord.getMcastAddress());
+        if (recordType == RecordType.MODE_IS_EXCLUDE || recordType == RecordType.CHANGE_TO_EXCLUDE_MODE) {
+            // Another member of the group is still present on the port
+            switchRecord.cancelLeave();
+        }
+        if (!IgmpStateMachine.apply(switchRecord, recordType, sourceAddresses,
+                this.provider.igmpGroupMembershipInterval, this.transitionActions)) {
+            return;
+        }
+
+        // No membership queries are sent, see IgmpStateMachine
+        if (this.transitionActions.contains(TransitionActions.Action.DELETE_GROUP)) {
+            this.removeGroupRecord(ingressPort, switchRecord.getMcastAddress());
         }
     }
 
     public void removeGroupRecord(InstanceIdentifier<NodeConnector> port, InetAddress mcastAddr) {
         if (this.multicastRecords.get(port) != null) {
             if (this.multicastRecords.get(port).get(mcastAddr) != null) {
-                this.multicastRecords.get(port).remove(mcastAddr);
+                this.multicastRecords.get(port).remove(mcastAddr).cancelLeave();
+                this.dirtyGroups.add(mcastAddr);
 
                 if (this.multicastRecords.get(port).isEmpty()) {
                     this.multicastRecords.remove(port);
@@ -556,36 +890,104 @@ public class IgmpSwitchManager {
         }
     }
 
+    /**
+     * Installs the flows which send IGMP packets to the controller. Depending on the configured PuntMeterMode, IGMP
+     * packets are rate limited by a single meter for the whole switch, or by one meter per port (with the switch meter
+     * still applied to ports which are not yet known). Per port flows are installed as ports come up. Punted packets
+     * are truncated to IgmpPacket.MAX_PACKET_LEN.
+     */
     public void installIgmpMonitoringFlow(InstanceIdentifier<Table> tablePath) {
+        Long switchMeterId = null;
+        if (provider.igmpPuntMeterMode != PuntMeterMode.NONE) {
+            switchMeterId = SWITCH_PUNT_METER_ID;
+            installPuntMeter(SWITCH_PUNT_METER_ID);
+        }
+
+        submitPuntFlow(buildIgmpPuntFlow(tablePath, null, switchMeterId, IGMP_PUNT_PRIORITY, null), "all ports");
+    }
+
+    /**
+     * Installs the flows which send MLD messages to the controller, one per MLD message type since MLD is carried by
+     * ICMPv6. The flows share the switch punt meter installed by installIgmpMonitoringFlow().
+     */
+    public void installMldMonitoringFlow(InstanceIdentifier<Table> tablePath) {
+        Long switchMeterId = provider.igmpPuntMeterMode != PuntMeterMode.NONE ? SWITCH_PUNT_METER_ID : null;
+        for (short mldType : MldPacket.MLD_TYPES) {
+            submitPuntFlow(buildIgmpPuntFlow(tablePath, null, switchMeterId, IGMP_PUNT_PRIORITY, mldType),
+                    "MLD type " + mldType + ", all ports");
+        }
+    }
+
+    /**
+     * Installs a punt flow with a dedicated meter for a single port. Only used in PER_PORT mode.
+     */
+    public void installIgmpPortPuntFlow(NodeConnectorId port) {
+        if (provider.igmpPuntMeterMode != PuntMeterMode.PER_PORT || portPuntMeterIds.containsKey(port)) {
+            return;
+        }
+
+        long meterId = FIRST_PORT_PUNT_METER_ID + portPuntMeterIds.size();
+        portPuntMeterIds.put(port, meterId);
+        installPuntMeter(meterId);
+        InstanceIdentifier<Table> tablePath = this.node.augmentation(FlowCapableNode.class)
+                .child(Table.class, new TableKey(BloomflowProvider.FLOW_TABLE_ID));
+        submitPuntFlow(buildIgmpPuntFlow(tablePath, port, meterId, IGMP_PORT_PUNT_PRIORITY, null), port.getValue());
+        if (provider.mldEnabled) {
+            for (short mldType : MldPacket.MLD_TYPES) {
+                submitPuntFlow(buildIgmpPuntFlow(tablePath, port, meterId, IGMP_PORT_PUNT_PRIORITY, mldType),
+                        "MLD type " + mldType + ", " + port.getValue());
+            }
+        }
+    }
+
+    /**
+     * Builds a flow punting IGMP packets to the controller, or MLD messages of the given ICMPv6 type if mldType is
+     * not null.
+     */
+    private Flow buildIgmpPuntFlow(InstanceIdentifier<Table> tablePath, NodeConnectorId inPort, Long meterId,
+            int priority, Short mldType) {
         final short igmpProtocol = 0x2;
-        final int priority = 0;
+        final short icmpv6Protocol = PacketUtils.IP_PROTO_ICMPV6;
 
-        FlowId flowId = provider.getNextFlowId();
-        FlowKey flowKey = new FlowKey(flowId);
-        InstanceIdentifier<Flow> flowPath = tablePath.child(Flow.class, flowKey);
+        FlowId flowId = provider.getFlowIdAllocator().allocate(this.node);
         short tableId = tablePath.firstKeyOf(Table.class, TableKey.class).getId();
 
         // Install flow to forward all IGMP packets to controller
-        FlowBuilder allToCtrlFlow = new FlowBuilder().setTableId(tableId).setFlowName(
-                "allPacketsToCtrl").setId(flowId)
+        String flowName = mldType == null ? "igmpToCtrl" : "mld" + mldType + "ToCtrl";
+        if (inPort != null) {
+            flowName += "-" + inPort.getValue();
+        } else if (mldType == null) {
+            flowName = "allPacketsToCtrl";
+        }
+        FlowBuilder allToCtrlFlow = new FlowBuilder().setTableId(tableId).setFlowName(flowName).setId(flowId)
                 .setKey(new FlowKey(flowId));
 
         MatchBuilder matchBuilder = new MatchBuilder();
 
         EthernetMatchBuilder ethMatchBuilder = new EthernetMatchBuilder();
         EthernetTypeBuilder ethTypeBuilder = new EthernetTypeBuilder();
-        EtherType ethType = new EtherType(0x0800L);
+        EtherType ethType = new EtherType(mldType == null ? 0x0800L : PacketUtils.ETHERTYPE_IPV6);
         ethMatchBuilder.setEthernetType(ethTypeBuilder.setType(ethType).build());
         matchBuilder.setEthernetMatch(ethMatchBuilder.build());
 
         IpMatchBuilder ipMatchBuilder = new IpMatchBuilder();
-        ipMatchBuilder.setIpProto(IpVersion.Ipv4);
-        ipMatchBuilder.setIpProtocol(igmpProtocol);
+        if (mldType == null) {
+            ipMatchBuilder.setIpProto(IpVersion.Ipv4);
+            ipMatchBuilder.setIpProtocol(igmpProtocol);
+        } else {
+            ipMatchBuilder.setIpProto(IpVersion.Ipv6);
+            ipMatchBuilder.setIpProtocol(icmpv6Protocol);
+            matchBuilder.setIcmpv6Match(new Icmpv6MatchBuilder().setIcmpv6Type(mldType).build());
+        }
         matchBuilder.setIpMatch(ipMatchBuilder.build());
 
-        // Create output action -> send to controller
+        if (inPort != null) {
+            matchBuilder.setInPort(inPort);
+        }
+
+        // Create output action -> send to controller (no IGMP message of interest is longer than MAX_PACKET_LEN)
         OutputActionBuilder output = new OutputActionBuilder();
-        output.setMaxLength(Integer.valueOf(0xffff));
+        output.setMaxLength(Integer.valueOf(IgmpPacket.MAX_PACKET_LEN));
         Uri controllerPort = new Uri(OutputPortValues.CONTROLLER.toString());
         output.setOutputNodeConnector(controllerPort);
 
@@ -601,48 +1003,365 @@ public class IgmpSwitchManager {
         ApplyActionsBuilder aab = new ApplyActionsBuilder();
         aab.setAction(actionList);
 
+        List<Instruction> instructions = new ArrayList<>();
+        int instructionOrder = 0;
+
+        // Rate limit the punted packets before they are sent to the controller
+        if (meterId != null) {
+            InstructionBuilder meterInstruction = new InstructionBuilder();
+            meterInstruction.setInstruction(new MeterCaseBuilder().setMeter(
+                    new org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction
+                            .meter._case.MeterBuilder().setMeterId(new MeterId(meterId)).build()).build());
+            meterInstruction.setOrder(instructionOrder);
+            meterInstruction.setKey(new InstructionKey(instructionOrder));
+            instructions.add(meterInstruction.build());
+            instructionOrder++;
+        }
+
         // Wrap our Apply Action in an Instruction
         InstructionBuilder ib = new InstructionBuilder();
         ib.setInstruction(new ApplyActionsCaseBuilder().setApplyActions(aab.build()).build());
-        ib.setOrder(0);
-        ib.setKey(new InstructionKey(0));
+        ib.setOrder(instructionOrder);
+        ib.setKey(new InstructionKey(instructionOrder));
+        instructions.add(ib.build());
 
-        // Put our Instruction in a list of Instructions
+        // Put our Instructions in a list of Instructions
         InstructionsBuilder isb = new InstructionsBuilder();
-        List<Instruction> instructions = new ArrayList<>();
-        instructions.add(ib.build());
         isb.setInstruction(instructions);
 
-        allToCtrlFlow
+        return allToCtrlFlow
             .setMatch(matchBuilder.build())
             .setInstructions(isb.build())
             .setPriority(priority)
             .setBufferId(OFConstants.OFP_NO_BUFFER)
             .setHardTimeout(0)
             .setIdleTimeout(0)
-            .setFlags(new FlowModFlags(false, false, false, false, false));
+            .setFlags(new FlowModFlags(false, false, false, false, false))
+            .build();
+    }
+
+    /**
+     * Builds a flow dropping the IGMP packets (or MLD messages of the given type) received on a port, which takes
+     * precedence over the punt flows of the port.
+     */
+    private Flow buildIgmpBlockFlow(InstanceIdentifier<Table> tablePath, NodeConnectorId inPort, Short mldType) {
+        Flow puntFlow = buildIgmpPuntFlow(tablePath, inPort, null, IGMP_PORT_BLOCK_PRIORITY, mldType);
+        // A flow without instructions drops the packets it matches
+        return new FlowBuilder(puntFlow)
+                .setFlowName("block-" + puntFlow.getFlowName())
+                .setInstructions(new InstructionsBuilder().setInstruction(new ArrayList<Instruction>()).build())
+                .build();
+    }
+
+    private void submitPuntFlow(final Flow flow, final String description) {
+        InstanceIdentifier<Flow> flowPath = this.node.augmentation(FlowCapableNode.class)
+                .child(Table.class, new TableKey(flow.getTableId()))
+                .child(Flow.class, flow.getKey());
+
+        // Queued on the flow programmer, which batches it with other flow changes for the configured backend
+        tableOccupancy.flowsInstalled(1);
+        Futures.addCallback(provider.getFlowProgrammer().addFlow(flowPath, flow),
+                new FutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        LOG.info("submitPuntFlow() - Installed flow " + flow.getFlowName() + " ("
+                                + description + ") on " + getNodeIdStr());
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        tableOccupancy.flowsRemoved(1);
+                        provider.getFlowIdAllocator().release(node, flow.getId());
+                        LOG.error("submitPuntFlow() - Failed to install flow " + flow.getFlowName() + " ("
+                                + description + ") on " + getNodeIdStr() + ": " + throwable.getMessage());
+                    }
+                }, MoreExecutors.directExecutor());
+
+        LOG.info("submitPuntFlow() - Queued flow " + flow.getFlowName() + " (" + description + ")");
+    }
+
+    private void installPuntMeter(long meterId) {
+        MeterBandHeaderBuilder dropBand = new MeterBandHeaderBuilder()
+                .setBandId(new BandId(0L))
+                .setKey(new MeterBandHeaderKey(new BandId(0L)))
+                .setBandRate(provider.igmpPuntRatePps)
+                .setBandBurstSize(provider.igmpPuntBurstSize)
+                .setMeterBandTypes(new MeterBandTypesBuilder().setFlags(new MeterBandType(true, false, false)).build())
+                .setBandType(new DropBuilder()
+                        .setDropRate(provider.igmpPuntRatePps)
+                        .setDropBurstSize(provider.igmpPuntBurstSize)
+                        .build());
+        List<MeterBandHeader> bands = new ArrayList<>();
+        bands.add(dropBand.build());
+
+        Meter meter = new MeterBuilder()
+                .setKey(new MeterKey(new MeterId(meterId)))
+                .setMeterId(new MeterId(meterId))
+                .setMeterName("bloomflow-igmp-punt-" + meterId)
+                .setFlags(new MeterFlags(true, false, true, false))    // Burst, packets per second
+                .setMeterBandHeaders(new MeterBandHeadersBuilder().setMeterBandHeader(bands).build())
+                .build();
+        InstanceIdentifier<Meter> meterPath = this.node.augmentation(FlowCapableNode.class)
+                .child(Meter.class, meter.getKey());
+        provider.getFlowProgrammer().addMeter(meterPath, meter);
+    }
 
-        // DataBroker Approach
-        // ===================
-        ReadWriteTransaction addFlowTransaction = provider.getDataBroker().newReadWriteTransaction();
-        addFlowTransaction.put(LogicalDatastoreType.CONFIGURATION, flowPath, allToCtrlFlow.build(), true);
-        addFlowTransaction.submit();
+    /**
+     * Marks a port as up and enables IGMP processing on it. Called by the NodeConnectorListener when a port is added
+     * or comes back up.
+     */
+    public synchronized void portUp(NodeConnectorId portId) {
+        if (this.closed || portId.getValue().endsWith(":LOCAL")) {
+            return;
+        }
+
+        int portIndex = this.portDictionary.indexOf(portId);
+        if (!PortBitSets.get(this.portBits, portIndex)) {
+            this.portBits = PortBitSets.setGrow(this.portBits, portIndex);
+            if (this.provider.igmpFastLeave) {
+                this.fastLeavePortBits = PortBitSets.setGrow(this.fastLeavePortBits, portIndex);
+            }
+            LOG.info("portUp() - Added port: " + portId.getValue());
+        }
 
-        LOG.info("installIgmpMonitoringFlow() - Created forward IGMP packets to controller flow");
+        if (!PortBitSets.get(this.igmpEnabledPortBits, portIndex)) {
+            this.igmpEnabledPortBits = PortBitSets.setGrow(this.igmpEnabledPortBits, portIndex);
+            LOG.info("portUp() - Added IGMP enabled port: " + portId.getValue());
+            installIgmpPortPuntFlow(portId);
+        }
+    }
+
+    /**
+     * Disables IGMP processing on a port which went down, and immediately purges its membership records so that
+     * receivers behind the port do not keep multicast trees alive until their membership times out.
+     */
+    public void portDown(NodeConnectorId portId) {
+        disablePort(portId, false);
+        publishReceptionChanges();
     }
 
-    public void addIgmpPort(InstanceIdentifier<NodeConnector> port) {
-        if (!this.ports.contains(port)) {
-            ports.add(port);
-            LOG.info("addIgmpPort() - Added port: " + port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId());
+    /**
+     * Forgets a port which was removed from the switch, purging its membership records.
+     */
+    public void portRemoved(NodeConnectorId portId) {
+        disablePort(portId, true);
+        publishReceptionChanges();
+    }
+
+    private synchronized void disablePort(NodeConnectorId portId, boolean removed) {
+        if (this.closed || portId.getValue().endsWith(":LOCAL")) {
+            return;
+        }
+
+        // Ports which are down stay known, so that IGMP packets still in flight from them can be told apart from
+        // packets on ports not yet reported by the inventory
+        int portIndex = this.portDictionary.indexOf(portId);
+        if (removed) {
+            PortBitSets.clear(this.portBits, portIndex);
+            PortBitSets.clear(this.fastLeavePortBits, portIndex);
+        } else {
+            this.portBits = PortBitSets.setGrow(this.portBits, portIndex);
+        }
+        if (PortBitSets.get(this.igmpEnabledPortBits, portIndex)) {
+            PortBitSets.clear(this.igmpEnabledPortBits, portIndex);
+            LOG.info("disablePort() - Disabled IGMP on port: " + portId.getValue() + (removed ? " (removed)" : ""));
         }
 
-        if (!this.igmpEnabledPorts.contains(port)) {
-            igmpEnabledPorts.add(port);
-            LOG.info("addIgmpPort() - Added IGMP enabled port: " + port.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId());
+        InstanceIdentifier<NodeConnector> portPath = this.node.child(NodeConnector.class, new NodeConnectorKey(portId));
+        this.hostRecords.remove(portPath);
+        Map<InetAddress, MulticastMembershipRecord> portRecords = this.multicastRecords.remove(portPath);
+        if (portRecords != null) {
+            cancelLeaves(portRecords);
+            this.dirtyGroups.addAll(portRecords.keySet());
+            LOG.info("disablePort() - Purged membership records of port: " + portId.getValue());
+            this.updateDesiredReceptionState();
         }
     }
 
+    /**
+     * Enables or disables fast-leave on a port. IGMPv2 leaves received on fast-leave ports prune the group at once,
+     * which is only safe when a single host is attached to the port.
+     */
+    public synchronized void setFastLeave(NodeConnectorId portId, boolean fastLeave) {
+        int portIndex = this.portDictionary.indexOf(portId);
+        if (fastLeave) {
+            this.fastLeavePortBits = PortBitSets.setGrow(this.fastLeavePortBits, portIndex);
+        } else {
+            PortBitSets.clear(this.fastLeavePortBits, portIndex);
+        }
+        LOG.info("setFastLeave() - Fast-leave " + (fastLeave ? "enabled" : "disabled") + " on port: "
+                + portId.getValue());
+    }
+
+    /**
+     * Returns the number of group records and reports dropped by the group policy.
+     */
+    public synchronized long getPolicyDroppedRecords() {
+        return this.policyDroppedRecords;
+    }
+
+    private static void cancelLeaves(Map<InetAddress, MulticastMembershipRecord> portRecords) {
+        for (MulticastMembershipRecord record : portRecords.values()) {
+            record.cancelLeave();
+        }
+    }
+
+    /**
+     * Counts a malformed IGMP or MLD message received on the port, which was dropped by the decoder.
+     *
+     * If igmpMalformedBlockThreshold is set, a port sending that many malformed messages within igmpMalformedWindow
+     * seconds is blocked: drop flows taking precedence over its punt flows keep all of its membership messages away
+     * from the controller for igmpMalformedBlockTime seconds, so that a single misbehaving host cannot load the
+     * controller with packets it will only reject.
+     */
+    public synchronized void processMalformedPacket(NodeConnectorId portId, String protocol,
+            IgmpPacket.ParseError parseError) {
+        if (this.closed) {
+            return;
+        }
+
+        int portIndex = this.portDictionary.indexOf(portId);
+        if (portIndex >= this.malformedPacketCounts.length) {
+            int newLength = Math.max(portIndex + 1, this.malformedPacketCounts.length * 2);
+            this.malformedPacketCounts = Arrays.copyOf(this.malformedPacketCounts, newLength);
+            this.malformedWindowCounts = Arrays.copyOf(this.malformedWindowCounts, newLength);
+            this.malformedWindowStarts = Arrays.copyOf(this.malformedWindowStarts, newLength);
+        }
+        this.malformedPacketCounts[portIndex]++;
+        LOG.debug("processMalformedPacket() - Dropped malformed " + protocol + " packet (" + parseError + ") from port "
+                + portId.getValue() + ", " + this.malformedPacketCounts[portIndex] + " malformed packets so far");
+
+        int threshold = this.provider.igmpMalformedBlockThreshold;
+        if (threshold <= 0 || PortBitSets.get(this.blockedPortBits, portIndex)) {
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        long windowNanos = TimeUnit.SECONDS.toNanos(this.provider.igmpMalformedWindow);
+        if (this.malformedWindowCounts[portIndex] == 0
+                || nowNanos - this.malformedWindowStarts[portIndex] > windowNanos) {
+            this.malformedWindowStarts[portIndex] = nowNanos;
+            this.malformedWindowCounts[portIndex] = 0;
+        }
+        this.malformedWindowCounts[portIndex]++;
+        if (this.malformedWindowCounts[portIndex] >= threshold) {
+            blockPort(portId, portIndex);
+        }
+    }
+
+    private void blockPort(final NodeConnectorId portId, int portIndex) {
+        this.blockedPortBits = PortBitSets.setGrow(this.blockedPortBits, portIndex);
+        this.malformedWindowCounts[portIndex] = 0;
+
+        InstanceIdentifier<Table> tablePath = this.node.augmentation(FlowCapableNode.class)
+                .child(Table.class, new TableKey(BloomflowProvider.FLOW_TABLE_ID));
+        final List<Flow> blockFlows = new ArrayList<>();
+        blockFlows.add(buildIgmpBlockFlow(tablePath, portId, null));
+        if (provider.mldEnabled) {
+            for (short mldType : MldPacket.MLD_TYPES) {
+                blockFlows.add(buildIgmpBlockFlow(tablePath, portId, mldType));
+            }
+        }
+        for (Flow flow : blockFlows) {
+            submitPuntFlow(flow, "block " + portId.getValue());
+        }
+        this.portBlockFlows.put(portId, blockFlows);
+        LOG.warn("blockPort() - Blocked membership messages of port " + portId.getValue() + " on " + getNodeIdStr()
+                + " for " + provider.igmpMalformedBlockTime + " seconds after repeated malformed packets");
+
+        this.provider.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                unblockPort(portId, blockFlows);
+            }
+        }, provider.igmpMalformedBlockTime, TimeUnit.SECONDS);
+    }
+
+    synchronized void unblockPort(NodeConnectorId portId, List<Flow> blockFlows) {
+        if (this.closed || this.portBlockFlows.get(portId) != blockFlows) {
+            return;
+        }
+
+        this.portBlockFlows.remove(portId);
+        int portIndex = this.portDictionary.lookup(portId);
+        if (portIndex >= 0) {
+            PortBitSets.clear(this.blockedPortBits, portIndex);
+        }
+        for (Flow flow : blockFlows) {
+            InstanceIdentifier<Flow> flowPath = this.node.augmentation(FlowCapableNode.class)
+                    .child(Table.class, new TableKey(flow.getTableId()))
+                    .child(Flow.class, flow.getKey());
+            provider.getMcastRoutingManager().releaseFlowIdOnCompletion(this.node, flow.getId(),
+                    provider.getFlowProgrammer().removeFlow(flowPath, flow));
+            tableOccupancy.flowsRemoved(1);
+        }
+        LOG.info("unblockPort() - Unblocked membership messages of port " + portId.getValue() + " on "
+                + getNodeIdStr());
+    }
+
+    /**
+     * Returns the number of malformed IGMP and MLD messages received on the port.
+     */
+    public synchronized long getMalformedPacketCount(NodeConnectorId portId) {
+        int portIndex = this.portDictionary.lookup(portId);
+        return portIndex >= 0 && portIndex < this.malformedPacketCounts.length
+                ? this.malformedPacketCounts[portIndex] : 0;
+    }
+
+    /**
+     * Returns the number of reports for new groups ignored because of the REJECT membership limit policy.
+     */
+    public synchronized long getRejectedGroupJoins() {
+        return this.rejectedGroupJoins;
+    }
+
+    /**
+     * Returns the number of groups pruned to make room for new groups under the EVICT_LRU membership limit policy.
+     */
+    public synchronized long getEvictedGroups() {
+        return this.evictedGroups;
+    }
+
+    /**
+     * Returns the number of reported sources dropped because of igmpMaxSourcesPerGroup.
+     */
+    public synchronized long getRejectedSources() {
+        return this.rejectedSources;
+    }
+
+    public PortSet getIgmpEnabledPorts() {
+        return PortSet.fromBits(this.portDictionary, this.igmpEnabledPortBits);
+    }
+
+    /**
+     * Releases all of the membership state of a switch which left the network. The manager ignores any packet or port
+     * event delivered after it was closed. The caller is responsible for republishing the reception index.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        for (Map<InetAddress, MulticastMembershipRecord> portRecords : this.multicastRecords.values()) {
+            cancelLeaves(portRecords);
+        }
+        this.multicastRecords.clear();
+        this.hostRecords.clear();
+        this.membershipSummary.clear();
+        this.portPuntMeterIds.clear();
+        this.portBits = new long[0];
+        this.igmpEnabledPortBits = new long[0];
+        this.fastLeavePortBits = new long[0];
+        this.malformedPacketCounts = new long[0];
+        this.malformedWindowCounts = new int[0];
+        this.malformedWindowStarts = new long[0];
+        this.blockedPortBits = new long[0];
+        this.portBlockFlows.clear();
+        this.dirtyGroups.clear();
+        this.unpublishedGroups.clear();
+        this.undispatchedEvents.clear();
+        this.desiredReceptionState = null;
+        this.receptionSnapshot = new ReceptionStateSnapshot(this.node,
+                new HashMap<InetAddress, Map<NodeConnectorId, Set<InetAddress>>>(), this.portDictionary);
+        LOG.info("close() - Released membership state of node " + getNodeIdStr());
+    }
+
     /**
      * @return the nodeId
      */
@@ -650,35 +1369,49 @@ public class IgmpSwitchManager {
         return node;
     }
 
-    public void updateDesiredReceptionState() {
-
-        Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> newReceptionState = new HashMap<>();
+    /**
+     * Rebuilds the desired reception state of the groups whose records changed since the previous call, and queues
+     * the groups whose reception changed and the resulting event for publishReceptionChanges(). The state of all other
+     * groups is shared with the previous reception state, which is never modified once built.
+     */
+    private void updateDesiredReceptionState() {
+        Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> prevReceptionState = this.desiredReceptionState;
+        Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> newReceptionState = prevReceptionState == null
+                ? new HashMap<InetAddress, Map<NodeConnectorId, Set<InetAddress>>>()
+                : new HashMap<>(prevReceptionState);
+        newReceptionState.keySet().removeAll(this.dirtyGroups);
 
         for (InstanceIdentifier<NodeConnector> nodeConn : multicastRecords.keySet()) {
             NodeConnectorId portId = nodeConn.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+            Map<InetAddress, MulticastMembershipRecord> portRecords = multicastRecords.get(nodeConn);
 
-            for (InetAddress mcastAddress : multicastRecords.get(nodeConn).keySet()) {
-                MulticastMembershipRecord groupRecord = multicastRecords.get(nodeConn).get(mcastAddress);
+            for (InetAddress mcastAddress : this.dirtyGroups) {
+                MulticastMembershipRecord groupRecord = portRecords.get(mcastAddress);
+                if (groupRecord == null) {
+                    continue;
+                }
                 if (newReceptionState.get(mcastAddress) == null) {
                     newReceptionState.put(mcastAddress, new HashMap<NodeConnectorId, Set<InetAddress>>());
                 }
 
+                SourceTable sources = groupRecord.getSources();
                 if (groupRecord.getFilterMode() == RecordType.MODE_IS_INCLUDE) {
-                    for (SourceRecord sourceRecord : groupRecord.getXSourceRecords()) {
+                    for (int i = sources.nextSlot(0); i >= 0; i = sources.nextSlot(i + 1)) {
+                        if (sources.setAt(i) != SourceTable.X_SET) {
+                            continue;
+                        }
                         if (newReceptionState.get(mcastAddress).get(portId) == null) {
                             newReceptionState.get(mcastAddress).put(portId, new HashSet<InetAddress>());
                         }
-                        newReceptionState.get(mcastAddress).get(portId).add(sourceRecord.getSourceAddress());
+                        newReceptionState.get(mcastAddress).get(portId).add(sources.addressAt(i));
                     }
                 } else if (groupRecord.getFilterMode() == RecordType.MODE_IS_EXCLUDE) {
                     if (newReceptionState.get(mcastAddress).get(portId) == null) {
                         newReceptionState.get(mcastAddress).put(portId, new HashSet<InetAddress>());
                     }
-                    if (groupRecord.getXSourceRecords().size() == 0) {
-                        continue;
-                    } else {
-                        for (SourceRecord sourceRecord : groupRecord.getXSourceRecords()) {
-                            newReceptionState.get(mcastAddress).get(portId).add(sourceRecord.getSourceAddress());
+                    for (int i = sources.nextSlot(0); i >= 0; i = sources.nextSlot(i + 1)) {
+                        if (sources.setAt(i) == SourceTable.X_SET) {
+                            newReceptionState.get(mcastAddress).get(portId).add(sources.addressAt(i));
                         }
                     }
                 }
@@ -687,22 +1420,226 @@ public class IgmpSwitchManager {
 
         NodeId switchId = new NodeId(this.node.firstKeyOf(Node.class, NodeKey.class).getId());
         // LOG.info("Updated Desired Multicast Reception State: " + MulticastGroupEvent.receptionStateDebugStr(switchId, newReceptionState));
-        MulticastGroupEvent mcastEvent = new MulticastGroupEvent(switchId, newReceptionState);
 
-        if (this.desiredReceptionState == null) {
+        // Only the records of the dirty groups changed, so the reception of all other groups is unchanged
+        ReceptionStateSnapshot prevSnapshot = this.receptionSnapshot;
+        Set<InetAddress> changedGroups = new HashSet<>();
+        for (InetAddress mcastAddress : this.dirtyGroups) {
+            if (!Objects.equals(newReceptionState.get(mcastAddress), prevSnapshot.getState().get(mcastAddress))) {
+                changedGroups.add(mcastAddress);
+            }
+        }
+        this.dirtyGroups.clear();
+        this.desiredReceptionState = newReceptionState;
+        ReceptionStateSnapshot newSnapshot = prevSnapshot;
+        if (!changedGroups.isEmpty()) {
+            newSnapshot = prevSnapshot.withChangedGroups(newReceptionState, changedGroups);
+            this.receptionSnapshot = newSnapshot;
+            this.unpublishedGroups.addAll(changedGroups);
+        }
+
+        if (this.provider.igmpProxyReporting) {
+            dispatchProxySummaryEvent(switchId, changedGroups, newSnapshot);
+            return;
+        }
+
+        MulticastGroupEvent mcastEvent = new MulticastGroupEvent(switchId, newReceptionState, newSnapshot);
+        if (prevReceptionState == null) {
             LOG.info("Desired reception state was previously null: " + MulticastGroupEvent.receptionStateDebugStr(switchId, newReceptionState));
-            this.provider.getMcastRoutingManager().processMulticastGroupEvent(mcastEvent);
-        } else if (!MulticastGroupEvent.equalReceptionState(newReceptionState, this.desiredReceptionState)) {
+            this.undispatchedEvents.add(mcastEvent);
+        } else if (!changedGroups.isEmpty()) {
             LOG.info("Desired reception state changed from previous updateDesiredReceptionState() call: " + MulticastGroupEvent.receptionStateDebugStr(switchId, newReceptionState));
-            this.provider.getMcastRoutingManager().processMulticastGroupEvent(mcastEvent);
+            this.undispatchedEvents.add(mcastEvent);
         } else {
             LOG.info("Desired receptioon state is identical to previous updateDesiredReceptionState() call");
         }
+    }
 
-        this.desiredReceptionState = newReceptionState;
+    /**
+     * Publishes the queued reception changes to the network wide reception index, then dispatches the queued events to
+     * the routing manager, which reads the reception state back through the index. Called by every entry point which
+     * may change the membership state once it released the switch manager lock, so that neither the index rebuild nor
+     * the routing of the changes hold up packet processing on this switch.
+     */
+    private void publishReceptionChanges() {
+        synchronized (this.publicationLock) {
+            Set<InetAddress> changedGroups;
+            List<MulticastGroupEvent> events;
+            synchronized (this) {
+                if (this.unpublishedGroups.isEmpty() && this.undispatchedEvents.isEmpty()) {
+                    return;
+                }
+                changedGroups = new HashSet<>(this.unpublishedGroups);
+                events = new ArrayList<>(this.undispatchedEvents);
+                this.unpublishedGroups.clear();
+                this.undispatchedEvents.clear();
+            }
+
+            if (!changedGroups.isEmpty()) {
+                this.provider.publishReceptionState(changedGroups);
+            }
+            for (MulticastGroupEvent mcastEvent : events) {
+                this.provider.getMcastRoutingManager().processMulticastGroupEvent(mcastEvent);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the per switch membership summary, and notifies the routing manager only of the groups whose summary
+     * or per port reception state actually changed. Changes which leave the summary untouched (e.g. a second host
+     * joining a group on another port) are reported as port changes, which only affect flows already forwarded
+     * through this switch.
+     */
+    private void dispatchProxySummaryEvent(NodeId switchId, Set<InetAddress> receptionChangedGroups,
+            ReceptionStateSnapshot newSnapshot) {
+        Map<InetAddress, GroupMembershipSummary> newSummary = buildMembershipSummary();
+
+        Set<InetAddress> summaryChangedGroups = new HashSet<>(newSummary.keySet());
+        summaryChangedGroups.addAll(this.membershipSummary.keySet());
+        for (InetAddress mcastAddr : new ArrayList<>(summaryChangedGroups)) {
+            if (Objects.equals(newSummary.get(mcastAddr), this.membershipSummary.get(mcastAddr))) {
+                summaryChangedGroups.remove(mcastAddr);
+            }
+        }
+
+        Set<InetAddress> portChangedGroups = new HashSet<>(receptionChangedGroups);
+        portChangedGroups.removeAll(summaryChangedGroups);
+        this.membershipSummary = newSummary;
+
+        if (summaryChangedGroups.isEmpty() && portChangedGroups.isEmpty()) {
+            LOG.info("dispatchProxySummaryEvent() - Membership summary and port state unchanged");
+            return;
+        }
+
+        LOG.info("dispatchProxySummaryEvent() - Summary changed for groups " + summaryChangedGroups
+                + ", port state changed for groups " + portChangedGroups);
+        this.undispatchedEvents.add(new MulticastGroupEvent(switchId, this.desiredReceptionState, newSnapshot,
+                summaryChangedGroups, portChangedGroups));
+    }
+
+    private Map<InetAddress, GroupMembershipSummary> buildMembershipSummary() {
+        Map<InetAddress, List<MulticastMembershipRecord>> recordsByGroup = new HashMap<>();
+        for (Map<InetAddress, MulticastMembershipRecord> portRecords : multicastRecords.values()) {
+            for (MulticastMembershipRecord record : portRecords.values()) {
+                if (!recordsByGroup.containsKey(record.getMcastAddress())) {
+                    recordsByGroup.put(record.getMcastAddress(), new ArrayList<MulticastMembershipRecord>());
+                }
+                recordsByGroup.get(record.getMcastAddress()).add(record);
+            }
+        }
+
+        Map<InetAddress, GroupMembershipSummary> summary = new HashMap<>();
+        for (InetAddress mcastAddr : recordsByGroup.keySet()) {
+            GroupMembershipSummary groupSummary = GroupMembershipSummary.merge(recordsByGroup.get(mcastAddr));
+            if (groupSummary != null) {
+                summary.put(mcastAddr, groupSummary);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Answers an IGMPv3 query on behalf of all of the ports of this switch, using the merged membership summary. The
+     * report is sent back out of the port the query was received on.
+     */
+    private void answerMembershipQuery(IgmpPacket query, InstanceIdentifier<NodeConnector> queryPort)
+            throws UnknownHostException {
+        List<IgmpGroupRecord> records = new ArrayList<>();
+        InetAddress queryGroup = query.getAddress();
+
+        if (queryGroup.equals(InetAddress.getByName("0.0.0.0"))) {
+            for (InetAddress mcastAddr : membershipSummary.keySet()) {
+                // MLD groups are not proxied, IGMP reports can only describe IPv4 groups
+                if (mcastAddr instanceof Inet4Address) {
+                    records.add(membershipSummary.get(mcastAddr).toGroupRecord(mcastAddr));
+                }
+            }
+        } else if (membershipSummary.containsKey(queryGroup)) {
+            GroupMembershipSummary summary = membershipSummary.get(queryGroup);
+            if (query.getSourceAddresses().isEmpty()) {
+                records.add(summary.toGroupRecord(queryGroup));
+            } else {
+                // Group and source specific query, only the queried sources which are still forwarded are reported
+                Set<InetAddress> forwarded = summary.getForwardedSources(query.getSourceAddresses());
+                if (!forwarded.isEmpty()) {
+                    records.add(GroupMembershipSummary.buildGroupRecord(queryGroup, RecordType.MODE_IS_INCLUDE,
+                            forwarded));
+                }
+            }
+        }
+
+        if (records.isEmpty()) {
+            LOG.debug("answerMembershipQuery() - No membership to report for query on group " + queryGroup);
+            return;
+        }
+
+        int maxIgmpLen = PROXY_REPORT_MAX_IP_LEN - PacketUtils.IPV4_RA_HEADER_LEN;
+        int maxSources = (maxIgmpLen - IGMP_V3_REPORT_HEADER_LEN - IGMP_GROUP_RECORD_HEADER_LEN) / 4;
+        List<IgmpGroupRecord> reportRecords = new ArrayList<>();
+        int reportLen = IGMP_V3_REPORT_HEADER_LEN;
+        for (IgmpGroupRecord record : splitGroupRecord(records, maxSources)) {
+            int recordLen = IGMP_GROUP_RECORD_HEADER_LEN + 4 * record.getNumSources();
+            if (!reportRecords.isEmpty() && reportLen + recordLen > maxIgmpLen) {
+                sendMembershipReport(reportRecords, queryPort);
+                reportRecords = new ArrayList<>();
+                reportLen = IGMP_V3_REPORT_HEADER_LEN;
+            }
+            reportRecords.add(record);
+            reportLen += recordLen;
+        }
+        sendMembershipReport(reportRecords, queryPort);
+    }
+
+    /**
+     * Splits group records with too many sources to fit in a single report (RFC 3376, section 4.2.16). INCLUDE records
+     * are split into several records, while EXCLUDE records are truncated since splitting them would change their
+     * meaning.
+     */
+    private static List<IgmpGroupRecord> splitGroupRecord(List<IgmpGroupRecord> records, int maxSources) {
+        List<IgmpGroupRecord> splitRecords = new ArrayList<>();
+        for (IgmpGroupRecord record : records) {
+            List<InetAddress> sources = record.getSourceAddresses();
+            if (sources.size() <= maxSources) {
+                splitRecords.add(record);
+            } else if (record.getRecordType() == RecordType.MODE_IS_EXCLUDE) {
+                LOG.warn("splitGroupRecord() - Truncating EXCLUDE record for " + record.getMcastAddress() + " to "
+                        + maxSources + " sources");
+                splitRecords.add(GroupMembershipSummary.buildGroupRecord(record.getMcastAddress(),
+                        record.getRecordType(), new HashSet<>(sources.subList(0, maxSources))));
+            } else {
+                for (int i = 0; i < sources.size(); i += maxSources) {
+                    splitRecords.add(GroupMembershipSummary.buildGroupRecord(record.getMcastAddress(),
+                            record.getRecordType(),
+                            new HashSet<>(sources.subList(i, Math.min(i + maxSources, sources.size())))));
+                }
+            }
+        }
+        return splitRecords;
+    }
+
+    private void sendMembershipReport(List<IgmpGroupRecord> records, InstanceIdentifier<NodeConnector> egressPort)
+            throws UnknownHostException {
+        IgmpPacket report = PacketPool.encodeIgmp();
+        report.setMessageType(IgmpPacket.MessageType.MEMBERSHIP_REPORT_V3);
+        report.setGroupRecords(records);
+        report.setNumGroupRecords((char) records.size());
+
+        // The frame is handed over to the transmit RPC, so only the pack buffer can be reused
+        ByteBuffer packBuffer = PacketPool.encodeBuffer();
+        int igmpLen = report.packMessage(packBuffer, true);
+        byte[] frame = PacketUtils.buildIgmpFrame(PROXY_REPORT_SRC_MAC, InetAddress.getByName(PROXY_REPORT_SRC_IP),
+                InetAddress.getByName(report.IGMP_ADDRESS), packBuffer.array(), igmpLen);
+
+        this.provider.transmitPacket(egressPort, frame);
+        LOG.debug("sendMembershipReport() - Sent proxy report with " + records.size() + " group records to port "
+                + egressPort.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId());
+    }
+
+    public PortSet getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr) {
+        return this.receptionSnapshot.getReceptionPorts(mcastDstAddr, srcAddr);
     }
 
-    public Set<NodeConnectorId> getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr) {
-        return MulticastGroupEvent.getReceptionPorts(mcastDstAddr, srcAddr, this.desiredReceptionState);
+    public ReceptionStateSnapshot getReceptionSnapshot() {
+        return this.receptionSnapshot;
     }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//======================================================================
+//
+//          MLDv1 - Query, Report and Done Messages (RFC 2710)
+//
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |     Type      |     Code      |          Checksum             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |     Maximum Response Delay    |          Reserved             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                                                               |
+// +                                                               +
+// |                       Multicast Address                       |
+// +                                                               +
+// |                          (16 bytes)                           |
+// +                                                               +
+// |                                                               |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// MLDv2 queries append the S flag, QRV, QQIC, the number of sources and
+// the source addresses to the MLDv1 query (RFC 3810, section 5.1).
+//
+//======================================================================
+//
+//              MLDv2 - Multicast Listener Report Message
+//
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  Type = 143   |    Reserved   |           Checksum            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |           Reserved            |Nr of Mcast Address Records (M)|
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// .                                                               .
+// .                  Multicast Address Record [1]                 .
+// .                                                               .
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                               .                               |
+// .                               .                               .
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// .                                                               .
+// .                  Multicast Address Record [M]                 .
+// .                                                               .
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// Multicast address records have the layout of IGMPv3 group records
+// with 16 byte addresses, and are parsed into IgmpGroupRecords.
+//
+//======================================================================
+
+/**
+ * MLD message carried by an ICMPv6 packet. MLD is the IPv6 counterpart of IGMP: MLDv1 matches IGMPv2 and MLDv2
+ * matches IGMPv3, so MLD messages feed the same membership state as IGMP messages.
+ */
+public class MldPacket {
+    private static final Logger LOG = LoggerFactory.getLogger(MldPacket.class);
+
+    public enum MessageType {
+        UNIMITIALIZED_MESSAGE,
+        LISTENER_QUERY_V1,
+        LISTENER_QUERY_V2,
+        LISTENER_REPORT_V1,
+        LISTENER_DONE,
+        LISTENER_REPORT_V2,
+        UNKNOWN_TYPE
+    }
+
+    // ICMPv6 message types of MLD messages
+    public static final short TYPE_LISTENER_QUERY = 130;
+    public static final short TYPE_LISTENER_REPORT_V1 = 131;
+    public static final short TYPE_LISTENER_DONE = 132;
+    public static final short TYPE_LISTENER_REPORT_V2 = 143;
+    public static final short[] MLD_TYPES = {TYPE_LISTENER_QUERY, TYPE_LISTENER_REPORT_V1, TYPE_LISTENER_DONE,
+        TYPE_LISTENER_REPORT_V2};
+
+    public static final int MAX_PACKET_LEN = IgmpPacket.MAX_PACKET_LEN;
+
+    private static final int V1_MESSAGE_LEN = 24;
+    private static final int V2_QUERY_HDR_LEN = 28;
+    private static final int V2_REPORT_HDR_LEN = 8;
+    private static final int MIN_ADDRESS_RECORD_LEN = 4 + IgmpGroupRecord.IPV6_ADDRESS_LEN;
+
+    private MessageType messageType;
+    private char csum;
+    private char maxResponseDelay;
+    private InetAddress address;
+    private List<InetAddress> sourceAddresses;
+    private List<IgmpGroupRecord> groupRecords;
+
+    private int dataLenBytes;
+    private IgmpPacket.ParseError parseError;
+
+    // Group records created by previous parses, reused by parseMessage()
+    private final List<IgmpGroupRecord> spareRecords;
+    private final byte[] ipReadBytes;
+
+    public MldPacket() {
+        sourceAddresses = new ArrayList<InetAddress>();
+        groupRecords = new ArrayList<IgmpGroupRecord>();
+        spareRecords = new ArrayList<IgmpGroupRecord>();
+        ipReadBytes = new byte[IgmpGroupRecord.IPV6_ADDRESS_LEN];
+        reset();
+    }
+
+    /**
+     * Returns the packet to its initial state so that it can be reused to parse another message.
+     */
+    public void reset() {
+        messageType = MessageType.UNIMITIALIZED_MESSAGE;
+        csum = 0;
+        maxResponseDelay = 0;
+        address = null;
+        sourceAddresses.clear();
+        for (IgmpGroupRecord record : groupRecords) {
+            record.reset();
+            spareRecords.add(record);
+        }
+        groupRecords.clear();
+        dataLenBytes = 0;
+        parseError = IgmpPacket.ParseError.NONE;
+    }
+
+    public MldPacket(final byte[] payloadBytes) {
+        this();
+        parseMessage(payloadBytes);
+    }
+
+    /**
+     * Returns true if the ICMPv6 type is the type of an MLD message.
+     */
+    public static boolean isMldType(int icmpv6Type) {
+        for (short type : MLD_TYPES) {
+            if (type == icmpv6Type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int parseMessage(final byte[] payloadBytes) {
+        return parseMessage(payloadBytes, 0, payloadBytes.length);
+    }
+
+    /**
+     * Parses the MLD message held in length bytes of payloadBytes starting at offset, at its ICMPv6 header. Returns the
+     * number of bytes processed. The packet is reset first, so a single packet can be reused for every message.
+     * Messages whose declared lengths do not fit in the message are parsed as UNKNOWN_TYPE, see getParseError().
+     */
+    public int parseMessage(final byte[] payloadBytes, int offset, int length) {
+        reset();
+        dataLenBytes = length;
+        parseError = validateMessage(payloadBytes, offset, length);
+        if (parseError != IgmpPacket.ParseError.NONE) {
+            messageType = MessageType.UNKNOWN_TYPE;
+            LOG.debug("parseMessage() - Rejected MLD message (" + parseError + "), length: " + dataLenBytes);
+            return 0;
+        }
+
+        ByteBuffer readBuffer = ByteBuffer.wrap(payloadBytes, offset, length);
+        int type = readBuffer.get() & 0xff;
+        readBuffer.get();    // Skip code
+        csum = readBuffer.getChar();
+        int numBytesProcessed = 4;
+
+        if (type == TYPE_LISTENER_REPORT_V2) {
+            messageType = MessageType.LISTENER_REPORT_V2;
+            readBuffer.getChar(); // Skip reserved
+            int numRecords = readBuffer.getChar();
+            numBytesProcessed += 4;
+            for (int i = 0; i < numRecords; i++) {
+                IgmpGroupRecord newRecord = spareRecords.isEmpty() ? new IgmpGroupRecord()
+                        : spareRecords.remove(spareRecords.size() - 1);
+                numBytesProcessed += newRecord.parseRecord(payloadBytes, offset + numBytesProcessed,
+                        dataLenBytes - numBytesProcessed, IgmpGroupRecord.IPV6_ADDRESS_LEN);
+                groupRecords.add(newRecord);
+            }
+            return numBytesProcessed;
+        }
+
+        if ((type != TYPE_LISTENER_QUERY && type != TYPE_LISTENER_REPORT_V1 && type != TYPE_LISTENER_DONE)
+                || dataLenBytes < V1_MESSAGE_LEN) {
+            messageType = MessageType.UNKNOWN_TYPE;
+            return numBytesProcessed;
+        }
+
+        maxResponseDelay = readBuffer.getChar();
+        readBuffer.getChar(); // Skip reserved
+        address = readAddress(readBuffer, ipReadBytes);
+        numBytesProcessed += 20;
+
+        if (type == TYPE_LISTENER_REPORT_V1) {
+            messageType = MessageType.LISTENER_REPORT_V1;
+        } else if (type == TYPE_LISTENER_DONE) {
+            messageType = MessageType.LISTENER_DONE;
+        } else if (dataLenBytes >= V2_QUERY_HDR_LEN) {
+            messageType = MessageType.LISTENER_QUERY_V2;
+            readBuffer.get(); // Skip S flag and QRV
+            readBuffer.get(); // Skip QQIC
+            int numSources = readBuffer.getChar();
+            numBytesProcessed += 4;
+            for (int i = 0; i < numSources; i++) {
+                sourceAddresses.add(readAddress(readBuffer, ipReadBytes));
+                numBytesProcessed += IgmpGroupRecord.IPV6_ADDRESS_LEN;
+            }
+        } else {
+            messageType = MessageType.LISTENER_QUERY_V1;
+        }
+
+        LOG.debug("parseMessage() - numBytesProcessed: " + numBytesProcessed);
+        return numBytesProcessed;
+    }
+
+    /**
+     * Checks the lengths declared by the message against the length bytes available, in the same way as
+     * IgmpPacket.validateMessage(). The ICMPv6 checksum is not verified, as it covers the IPv6 pseudo header.
+     */
+    private static IgmpPacket.ParseError validateMessage(final byte[] payloadBytes, int offset, int length) {
+        if (length < V2_REPORT_HDR_LEN) {
+            return IgmpPacket.ParseError.TRUNCATED;
+        }
+
+        int type = payloadBytes[offset] & 0xff;
+        if (type == TYPE_LISTENER_REPORT_V2) {
+            int declaredNumRecords = ((payloadBytes[offset + 6] & 0xff) << 8) | (payloadBytes[offset + 7] & 0xff);
+            int recordBytes = length - V2_REPORT_HDR_LEN;
+            if (declaredNumRecords * MIN_ADDRESS_RECORD_LEN > recordBytes) {
+                return IgmpPacket.ParseError.BAD_RECORD_LENGTH;
+            }
+            int recordOffset = offset + V2_REPORT_HDR_LEN;
+            for (int i = 0; i < declaredNumRecords; i++) {
+                int recordLen = IgmpGroupRecord.measureRecord(payloadBytes, recordOffset, recordBytes,
+                        IgmpGroupRecord.IPV6_ADDRESS_LEN);
+                if (recordLen < 0) {
+                    return IgmpPacket.ParseError.BAD_RECORD_LENGTH;
+                }
+                recordOffset += recordLen;
+                recordBytes -= recordLen;
+            }
+        } else if (type == TYPE_LISTENER_QUERY || type == TYPE_LISTENER_REPORT_V1 || type == TYPE_LISTENER_DONE) {
+            if (length < V1_MESSAGE_LEN) {
+                return IgmpPacket.ParseError.TRUNCATED;
+            }
+            if (type == TYPE_LISTENER_QUERY && length >= V2_QUERY_HDR_LEN) {
+                int declaredNumSources = ((payloadBytes[offset + 26] & 0xff) << 8)
+                        | (payloadBytes[offset + 27] & 0xff);
+                if (V2_QUERY_HDR_LEN + declaredNumSources * IgmpGroupRecord.IPV6_ADDRESS_LEN > length) {
+                    return IgmpPacket.ParseError.BAD_SOURCE_COUNT;
+                }
+            }
+        }
+        return IgmpPacket.ParseError.NONE;
+    }
+
+    private static InetAddress readAddress(ByteBuffer readBuffer, byte[] addressBytes) {
+        readBuffer.get(addressBytes);
+        try {
+            return InetAddress.getByAddress(addressBytes);
+        } catch(Exception e) {
+            LOG.error("readAddress() - Exception getting IPv6 address [{}]", e.getMessage(), e);
+        }
+        return null;
+    }
+
+    public String debugStr() {
+        StringBuilder str = new StringBuilder();
+        str.append("MLD Message Type: " + messageType + "\n");
+        str.append("Checksum: 0x" + String.format("%04x", (int) csum) + "\n");
+        if (messageType == MessageType.LISTENER_REPORT_V2) {
+            for (IgmpGroupRecord record : groupRecords) {
+                str.append(record.debugStr());
+            }
+        } else if (messageType != MessageType.UNKNOWN_TYPE) {
+            str.append("Address: " + address);
+        }
+        return str.toString();
+    }
+
+    public MessageType getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * @return the csum
+     */
+    public char getCsum() {
+        return csum;
+    }
+
+    /**
+     * @return the maximum response delay of a query, in milliseconds
+     */
+    public char getMaxResponseDelay() {
+        return maxResponseDelay;
+    }
+
+    /**
+     * @return the multicast address of an MLDv1 message or MLDv2 query
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the sources of an MLDv2 query
+     */
+    public List<InetAddress> getSourceAddresses() {
+        return sourceAddresses;
+    }
+
+    /**
+     * @return the multicast address records of an MLDv2 report
+     */
+    public List<IgmpGroupRecord> getGroupRecords() {
+        return groupRecords;
+    }
+
+    public IgmpPacket.ParseError getParseError() {
+        return parseError;
+    }
+
+    public boolean isMalformed() {
+        return parseError != IgmpPacket.ParseError.NONE;
+    }
+
+    public int getDataLenBytes() {
+        return dataLenBytes;
+    }
+}
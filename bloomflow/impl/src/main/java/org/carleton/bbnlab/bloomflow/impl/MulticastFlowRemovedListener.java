@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.FlowAdded;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.FlowRemoved;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.FlowUpdated;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.NodeErrorNotification;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.NodeExperimenterErrorNotification;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowListener;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SwitchFlowRemoved;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.RemovedFlowReason;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for flow removed messages from the switches, so that the state of (S,G) flows whose ingress flow expired
+ * can be torn down.
+ *
+ * Depending on the openflowplugin version, flow removed messages are published either as FlowRemoved or as
+ * SwitchFlowRemoved notifications, so both are handled. Only flows which timed out on the switch are reported to the
+ * routing manager: flows deleted by the controller itself (e.g. the previous version of a tree) or along with their
+ * group are reported as well, and do not mean that the source stopped sending.
+ */
+public class MulticastFlowRemovedListener implements SalFlowListener {
+    private static final Logger LOG = LoggerFactory.getLogger(MulticastFlowRemovedListener.class);
+
+    private final MulticastRoutingManager routingManager;
+
+    public MulticastFlowRemovedListener(MulticastRoutingManager routingManager) {
+        this.routingManager = routingManager;
+    }
+
+    @Override
+    public void onFlowRemoved(FlowRemoved notification) {
+        if (notification.getNode() != null && isExpiry(notification.getRemovedReason())) {
+            LOG.debug("onFlowRemoved() - Flow removed with cookie " + notification.getCookie());
+            routingManager.processFlowRemoved(getNodePath(notification.getNode()), notification.getCookie());
+        }
+    }
+
+    @Override
+    public void onSwitchFlowRemoved(SwitchFlowRemoved notification) {
+        if (notification.getNode() != null && isExpiry(notification.getRemovedReason())) {
+            LOG.debug("onSwitchFlowRemoved() - Flow removed with cookie " + notification.getCookie());
+            routingManager.processFlowRemoved(getNodePath(notification.getNode()), notification.getCookie());
+        }
+    }
+
+    @Override
+    public void onFlowAdded(FlowAdded notification) {
+    }
+
+    @Override
+    public void onFlowUpdated(FlowUpdated notification) {
+    }
+
+    @Override
+    public void onNodeErrorNotification(NodeErrorNotification notification) {
+    }
+
+    @Override
+    public void onNodeExperimenterErrorNotification(NodeExperimenterErrorNotification notification) {
+    }
+
+    private static boolean isExpiry(RemovedFlowReason reason) {
+        return reason != null && (Boolean.TRUE.equals(reason.isOFPRRIDLETIMEOUT())
+                || Boolean.TRUE.equals(reason.isOFPRRHARDTIMEOUT()));
+    }
+
+    private static InstanceIdentifier<Node> getNodePath(NodeRef nodeRef) {
+        return nodeRef.getValue().firstIdentifierOf(Node.class);
+    }
+}
@@ -8,7 +8,6 @@
 package org.carleton.bbnlab.bloomflow.impl;
 
 import java.net.InetAddress;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
@@ -21,47 +20,28 @@ public class MulticastGroupEvent {
     NodeId receivingSwitch;
     // Note: An empty set in the map represents desired reception from all sources (i.e., non-source specific multicast)
     Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState;
+    ReceptionStateSnapshot receptionSnapshot;   // Same state indexed over the port bitsets of the switch
+    // Only set by switches performing proxy aggregation, null otherwise
+    Set<InetAddress> summaryChangedGroups;  // Groups whose merged membership summary for the switch changed
+    Set<InetAddress> portChangedGroups;     // Groups whose per port reception state changed without changing the summary
 
-    public MulticastGroupEvent(NodeId receivingSwitch, Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState) {
-        this.receivingSwitch = receivingSwitch;
-        this.desiredReceptionState = desiredReceptionState;
+    public MulticastGroupEvent(NodeId receivingSwitch, Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState,
+            ReceptionStateSnapshot receptionSnapshot) {
+        this(receivingSwitch, desiredReceptionState, receptionSnapshot, null, null);
     }
 
-    public static Set<NodeConnectorId> getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr,
-            Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState) {
-        Set<NodeConnectorId> portSet = new HashSet<>();
-
-        if (desiredReceptionState != null && desiredReceptionState.keySet().contains(mcastDstAddr)) {
-            Map<NodeConnectorId, Set<InetAddress>> groupReceptionState = desiredReceptionState.get(mcastDstAddr);
-            for (NodeConnectorId portId : groupReceptionState.keySet()) {
-                if (groupReceptionState.get(portId).size() == 0 || groupReceptionState.get(portId).contains(srcAddr)) {
-                    portSet.add(portId);
-                }
-            }
-        }
-
-        return portSet;
+    public MulticastGroupEvent(NodeId receivingSwitch, Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState,
+            ReceptionStateSnapshot receptionSnapshot, Set<InetAddress> summaryChangedGroups,
+            Set<InetAddress> portChangedGroups) {
+        this.receivingSwitch = receivingSwitch;
+        this.desiredReceptionState = desiredReceptionState;
+        this.receptionSnapshot = receptionSnapshot;
+        this.summaryChangedGroups = summaryChangedGroups;
+        this.portChangedGroups = portChangedGroups;
     }
 
-    public static boolean equalReceptionState(Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> state1,
-            Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> state2) {
-        if (!state1.keySet().equals(state2.keySet())) {
-            return false;
-        }
-
-        for (InetAddress mcastAddr : state1.keySet()) {
-            if (!state1.get(mcastAddr).keySet().equals(state2.get(mcastAddr).keySet())) {
-                return false;
-            }
-
-            for(NodeConnectorId portId : state1.get(mcastAddr).keySet()) {
-                if (!state1.get(mcastAddr).get(portId).equals(state2.get(mcastAddr).get(portId))) {
-                    return false;
-                }
-            }
-        }
-
-        return true;
+    public boolean isProxySummary() {
+        return summaryChangedGroups != null;
     }
 
     public static String receptionStateDebugStr(NodeId receivingSwitch, Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> desiredReceptionState) {
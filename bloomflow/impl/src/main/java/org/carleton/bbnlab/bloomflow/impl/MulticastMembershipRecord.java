@@ -8,11 +8,9 @@
 package org.carleton.bbnlab.bloomflow.impl;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 
 /* Class representing the group record state maintained by an IGMPv3 multicast router
  *
@@ -26,109 +24,155 @@ import java.util.Set;
  * Each source record is of the form:
  *
  * (source address, source timer)
+ *
+ * Source records are kept in a SourceTable indexed by source address, which also records whether each source is in
+ * the X or the Y set.
+ *
+ * The record also holds the group compatibility mode state of RFC 3376 section 7.3.2: the deadlines of the older host
+ * present timers for IGMPv1 and IGMPv2 hosts, and the pending leave started by an IGMPv2 leave message.
  */
 public class MulticastMembershipRecord {
     private InetAddress mcastAddress;
     private double groupTimer;
     private IgmpGroupRecord.RecordType filterMode;
-    private List<SourceRecord> xSourceRecords;
-    private List<SourceRecord> ySourceRecords;
+    private final SourceTable sources;
+
+    // Older host present timers, as System.nanoTime() deadlines which are only meaningful while the flag is set
+    private boolean v1HostPresent;
+    private long v1HostPresentDeadline;
+    private boolean v2HostPresent;
+    private long v2HostPresentDeadline;
+
+    // Leave started by an IGMPv2 leave message, superseded whenever the generation changes
+    private ScheduledFuture<?> leaveTimer;
+    private int leaveGeneration;
+
+    // System.nanoTime() of the last report for the group, used to evict the least recently reported groups
+    private long lastReportNanos;
 
     public MulticastMembershipRecord(InetAddress mcastAddress, double initialTimerValue) {
         this.mcastAddress = mcastAddress;
         groupTimer = initialTimerValue;
         filterMode = IgmpGroupRecord.RecordType.MODE_IS_INCLUDE;
-        xSourceRecords = new ArrayList<SourceRecord>();
-        ySourceRecords = new ArrayList<SourceRecord>();
+        sources = new SourceTable();
+        v1HostPresent = false;
+        v2HostPresent = false;
+        leaveTimer = null;
+        leaveGeneration = 0;
+        lastReportNanos = System.nanoTime();
     }
 
     public String debugStr() {
         String returnStr = "\tMembership Record [" + mcastAddress + ", " + groupTimer + "]\n";
-        returnStr += "\tFilter Mode: " + filterMode + "\n";
-        if(!xSourceRecords.isEmpty()) {
-            returnStr += "\tX Source Records:\n";
-            for (SourceRecord record : xSourceRecords) {
-                returnStr += record.debugStr();
-            }
+        returnStr += "\tFilter Mode: " + filterMode + ", Compatibility Mode: IGMPv"
+                + getCompatibilityMode(System.nanoTime()) + (leaveTimer != null ? ", Leave Pending" : "") + "\n";
+        if (sources.getNumX() > 0) {
+            returnStr += "\tX Source Records:\n" + sourcesDebugStr(SourceTable.X_SET);
         }
-        if(!ySourceRecords.isEmpty()) {
-            returnStr += "\tY Source Records:\n";
-            for (SourceRecord record : ySourceRecords) {
-                returnStr += record.debugStr();
-            }
+        if (sources.getNumY() > 0) {
+            returnStr += "\tY Source Records:\n" + sourcesDebugStr(SourceTable.Y_SET);
         }
-        if(xSourceRecords.isEmpty() && ySourceRecords.isEmpty()) {
+        if (sources.size() == 0) {
             returnStr += "\tNo Source Records\n";
         }
         return returnStr;
     }
 
+    private String sourcesDebugStr(byte set) {
+        String returnStr = "";
+        for (int i = sources.nextSlot(0); i >= 0; i = sources.nextSlot(i + 1)) {
+            if (sources.setAt(i) == set) {
+                returnStr += "\t\t[" + sources.addressAt(i) + ", " + sources.timerAt(i) + "]\n";
+            }
+        }
+        return returnStr;
+    }
+
     /**
      * Returns the current source timer for the specified IP address, or 0 if the specified IP is not known by this group record.
      */
     public double getCurrSourceTimer(InetAddress ipAddress) {
-        for (SourceRecord record : xSourceRecords) {
-            if (record.getSourceAddress() == ipAddress) {
-                return record.getSourceTimer();
-            }
-        }
-
-        return 0;
+        return sources.getTimer(ipAddress);
     }
 
     /**
-     * Returns the set of addresses in the X set of source records (see RFC 3376)
+     * Returns a copy of the set of addresses in the X set of source records (see RFC 3376)
      * Note: When in INCLUDE mode, all sources are stored in the X set.
      */
     public Set<InetAddress> getXAddressSet() {
-        Set<InetAddress> returnSet = new HashSet<InetAddress>();
-
-        for (SourceRecord record : xSourceRecords) {
-            returnSet.add(record.getSourceAddress());
-        }
-
-        return returnSet;
+        return sources.getAddressSet(SourceTable.X_SET);
     }
 
     /**
-     * Returns the set of addresses in the Y set of source records (see RFC 3376)
-     * Note: When in INCLUDE mode, his set should always be empty.
+     * Returns a copy of the set of addresses in the Y set of source records (see RFC 3376)
+     * Note: When in INCLUDE mode, this set should always be empty.
      */
     public Set<InetAddress> getYAddressSet() {
-        Set<InetAddress> returnSet = new HashSet<InetAddress>();
-
-        for (SourceRecord record : ySourceRecords) {
-            returnSet.add(record.getSourceAddress());
-        }
-
-        return returnSet;
+        return sources.getAddressSet(SourceTable.Y_SET);
     }
 
     /**
      * Removes the source record with the specified IP address from the group record
      */
     public boolean removeSourceRecord(InetAddress ipAddress) {
-        boolean removed  = false;
-
-        Iterator<SourceRecord> itr = xSourceRecords.iterator();
-        while(itr.hasNext()){
-            SourceRecord xRecord = itr.next();
-            if (xRecord.getSourceAddress().equals(ipAddress)) {
-                itr.remove();
-                removed = true;
+        return sources.remove(ipAddress);
+    }
+
+    /**
+     * @return the source records, which are modified in place by the IGMP state transitions
+     */
+    public SourceTable getSources() {
+        return sources;
+    }
+
+    /**
+     * Replaces the state of this record with the merge of the records of the individual hosts which reported
+     * membership on a port, in the same way an IGMP proxy merges its downstream interfaces (see RFC 4605, section
+     * 4.1). If any host is in EXCLUDE mode the record is in EXCLUDE mode, and its Y set only holds the sources
+     * excluded by every EXCLUDE mode host and requested by no host. The X set holds the sources requested by any host.
+     * Timers take the longest value found across the hosts.
+     */
+    public void mergeHostRecords(Collection<MulticastMembershipRecord> hostRecords) {
+        sources.clear();
+        filterMode = IgmpGroupRecord.RecordType.MODE_IS_INCLUDE;
+        groupTimer = 0;
+        MulticastMembershipRecord firstExcludeHost = null;
+        for (MulticastMembershipRecord host : hostRecords) {
+            groupTimer = Math.max(groupTimer, host.groupTimer);
+            if (host.filterMode == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE && firstExcludeHost == null) {
+                firstExcludeHost = host;
+                filterMode = IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE;
+            }
+            SourceTable hostSources = host.sources;
+            for (int i = hostSources.nextSlot(0); i >= 0; i = hostSources.nextSlot(i + 1)) {
+                if (hostSources.setAt(i) == SourceTable.X_SET) {
+                    InetAddress source = hostSources.addressAt(i);
+                    sources.put(source, SourceTable.X_SET, Math.max(hostSources.timerAt(i), sources.getTimer(source)));
+                }
             }
         }
 
-        itr = ySourceRecords.iterator();
-        while(itr.hasNext()){
-            SourceRecord yRecord = itr.next();
-            if (yRecord.getSourceAddress().equals(ipAddress)) {
-                itr.remove();
-                removed = true;
+        if (firstExcludeHost == null) {
+            return;
+        }
+        SourceTable candidates = firstExcludeHost.sources;
+        for (int i = candidates.nextSlot(0); i >= 0; i = candidates.nextSlot(i + 1)) {
+            InetAddress source = candidates.addressAt(i);
+            if (candidates.setAt(i) != SourceTable.Y_SET || sources.getSet(source) == SourceTable.X_SET) {
+                continue;
+            }
+            boolean excludedByAll = true;
+            for (MulticastMembershipRecord host : hostRecords) {
+                if (host.filterMode == IgmpGroupRecord.RecordType.MODE_IS_EXCLUDE
+                        && host.sources.getSet(source) != SourceTable.Y_SET) {
+                    excludedByAll = false;
+                    break;
+                }
+            }
+            if (excludedByAll) {
+                sources.put(source, SourceTable.Y_SET, 0);
             }
         }
-
-        return removed;
     }
 
     /**
@@ -174,30 +218,64 @@ public class MulticastMembershipRecord {
     }
 
     /**
-     * @return the xSourceRecords
+     * Returns the IGMP version the group is operating in (1, 2 or 3), which is the lowest version of the hosts heard
+     * from during the last Older Host Present Interval.
      */
-    public List<SourceRecord> getXSourceRecords() {
-        return xSourceRecords;
+    public int getCompatibilityMode(long nowNanos) {
+        if (v1HostPresent && nowNanos - v1HostPresentDeadline < 0) {
+            return 1;
+        }
+        if (v2HostPresent && nowNanos - v2HostPresentDeadline < 0) {
+            return 2;
+        }
+        return 3;
     }
 
     /**
-     * @param xSourceRecords the xSourceRecords to set
+     * Restarts the older host present timer of the specified IGMP version (1 or 2).
      */
-    public void setXSourceRecords(List<SourceRecord> xSourceRecords) {
-        this.xSourceRecords = xSourceRecords;
+    public void setOlderHostPresent(int version, long deadlineNanos) {
+        if (version == 1) {
+            v1HostPresent = true;
+            v1HostPresentDeadline = deadlineNanos;
+        } else {
+            v2HostPresent = true;
+            v2HostPresentDeadline = deadlineNanos;
+        }
+    }
+
+    public long getLastReportNanos() {
+        return lastReportNanos;
+    }
+
+    public void setLastReportNanos(long lastReportNanos) {
+        this.lastReportNanos = lastReportNanos;
     }
 
     /**
-     * @return the ySourceRecords
+     * Cancels any pending leave, and returns the generation a new leave timer must still match when it fires.
      */
-    public List<SourceRecord> getYSourceRecords() {
-        return ySourceRecords;
+    public int prepareLeave() {
+        cancelLeave();
+        return leaveGeneration;
+    }
+
+    public void setLeaveTimer(ScheduledFuture<?> leaveTimer) {
+        this.leaveTimer = leaveTimer;
+    }
+
+    public boolean isLeavePending(int generation) {
+        return leaveTimer != null && leaveGeneration == generation;
     }
 
     /**
-     * @param ySourceRecords the ySourceRecords to set
+     * Cancels the pending leave, if any. Leave timers which already fired see a new generation and do nothing.
      */
-    public void setYSourceRecords(List<SourceRecord> ySourceRecords) {
-        this.ySourceRecords = ySourceRecords;
+    public void cancelLeave() {
+        if (leaveTimer != null) {
+            leaveTimer.cancel(false);
+            leaveTimer = null;
+        }
+        leaveGeneration++;
     }
 }
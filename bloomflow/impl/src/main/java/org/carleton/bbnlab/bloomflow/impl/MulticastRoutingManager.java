@@ -8,6 +8,12 @@
 package org.carleton.bbnlab.bloomflow.impl;
 
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -17,11 +23,49 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
 import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.openflowplugin.api.OFConstants;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev130715.Ipv4Prefix;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev130715.Ipv6Prefix;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.GroupActionCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.group.action._case.GroupActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.statistics.rev130819.FlowStatisticsData;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowModFlags;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.InstructionsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.MatchBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.ApplyActionsCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.apply.actions._case.ApplyActionsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.Instruction;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.InstructionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.InstructionKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.l2.types.rev130827.EtherType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.ethernet.match.fields.EthernetTypeBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.EthernetMatchBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.layer._3.match.Ipv4MatchBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.layer._3.match.Ipv6MatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.TransmitPacketInputBuilder;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NetworkTopology;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Link;
@@ -35,6 +79,33 @@ import org.slf4j.LoggerFactory;
  */
 public class MulticastRoutingManager {
     public static final int STATIC_EDGE_WEIGHT = 1;
+    public static final int AGGREGATE_FLOW_PRIORITY = 50;
+
+    /**
+     * Aggregated (*,G) entry installed on a switch which did not have room for dedicated (S,G) flows. The entry
+     * replicates to the union of the output ports of every (S,G) record which was aggregated into it.
+     */
+    private class AggregateEntry {
+        public final Map<MulticastRoutingRecord, PortSet> contributions;
+        public PortSet outPorts;
+        public final FlowId flowId;
+        // Identifies the entry in the flow statistics, which may not report the flow under its flow ID
+        public final FlowCookie cookie;
+        public InstanceIdentifier<Flow> flowPath;
+        public Flow flow;
+        // Last packet count reported for the flow, see updateAggregateActivity()
+        public long packetCount;
+
+        public AggregateEntry(FlowId flowId, FlowCookie cookie, PortDictionary portDictionary) {
+            this.contributions = new HashMap<>();
+            this.outPorts = PortSet.empty(portDictionary);
+            this.flowId = flowId;
+            this.cookie = cookie;
+            this.flowPath = null;
+            this.flow = null;
+            this.packetCount = 0;
+        }
+    }
 
     private class WeightedEdge {
         public Link link;
@@ -109,6 +180,13 @@ public class MulticastRoutingManager {
     private final PacketProcessingService packetProcessingService;
     private final BloomflowProvider bloomflowProvider;
 
+    // Multicast group address -> Source address -> routing record
+    private final Map<InetAddress, Map<InetAddress, MulticastRoutingRecord>> routingRecords;
+    private final Map<Long, MulticastRoutingRecord> recordsById;
+    private final Map<InstanceIdentifier<Node>, ReplicationGroupTable> replicationGroupTables;
+    private final Map<InstanceIdentifier<Node>, Map<InetAddress, AggregateEntry>> aggregateEntries;
+    private long nextRecordId;
+
     public MulticastRoutingManager(final DataBroker dataBroker,
             final NotificationProviderService notificationService,
             final PacketProcessingService packetProcessingService,
@@ -117,12 +195,21 @@ public class MulticastRoutingManager {
         this.notificationService = notificationService;
         this.packetProcessingService = packetProcessingService;
         this.bloomflowProvider = bloomflowProvider;
+        this.routingRecords = new HashMap<>();
+        this.recordsById = new HashMap<>();
+        this.replicationGroupTables = new HashMap<>();
+        this.aggregateEntries = new HashMap<>();
+        this.nextRecordId = 1;
     }
 
     public Map<NodeId, Map<NodeId, WeightedEdge>> genWeightedEdgeMap(NetworkTopology topo) {
         Map<NodeId, Map<NodeId, WeightedEdge>> edgeMap = new HashMap<>();
         String debugStr = "\n";
 
+        if (topo.getTopology() == null || topo.getTopology().isEmpty() || topo.getTopology().get(0).getLink() == null) {
+            return edgeMap;
+        }
+
         for(Link link : topo.getTopology().get(0).getLink()) {
             NodeId srcNode = link.getSource().getSourceNode();
             NodeId dstNode = link.getDestination().getDestNode();
@@ -144,6 +231,10 @@ public class MulticastRoutingManager {
     public Set<NodeId> genNodeSet(NetworkTopology topo) {
         Set<NodeId> nodeSet = new HashSet<>();
 
+        if (topo.getTopology() == null || topo.getTopology().isEmpty() || topo.getTopology().get(0).getLink() == null) {
+            return nodeSet;
+        }
+
         for(Link link : topo.getTopology().get(0).getLink()) {
             if(!nodeSet.contains(link.getSource().getSourceNode())) {
                 nodeSet.add(link.getSource().getSourceNode());
@@ -271,8 +362,546 @@ public class MulticastRoutingManager {
         readOnlyTransaction.close();
     }
 
-    public void processMulticastGroupEvent(MulticastGroupEvent mcastEvent) {
+    public NetworkTopology readTopology() {
+        NetworkTopology topo = null;
+        ReadOnlyTransaction readOnlyTransaction = this.dataBroker.newReadOnlyTransaction();
+        InstanceIdentifier<NetworkTopology> topoIdentifier = InstanceIdentifier.builder(NetworkTopology.class).build();
+        try {
+            Optional<NetworkTopology> dataObjectOptional = readOnlyTransaction.read(LogicalDatastoreType.OPERATIONAL,
+                    topoIdentifier).get();
+            if (dataObjectOptional.isPresent()) {
+                topo = dataObjectOptional.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            LOG.error("readTopology() - Failed to read topology from Operational data store.");
+        }
+        readOnlyTransaction.close();
+        return topo;
+    }
+
+    /**
+     * Computes the forwarding state required on each switch to deliver the (S,G) flow of the specified record to all
+     * interested receivers, using the shortest path tree rooted at the ingress switch of the source.
+     *
+     * The ingress switch is always part of the returned plan. If there are no interested receivers, its set of output
+     * ports is empty and the traffic is dropped at ingress.
+     */
+    public Map<InstanceIdentifier<Node>, MulticastRoutingRecord.SwitchForwarding> calcForwardingPlan(
+            MulticastRoutingRecord record) {
+        Map<InstanceIdentifier<Node>, NodeConnectorId> inPorts = new HashMap<>();
+        Map<InstanceIdentifier<Node>, PortSet> outPorts = new HashMap<>();
+
+        InstanceIdentifier<Node> ingressNodePath = getNodePath(record.ingressNode);
+        inPorts.put(ingressNodePath, record.ingressPort);
+        outPorts.put(ingressNodePath, emptyPortSet(ingressNodePath));
+
+        Map<NodeId, Map<NodeId, WeightedEdge>> edgeMap = null;
+        Map<NodeId, ShortestPathNode> shortestPathMap = null;
+
+        for (Map.Entry<InstanceIdentifier<Node>, PortSet> receivers : bloomflowProvider
+                .getReceptionIndex().getReceivingSwitches(record.dstMcastAddr, record.srcAddr).entrySet()) {
+            PortSet receptionPorts = receivers.getValue();
+            NodeId receiverNode = new NodeId(receivers.getKey()
+                    .firstKeyOf(Node.class, NodeKey.class).getId().getValue());
+            if (!receiverNode.equals(record.ingressNode)) {
+                if (shortestPathMap == null) {
+                    NetworkTopology topo = readTopology();
+                    if (topo == null) {
+                        LOG.warn("calcForwardingPlan() - No topology available, only delivering to ingress switch");
+                        shortestPathMap = new HashMap<>();
+                        edgeMap = new HashMap<>();
+                    } else {
+                        edgeMap = genWeightedEdgeMap(topo);
+                        shortestPathMap = calcShortestPathTrees(record.ingressNode, edgeMap, genNodeSet(topo));
+                    }
+                }
+
+                ShortestPathNode pathNode = shortestPathMap.get(receiverNode);
+                if (pathNode == null) {
+                    LOG.warn("calcForwardingPlan() - No path from " + record.ingressNode.getValue() + " to "
+                            + receiverNode.getValue());
+                    continue;
+                }
+
+                for (int i = 0; i < pathNode.path.size() - 1; i++) {
+                    NodeId upstreamNode = pathNode.path.get(i);
+                    NodeId downstreamNode = pathNode.path.get(i + 1);
+                    Link link = edgeMap.get(upstreamNode).get(downstreamNode).link;
+                    InstanceIdentifier<Node> upstreamPath = getNodePath(upstreamNode);
+                    InstanceIdentifier<Node> downstreamPath = getNodePath(downstreamNode);
+
+                    if (!outPorts.containsKey(upstreamPath)) {
+                        outPorts.put(upstreamPath, emptyPortSet(upstreamPath));
+                    }
+                    outPorts.put(upstreamPath, outPorts.get(upstreamPath)
+                            .with(new NodeConnectorId(link.getSource().getSourceTp().getValue())));
+                    inPorts.put(downstreamPath, new NodeConnectorId(link.getDestination().getDestTp().getValue()));
+                    if (!outPorts.containsKey(downstreamPath)) {
+                        outPorts.put(downstreamPath, emptyPortSet(downstreamPath));
+                    }
+                }
+            }
+
+            InstanceIdentifier<Node> receiverPath = receivers.getKey();
+            if (!outPorts.containsKey(receiverPath)) {
+                outPorts.put(receiverPath, receptionPorts);
+            } else {
+                outPorts.put(receiverPath, outPorts.get(receiverPath).union(receptionPorts));
+            }
+        }
+
+        // Never replicate traffic back towards the source (or out of the port a switch receives it on)
+        Map<InstanceIdentifier<Node>, MulticastRoutingRecord.SwitchForwarding> plan = new HashMap<>();
+        for (Map.Entry<InstanceIdentifier<Node>, PortSet> entry : outPorts.entrySet()) {
+            PortSet ports = entry.getValue().without(inPorts.get(entry.getKey()));
+            plan.put(entry.getKey(), new MulticastRoutingRecord.SwitchForwarding(inPorts.get(entry.getKey()), ports));
+        }
+        return plan;
+    }
+
+    private PortSet emptyPortSet(InstanceIdentifier<Node> nodePath) {
+        return PortSet.empty(bloomflowProvider.getPortDictionary(nodePath));
+    }
+
+    /**
+     * Builds a multicast forwarding flow matching traffic to the specified group address. The source address and input
+     * port matches are omitted if null. Matching traffic is sent to the specified replication group, or dropped if
+     * groupId is null. The cookie is optional. If idleTimeout is non-zero, the switch removes the flow once no traffic
+     * has matched it for idleTimeout seconds and notifies the controller.
+     */
+    public static Flow buildMulticastFlow(FlowId flowId, InetAddress srcAddr, InetAddress dstMcastAddr,
+            NodeConnectorId inPort, Long groupId, int priority, FlowCookie cookie, int idleTimeout) {
+        MatchBuilder matchBuilder = new MatchBuilder();
+
+        EthernetMatchBuilder ethMatchBuilder = new EthernetMatchBuilder();
+        EthernetTypeBuilder ethTypeBuilder = new EthernetTypeBuilder();
+        if (dstMcastAddr instanceof Inet6Address) {
+            ethMatchBuilder.setEthernetType(ethTypeBuilder.setType(new EtherType((long) PacketUtils.ETHERTYPE_IPV6))
+                    .build());
+            matchBuilder.setEthernetMatch(ethMatchBuilder.build());
+
+            Ipv6MatchBuilder ipv6MatchBuilder = new Ipv6MatchBuilder();
+            ipv6MatchBuilder.setIpv6Destination(new Ipv6Prefix(dstMcastAddr.getHostAddress() + "/128"));
+            if (srcAddr != null) {
+                ipv6MatchBuilder.setIpv6Source(new Ipv6Prefix(srcAddr.getHostAddress() + "/128"));
+            }
+            matchBuilder.setLayer3Match(ipv6MatchBuilder.build());
+        } else {
+            ethMatchBuilder.setEthernetType(ethTypeBuilder.setType(new EtherType(0x0800L)).build());
+            matchBuilder.setEthernetMatch(ethMatchBuilder.build());
+
+            Ipv4MatchBuilder ipv4MatchBuilder = new Ipv4MatchBuilder();
+            ipv4MatchBuilder.setIpv4Destination(new Ipv4Prefix(dstMcastAddr.getHostAddress() + "/32"));
+            if (srcAddr != null) {
+                ipv4MatchBuilder.setIpv4Source(new Ipv4Prefix(srcAddr.getHostAddress() + "/32"));
+            }
+            matchBuilder.setLayer3Match(ipv4MatchBuilder.build());
+        }
+
+        if (inPort != null) {
+            matchBuilder.setInPort(inPort);
+        }
+
+        List<Action> actionList = new ArrayList<>();
+        if (groupId != null) {
+            ActionBuilder ab = new ActionBuilder();
+            ab.setAction(new GroupActionCaseBuilder().setGroupAction(
+                    new GroupActionBuilder().setGroupId(groupId).build()).build());
+            ab.setOrder(0);
+            ab.setKey(new ActionKey(0));
+            actionList.add(ab.build());
+        }
+
+        // Wrap our Apply Action in an Instruction (an empty action list drops the traffic)
+        InstructionBuilder ib = new InstructionBuilder();
+        ib.setInstruction(new ApplyActionsCaseBuilder().setApplyActions(
+                new ApplyActionsBuilder().setAction(actionList).build()).build());
+        ib.setOrder(0);
+        ib.setKey(new InstructionKey(0));
+
+        List<Instruction> instructions = new ArrayList<>();
+        instructions.add(ib.build());
+
+        FlowBuilder flowBuilder = new FlowBuilder();
+        if (cookie != null) {
+            flowBuilder.setCookie(cookie);
+        }
+
+        return flowBuilder
+                .setTableId(BloomflowProvider.FLOW_TABLE_ID)
+                .setFlowName("bloomflow-" + (srcAddr == null ? "*" : srcAddr.getHostAddress()) + "-"
+                        + dstMcastAddr.getHostAddress())
+                .setId(flowId)
+                .setKey(new FlowKey(flowId))
+                .setMatch(matchBuilder.build())
+                .setInstructions(new InstructionsBuilder().setInstruction(instructions).build())
+                .setPriority(priority)
+                .setBufferId(OFConstants.OFP_NO_BUFFER)
+                .setHardTimeout(0)
+                .setIdleTimeout(idleTimeout)
+                .setFlags(new FlowModFlags(false, false, false, false, idleTimeout > 0))
+                .build();
+    }
+
+    public static InstanceIdentifier<Node> getNodePath(NodeId nodeId) {
+        return InstanceIdentifier.create(Nodes.class).child(Node.class, new NodeKey(
+                new org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId(nodeId.getValue())));
+    }
+
+    /**
+     * Returns a flow ID to the allocator once the removal of the flow using it has completed, so that the ID cannot be
+     * reused by a flow queued before the removal.
+     */
+    public void releaseFlowIdOnCompletion(final InstanceIdentifier<Node> nodePath, final FlowId flowId,
+            ListenableFuture<Void> removalFuture) {
+        Futures.addCallback(removalFuture, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                bloomflowProvider.getFlowIdAllocator().release(nodePath, flowId);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // The flow may still be installed, so its ID is not recycled
+                LOG.warn("releaseFlowIdOnCompletion() - Failed to remove flow " + flowId.getValue() + ": "
+                        + throwable.getMessage());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    public synchronized long getNextRecordId() {
+        return nextRecordId++;
+    }
+
+    /**
+     * Called once the downstream switches of a new tree version have been programmed.
+     */
+    public synchronized void switchTreeIngress(MulticastRoutingRecord record, int newVersion) {
+        record.switchIngress(newVersion);
+    }
+
+    /**
+     * Called once the ingress switch of a new tree version has been programmed.
+     */
+    public synchronized void completeTreeMigration(MulticastRoutingRecord record, int newVersion) {
+        record.completeMigration(newVersion);
+        if (record.isTeardownRequested()) {
+            removeRoutingRecord(record);
+        }
+    }
+
+    public synchronized ReplicationGroupTable getReplicationGroupTable(InstanceIdentifier<Node> nodePath) {
+        ReplicationGroupTable groupTable = replicationGroupTables.get(nodePath);
+        if (groupTable == null) {
+            groupTable = new ReplicationGroupTable(nodePath, bloomflowProvider.getFlowProgrammer());
+            replicationGroupTables.put(nodePath, groupTable);
+        }
+        return groupTable;
+    }
+
+    /**
+     * Adds the output ports of an (S,G) record to the aggregated (*,G) entry on the specified switch, installing the
+     * entry if this is the first record aggregated into it.
+     */
+    public synchronized void addAggregateContribution(InstanceIdentifier<Node> nodePath, MulticastRoutingRecord record,
+            PortSet ports) {
+        if (!aggregateEntries.containsKey(nodePath)) {
+            aggregateEntries.put(nodePath, new HashMap<InetAddress, AggregateEntry>());
+        }
+
+        AggregateEntry entry = aggregateEntries.get(nodePath).get(record.dstMcastAddr);
+        if (entry == null) {
+            entry = new AggregateEntry(bloomflowProvider.getFlowIdAllocator().allocate(nodePath),
+                    MulticastRoutingRecord.buildCookie(getNextRecordId(), 0),
+                    bloomflowProvider.getPortDictionary(nodePath));
+            aggregateEntries.get(nodePath).put(record.dstMcastAddr, entry);
+            IgmpSwitchManager switchManager = bloomflowProvider.getSwitchManager(nodePath);
+            if (switchManager != null) {
+                switchManager.getTableOccupancy().flowsInstalled(1);
+            }
+        }
+
+        entry.contributions.put(record, ports);
+        updateAggregateEntry(nodePath, record.dstMcastAddr, entry);
+    }
+
+    public synchronized void removeAggregateContribution(InstanceIdentifier<Node> nodePath,
+            MulticastRoutingRecord record) {
+        Map<InetAddress, AggregateEntry> nodeEntries = aggregateEntries.get(nodePath);
+        AggregateEntry entry = nodeEntries == null ? null : nodeEntries.get(record.dstMcastAddr);
+        if (entry == null || entry.contributions.remove(record) == null) {
+            return;
+        }
+
+        if (entry.contributions.isEmpty()) {
+            releaseFlowIdOnCompletion(nodePath, entry.flowId,
+                    bloomflowProvider.getFlowProgrammer().removeFlow(entry.flowPath, entry.flow));
+            if (!entry.outPorts.isEmpty()) {
+                getReplicationGroupTable(nodePath).releaseGroup(entry.outPorts);
+            }
+            nodeEntries.remove(record.dstMcastAddr);
+            if (nodeEntries.isEmpty()) {
+                aggregateEntries.remove(nodePath);
+            }
+            IgmpSwitchManager switchManager = bloomflowProvider.getSwitchManager(nodePath);
+            if (switchManager != null) {
+                switchManager.getTableOccupancy().flowsRemoved(1);
+            }
+        } else {
+            updateAggregateEntry(nodePath, record.dstMcastAddr, entry);
+        }
+    }
+
+    private void updateAggregateEntry(InstanceIdentifier<Node> nodePath, InetAddress mcastAddr, AggregateEntry entry) {
+        PortSet unionPorts = PortSet.empty(bloomflowProvider.getPortDictionary(nodePath));
+        for (PortSet ports : entry.contributions.values()) {
+            unionPorts = unionPorts.union(ports);
+        }
+        if (entry.flow != null && unionPorts.equals(entry.outPorts)) {
+            return;
+        }
+
+        ReplicationGroupTable groupTable = getReplicationGroupTable(nodePath);
+        Long groupId = unionPorts.isEmpty() ? null : groupTable.acquireGroup(unionPorts);
+        entry.flowPath = MulticastRoutingRecord.getFlowPath(nodePath, entry.flowId);
+        entry.flow = buildMulticastFlow(entry.flowId, null, mcastAddr, null, groupId, AGGREGATE_FLOW_PRIORITY,
+                entry.cookie, 0);
+        bloomflowProvider.getFlowProgrammer().addFlow(entry.flowPath, entry.flow);
+
+        if (!entry.outPorts.isEmpty()) {
+            groupTable.releaseGroup(entry.outPorts);
+        }
+        entry.outPorts = unionPorts;
+    }
+
+    /**
+     * Handles a multicast data packet received by the controller. The first packet of an unknown (S,G) flow creates a
+     * routing record and installs its distribution tree. Packets of known flows which reach the controller because a
+     * switch had no room for their flows are forwarded through packet-out to the ports they should be replicated to.
+     */
+    public synchronized void processMulticastPacket(InetAddress srcAddr, InetAddress dstMcastAddr,
+            InstanceIdentifier<Node> ingressNodePath, NodeConnectorId ingressPort, byte[] payload) {
+        Map<InetAddress, MulticastRoutingRecord> groupRecords = routingRecords.get(dstMcastAddr);
+        if (groupRecords == null) {
+            groupRecords = new HashMap<>();
+            routingRecords.put(dstMcastAddr, groupRecords);
+        }
+
+        MulticastRoutingRecord record = groupRecords.get(srcAddr);
+        if (record == null) {
+            NodeId ingressNode = new NodeId(ingressNodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue());
+            record = new MulticastRoutingRecord(srcAddr, ingressPort, ingressNode, dstMcastAddr, this);
+            groupRecords.put(srcAddr, record);
+            recordsById.put(record.recordId, record);
+            LOG.info("processMulticastPacket() - New multicast source: (" + srcAddr + ", " + dstMcastAddr + ")");
+            record.installOpenflowRules();
+        }
+
+        record.lastActivityNanos = System.nanoTime();
+        MulticastRoutingRecord.SwitchForwarding forwarding = record.installedForwarding.get(ingressNodePath);
+        if (forwarding != null && forwarding.decision == FlowTableOccupancy.AdmissionDecision.FALLBACK) {
+            for (NodeConnectorId port : forwarding.outPorts) {
+                transmitPacket(ingressNodePath, port, payload);
+            }
+        }
+    }
+
+    /**
+     * Handles the expiry of a flow reported by a switch (removals requested by the controller are filtered out by the
+     * MulticastFlowRemovedListener). If the flow was the live ingress flow of an (S,G) tree, the source stopped
+     * sending, and the record is torn down (once its ongoing migration completes, if any). During a migration the
+     * live ingress flow is the one of the previous version until the new ingress flow has been submitted. Expiries of
+     * other flows (and flows not installed by this controller) are ignored.
+     */
+    public synchronized void processFlowRemoved(InstanceIdentifier<Node> nodePath, FlowCookie cookie) {
+        if (cookie == null || cookie.getValue().shiftRight(48).longValue() != MulticastRoutingRecord.COOKIE_PREFIX) {
+            return;
+        }
+
+        MulticastRoutingRecord record = recordsById.get(cookie.getValue().shiftRight(16).longValue() & 0xFFFFFFFFL);
+        if (record == null || record.isTeardownRequested() || !nodePath.equals(getNodePath(record.ingressNode))) {
+            return;
+        }
+
+        MulticastRoutingRecord.SwitchForwarding forwarding = record.installedForwarding.get(nodePath);
+        if (record.pendingForwarding != null) {
+            // The pending ingress forwarding is only admitted (and its decision set) by switchIngress()
+            MulticastRoutingRecord.SwitchForwarding pending = record.pendingForwarding.get(nodePath);
+            if (pending != null && pending.decision != null) {
+                forwarding = pending;
+            }
+        }
+        if (forwarding == null || !record.getVersionCookie(forwarding.version).equals(cookie)) {
+            return;
+        }
+
+        LOG.info("processFlowRemoved() - Multicast source expired: (" + record.srcAddr + ", " + record.dstMcastAddr
+                + ")");
+        if (record.pendingForwarding != null) {
+            record.requestTeardown();
+        } else {
+            removeRoutingRecord(record);
+        }
+    }
+
+    /**
+     * Tears down the records whose ingress flow is not installed (their ingress switch forwards them through the
+     * controller or an aggregated entry, or rejected them), and which saw no traffic for mcastFlowIdleTimeout seconds.
+     * Such records have no flow which could expire on the switch, so their activity is tracked by the controller:
+     * from the packets it receives for them, and from the packet counts of aggregated entries (see
+     * updateAggregateActivity()). Called periodically by the provider.
+     */
+    public synchronized void expireIdleRecords() {
+        long idleNanos = TimeUnit.SECONDS.toNanos(bloomflowProvider.mcastFlowIdleTimeout);
+        long now = System.nanoTime();
+        List<MulticastRoutingRecord> idleRecords = new ArrayList<>();
+        for (Map<InetAddress, MulticastRoutingRecord> groupRecords : routingRecords.values()) {
+            for (MulticastRoutingRecord record : groupRecords.values()) {
+                MulticastRoutingRecord.SwitchForwarding forwarding =
+                        record.installedForwarding.get(getNodePath(record.ingressNode));
+                if (record.pendingForwarding == null && forwarding != null
+                        && forwarding.decision != FlowTableOccupancy.AdmissionDecision.ADMIT
+                        && now - record.lastActivityNanos > idleNanos) {
+                    idleRecords.add(record);
+                }
+            }
+        }
+
+        for (MulticastRoutingRecord record : idleRecords) {
+            LOG.info("expireIdleRecords() - Multicast source idle: (" + record.srcAddr + ", " + record.dstMcastAddr
+                    + ")");
+            removeRoutingRecord(record);
+        }
+    }
+
+    /**
+     * Marks the records aggregated on their ingress switch as active if the packet count of their aggregated entry
+     * changed since the previous statistics of the BloomFlow table of the switch. The entry matches every source of
+     * the group, so traffic from any of them keeps all of them alive.
+     */
+    public synchronized void updateAggregateActivity(InstanceIdentifier<Node> nodePath, Table table) {
+        Map<InetAddress, AggregateEntry> nodeEntries = aggregateEntries.get(nodePath);
+        if (nodeEntries == null || table.getFlow() == null) {
+            return;
+        }
+
+        Map<FlowCookie, AggregateEntry> entriesByCookie = new HashMap<>();
+        for (AggregateEntry entry : nodeEntries.values()) {
+            entriesByCookie.put(entry.cookie, entry);
+        }
+        long now = System.nanoTime();
+        for (Flow flow : table.getFlow()) {
+            AggregateEntry entry = flow.getCookie() == null ? null : entriesByCookie.get(flow.getCookie());
+            FlowStatisticsData statistics = flow.getAugmentation(FlowStatisticsData.class);
+            if (entry == null || statistics == null || statistics.getFlowStatistics() == null
+                    || statistics.getFlowStatistics().getPacketCount() == null) {
+                continue;
+            }
+
+            long packetCount = statistics.getFlowStatistics().getPacketCount().getValue().longValue();
+            if (packetCount == entry.packetCount) {
+                continue;
+            }
+            entry.packetCount = packetCount;
+            for (MulticastRoutingRecord record : entry.contributions.keySet()) {
+                if (nodePath.equals(getNodePath(record.ingressNode))) {
+                    record.lastActivityNanos = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a switch which left the network from every distribution tree. The forwarding state of the switch is
+     * dropped without programming it, trees whose source was attached to the switch are torn down, and every other
+     * tree which went through the switch is recomputed once, after all of the state of the switch has been dropped.
+     */
+    public synchronized void processSwitchRemoved(InstanceIdentifier<Node> nodePath) {
+        NodeId nodeId = new NodeId(nodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue());
+        List<MulticastRoutingRecord> orphanedRecords = new ArrayList<>();
+        List<MulticastRoutingRecord> affectedRecords = new ArrayList<>();
+        for (Map<InetAddress, MulticastRoutingRecord> groupRecords : routingRecords.values()) {
+            for (MulticastRoutingRecord record : groupRecords.values()) {
+                boolean forwarded = record.dropSwitch(nodePath);
+                if (record.ingressNode.equals(nodeId)) {
+                    orphanedRecords.add(record);
+                } else if (forwarded) {
+                    affectedRecords.add(record);
+                }
+            }
+        }
+
+        // Aggregate entries and replication groups only existed on the removed switch
+        aggregateEntries.remove(nodePath);
+        replicationGroupTables.remove(nodePath);
+
+        for (MulticastRoutingRecord record : orphanedRecords) {
+            if (record.pendingForwarding != null) {
+                record.requestTeardown();
+            } else {
+                removeRoutingRecord(record);
+            }
+        }
+        for (MulticastRoutingRecord record : affectedRecords) {
+            record.installOpenflowRules();
+        }
+
+        LOG.info("processSwitchRemoved() - Removed " + nodeId.getValue() + ": tore down " + orphanedRecords.size()
+                + " trees sourced at the switch, recomputed " + affectedRecords.size() + " trees");
+    }
+
+    private void removeRoutingRecord(MulticastRoutingRecord record) {
+        record.removeOpenflowRules();
+        recordsById.remove(record.recordId);
+        Map<InetAddress, MulticastRoutingRecord> groupRecords = routingRecords.get(record.dstMcastAddr);
+        if (groupRecords != null) {
+            groupRecords.remove(record.srcAddr);
+            if (groupRecords.isEmpty()) {
+                routingRecords.remove(record.dstMcastAddr);
+            }
+        }
+    }
+
+    private void transmitPacket(InstanceIdentifier<Node> nodePath, NodeConnectorId egressPort, byte[] payload) {
+        InstanceIdentifier<NodeConnector> egressPath = nodePath.child(NodeConnector.class,
+                new NodeConnectorKey(egressPort));
+        TransmitPacketInputBuilder input = new TransmitPacketInputBuilder()
+                .setNode(new NodeRef(nodePath))
+                .setEgress(new NodeConnectorRef(egressPath))
+                .setPayload(payload);
+        this.packetProcessingService.transmitPacket(input.build());
+    }
+
+    /**
+     * Recomputes the distribution trees of every (S,G) flow affected by a change in the desired reception state of a
+     * switch: flows to any of the groups the switch has receivers for, and flows currently forwarded through the
+     * switch.
+     *
+     * Events from switches performing proxy aggregation identify the groups which actually changed. A change to the
+     * merged summary of a group may change its trees anywhere in the network, while a change confined to the ports of
+     * the switch only affects flows already forwarded through it.
+     */
+    public synchronized void processMulticastGroupEvent(MulticastGroupEvent mcastEvent) {
         LOG.info("MulticastRoutingManager received MulticastGroupEvent");
+        InstanceIdentifier<Node> eventNodePath = getNodePath(new NodeId(mcastEvent.receivingSwitch.getValue()));
+
+        for (Map<InetAddress, MulticastRoutingRecord> groupRecords : routingRecords.values()) {
+            for (MulticastRoutingRecord record : groupRecords.values()) {
+                boolean affected;
+                if (mcastEvent.isProxySummary()) {
+                    affected = mcastEvent.summaryChangedGroups.contains(record.dstMcastAddr)
+                            || (mcastEvent.portChangedGroups.contains(record.dstMcastAddr)
+                                    && record.installedForwarding.containsKey(eventNodePath));
+                } else {
+                    affected = mcastEvent.receptionSnapshot.getIndex().containsGroup(record.dstMcastAddr)
+                            || record.installedForwarding.containsKey(eventNodePath);
+                }
+
+                if (affected) {
+                    record.installOpenflowRules();
+                }
+            }
+        }
     }
 
     public BloomflowProvider getBloomflowProvider() {
@@ -7,41 +7,385 @@
  */
 package org.carleton.bbnlab.bloomflow.impl;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.math.BigInteger;
 import java.net.InetAddress;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.TableKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
-import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev130712.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * @author mininet
+ * Forwarding state for a single (S,G) multicast flow.
  *
+ * The record holds the distribution tree computed from the ingress switch of the source to every switch with
+ * interested receivers. On each switch of the tree, traffic is matched on (in_port, S, G) and replicated to the
+ * output ports of the switch through a shared OpenFlow ALL group (see ReplicationGroupTable).
+ *
+ * Changes to the tree are installed make-before-break. Every installation of the tree is a new version, and the flows
+ * of each version carry a cookie identifying the record and the version. A new flow on a switch takes a higher
+ * priority than the flow it replaces, so both versions can coexist on the switch and the new one takes over as soon
+ * as it is installed. The new flows are installed on the downstream switches first, then on the ingress switch, and
+ * the flows of the previous version are only removed (through a cookie-mask delete) once the new version has been
+ * confirmed by the flow programmer. Switches whose forwarding did not change keep their existing flows.
+ *
+ * Packets are not tagged with the tree version, so the ordering only holds at the ingress switch: once the new
+ * ingress flow is installed every packet follows the new tree, but packets already in flight may reach a downstream
+ * switch whose flow was replaced, and follow the new tree from there on.
+ *
+ * All methods must be called while holding the lock on the MulticastRoutingManager.
  */
 public class MulticastRoutingRecord {
+    private static final Logger LOG = LoggerFactory.getLogger(MulticastRoutingRecord.class);
+
+    public static final int MCAST_FLOW_PRIORITY = 100;
+    // Highest priority a replacement flow may take, see installSwitchForwarding()
+    public static final int MCAST_FLOW_MAX_PRIORITY = 0x7FFF;
+
+    // Cookie layout: 16 bit BloomFlow prefix | 32 bit record ID | 16 bit tree version
+    public static final long COOKIE_PREFIX = 0xB10FL;
+    public static final FlowCookie VERSION_COOKIE_MASK = new FlowCookie(new BigInteger("FFFFFFFFFFFFFFFF", 16));
+    public static final FlowCookie RECORD_COOKIE_MASK = new FlowCookie(new BigInteger("FFFFFFFFFFFF0000", 16));
+    private static final int VERSION_MASK = 0xFFFF;
+
+    /**
+     * Forwarding state of the record on a single switch of the distribution tree.
+     */
+    public static class SwitchForwarding {
+        public final NodeConnectorId inPort;
+        public final PortSet outPorts;
+        public FlowTableOccupancy.AdmissionDecision decision;
+        public int version;
+        public int priority;
+        public FlowId flowId;
+        public InstanceIdentifier<Flow> flowPath;
+        public Flow flow;
+
+        public SwitchForwarding(NodeConnectorId inPort, PortSet outPorts) {
+            this.inPort = inPort;
+            this.outPorts = outPorts;
+            this.decision = null;
+            this.version = 0;
+            this.priority = MCAST_FLOW_PRIORITY;
+            this.flowId = null;
+            this.flowPath = null;
+            this.flow = null;
+        }
+
+        public boolean samePorts(SwitchForwarding other) {
+            return (inPort == null ? other.inPort == null : inPort.equals(other.inPort))
+                    && outPorts.equals(other.outPorts);
+        }
+    }
+
     public InetAddress srcAddr;
     public NodeConnectorId ingressPort;
     public NodeId ingressNode;
     public InetAddress dstMcastAddr;
-    public Set<NodeId> installedFlowNodes;
+    public Map<InstanceIdentifier<Node>, SwitchForwarding> installedForwarding;
     public MulticastRoutingManager routingManager;
-    public FlowId flowId;
+    public final long recordId;
+
+    // Version of the tree in installedForwarding, and state of an ongoing migration to the next version
+    public int treeVersion;
+    public Map<InstanceIdentifier<Node>, SwitchForwarding> pendingForwarding;
+    private boolean recomputeRequested;
+    private boolean teardownRequested;
+    // Last traffic seen from the source while its ingress flow is not installed, see
+    // MulticastRoutingManager.expireIdleRecords()
+    public long lastActivityNanos;
 
     public MulticastRoutingRecord(InetAddress srcAddr, NodeConnectorId ingressPort, NodeId ingressNode,
             InetAddress dstMcastAddr, MulticastRoutingManager routingManager) {
         this.srcAddr = srcAddr;
         this.ingressPort = ingressPort;
+        this.ingressNode = ingressNode;
         this.dstMcastAddr = dstMcastAddr;
         this.routingManager = routingManager;
-        this.installedFlowNodes = new HashSet<>();
-        this.flowId = this.routingManager.getBloomflowProvider().getNextFlowId();
+        this.installedForwarding = new HashMap<>();
+        this.recordId = this.routingManager.getNextRecordId();
+        this.treeVersion = 0;
+        this.pendingForwarding = null;
+        this.recomputeRequested = false;
+        this.teardownRequested = false;
+        this.lastActivityNanos = System.nanoTime();
     }
 
+    /**
+     * Computes the current distribution tree for the record and installs it as a new version, only touching the
+     * switches on which the forwarding state has changed. If a migration is already in progress, the tree is
+     * recomputed again once it completes.
+     */
     public void installOpenflowRules() {
+        if (teardownRequested) {
+            return;
+        }
+        if (pendingForwarding != null) {
+            recomputeRequested = true;
+            return;
+        }
+
+        Map<InstanceIdentifier<Node>, SwitchForwarding> newForwarding = routingManager.calcForwardingPlan(this);
+        if (sameForwarding(newForwarding)) {
+            return;
+        }
+
+        final int newVersion = installedForwarding.isEmpty() ? treeVersion : (treeVersion + 1) & VERSION_MASK;
+        InstanceIdentifier<Node> ingressNodePath = MulticastRoutingManager.getNodePath(ingressNode);
+        List<ListenableFuture<Void>> downstreamFutures = new ArrayList<>();
+        pendingForwarding = newForwarding;
+
+        for (Map.Entry<InstanceIdentifier<Node>, SwitchForwarding> entry : newForwarding.entrySet()) {
+            SwitchForwarding previous = installedForwarding.get(entry.getKey());
+            if (previous != null && previous.samePorts(entry.getValue())) {
+                // Unchanged switches keep the flow of the version which installed it
+                entry.setValue(previous);
+            } else if (!entry.getKey().equals(ingressNodePath)) {
+                downstreamFutures.add(installSwitchForwarding(entry.getKey(), entry.getValue(), previous, newVersion));
+            }
+        }
+
+        // Traffic is only switched over to the new tree at the ingress once every downstream switch is ready for it
+        Futures.addCallback(Futures.successfulAsList(downstreamFutures), new FutureCallback<List<Void>>() {
+            @Override
+            public void onSuccess(List<Void> result) {
+                routingManager.switchTreeIngress(MulticastRoutingRecord.this, newVersion);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                routingManager.switchTreeIngress(MulticastRoutingRecord.this, newVersion);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Installs the new version of the tree on the ingress switch, and completes the migration once the flow
+     * programmer has confirmed it.
+     */
+    public void switchIngress(final int newVersion) {
+        InstanceIdentifier<Node> ingressNodePath = MulticastRoutingManager.getNodePath(ingressNode);
+        SwitchForwarding forwarding = pendingForwarding.get(ingressNodePath);
+        SwitchForwarding previous = installedForwarding.get(ingressNodePath);
+
+        // The ingress forwarding is missing if the ingress switch left the network during the migration
+        ListenableFuture<Void> ingressFuture = Futures.immediateFuture(null);
+        if (forwarding != null && forwarding != previous) {
+            ingressFuture = installSwitchForwarding(ingressNodePath, forwarding, previous, newVersion);
+        }
+
+        Futures.addCallback(ingressFuture, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                routingManager.completeTreeMigration(MulticastRoutingRecord.this, newVersion);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                LOG.warn("switchIngress() - Failed to install ingress flow for (" + srcAddr + ", " + dstMcastAddr
+                        + "): " + throwable.getMessage());
+                routingManager.completeTreeMigration(MulticastRoutingRecord.this, newVersion);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Removes the flows of the previous version from every switch on which they were replaced or are no longer
+     * needed, and makes the new version the installed tree.
+     */
+    public void completeMigration(int newVersion) {
+        for (Map.Entry<InstanceIdentifier<Node>, SwitchForwarding> entry : installedForwarding.entrySet()) {
+            SwitchForwarding replacement = pendingForwarding.get(entry.getKey());
+            if (replacement != entry.getValue()) {
+                removeSwitchForwarding(entry.getKey(), entry.getValue(), replacement);
+            }
+        }
+
+        installedForwarding = pendingForwarding;
+        pendingForwarding = null;
+        treeVersion = newVersion;
+        LOG.info("completeMigration() - " + debugStr());
 
+        if (recomputeRequested) {
+            recomputeRequested = false;
+            installOpenflowRules();
+        }
+    }
+
+    /**
+     * Drops the forwarding state of a switch which left the network from the installed and pending trees, without
+     * removing its flows. Returns true if the switch was part of either tree.
+     */
+    public boolean dropSwitch(InstanceIdentifier<Node> nodePath) {
+        boolean dropped = installedForwarding.remove(nodePath) != null;
+        if (pendingForwarding != null && pendingForwarding.remove(nodePath) != null) {
+            dropped = true;
+        }
+        return dropped;
+    }
+
+    /**
+     * Marks the record for removal once its ongoing migration completes. No further versions of the tree are
+     * computed.
+     */
+    public void requestTeardown() {
+        teardownRequested = true;
+        recomputeRequested = false;
+    }
+
+    public boolean isTeardownRequested() {
+        return teardownRequested;
     }
 
     public void removeOpenflowRules() {
+        for (Map.Entry<InstanceIdentifier<Node>, SwitchForwarding> entry : installedForwarding.entrySet()) {
+            removeSwitchForwarding(entry.getKey(), entry.getValue(), null);
+        }
+        installedForwarding.clear();
+    }
+
+    private boolean sameForwarding(Map<InstanceIdentifier<Node>, SwitchForwarding> newForwarding) {
+        if (installedForwarding.isEmpty() || !installedForwarding.keySet().equals(newForwarding.keySet())) {
+            return false;
+        }
+        for (Map.Entry<InstanceIdentifier<Node>, SwitchForwarding> entry : newForwarding.entrySet()) {
+            if (!installedForwarding.get(entry.getKey()).samePorts(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ListenableFuture<Void> installSwitchForwarding(InstanceIdentifier<Node> nodePath,
+            SwitchForwarding forwarding, SwitchForwarding previous, int version) {
+        IgmpSwitchManager switchManager = routingManager.getBloomflowProvider().getSwitchManager(nodePath);
+        forwarding.version = version;
+
+        if (previous != null && previous.decision == FlowTableOccupancy.AdmissionDecision.ADMIT) {
+            // The switch already had room for the flow, the new version only occupies an extra entry transiently.
+            // The new flow must have a higher priority than the one it replaces, or the switch would either overwrite
+            // the old flow in place or keep matching the old flow until it is removed. Once the priority range is
+            // used up the flow starts over at the base priority, and is shadowed by the old flow for that migration.
+            forwarding.decision = FlowTableOccupancy.AdmissionDecision.ADMIT;
+            forwarding.priority = previous.priority < MCAST_FLOW_MAX_PRIORITY ? previous.priority + 1
+                    : MCAST_FLOW_PRIORITY;
+        } else if (switchManager != null) {
+            forwarding.decision = switchManager.admitMulticastFlows(1);
+        } else {
+            forwarding.decision = FlowTableOccupancy.AdmissionDecision.ADMIT;
+        }
+        if (forwarding.decision != FlowTableOccupancy.AdmissionDecision.ADMIT
+                && (previous == null || previous.decision == FlowTableOccupancy.AdmissionDecision.ADMIT)
+                && nodePath.equals(MulticastRoutingManager.getNodePath(ingressNode))) {
+            // No ingress flow ages out on the switch from now on, the controller side idle timer starts over
+            lastActivityNanos = System.nanoTime();
+        }
+
+        switch (forwarding.decision) {
+            case ADMIT: {
+                ReplicationGroupTable groupTable = routingManager.getReplicationGroupTable(nodePath);
+                Long groupId = forwarding.outPorts.isEmpty() ? null : groupTable.acquireGroup(forwarding.outPorts);
+                forwarding.flowId = routingManager.getBloomflowProvider().getFlowIdAllocator().allocate(nodePath);
+                forwarding.flowPath = getFlowPath(nodePath, forwarding.flowId);
+                // Only the ingress flow ages out, the rest of the tree is removed along with the record
+                int idleTimeout = nodePath.equals(MulticastRoutingManager.getNodePath(ingressNode))
+                        ? routingManager.getBloomflowProvider().mcastFlowIdleTimeout : 0;
+                forwarding.flow = MulticastRoutingManager.buildMulticastFlow(forwarding.flowId, srcAddr, dstMcastAddr,
+                        forwarding.inPort, groupId, forwarding.priority, getVersionCookie(version), idleTimeout);
+                if (switchManager != null) {
+                    switchManager.getTableOccupancy().flowsInstalled(1);
+                }
+                return routingManager.getBloomflowProvider().getFlowProgrammer().addFlow(forwarding.flowPath,
+                        forwarding.flow);
+            }
+            case AGGREGATE:
+                routingManager.addAggregateContribution(nodePath, this, forwarding.outPorts);
+                break;
+            case FALLBACK:
+                LOG.info("installSwitchForwarding() - No room for (" + srcAddr + ", " + dstMcastAddr + ") on "
+                        + nodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue()
+                        + ", forwarding through controller");
+                break;
+            case REJECT:
+            default:
+                LOG.warn("installSwitchForwarding() - Rejected (" + srcAddr + ", " + dstMcastAddr + ") on "
+                        + nodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue());
+                break;
+        }
+        return Futures.immediateFuture(null);
+    }
+
+    private void removeSwitchForwarding(InstanceIdentifier<Node> nodePath, SwitchForwarding forwarding,
+            SwitchForwarding replacement) {
+        if (forwarding.decision == FlowTableOccupancy.AdmissionDecision.ADMIT) {
+            routingManager.releaseFlowIdOnCompletion(nodePath, forwarding.flowId,
+                    routingManager.getBloomflowProvider().getFlowProgrammer().removeFlowsByCookie(
+                            getTablePath(nodePath), getVersionCookie(forwarding.version), VERSION_COOKIE_MASK));
+            if (!forwarding.outPorts.isEmpty()) {
+                routingManager.getReplicationGroupTable(nodePath).releaseGroup(forwarding.outPorts);
+            }
+            IgmpSwitchManager switchManager = routingManager.getBloomflowProvider().getSwitchManager(nodePath);
+            if (switchManager != null) {
+                switchManager.getTableOccupancy().flowsRemoved(1);
+            }
+        } else if (forwarding.decision == FlowTableOccupancy.AdmissionDecision.AGGREGATE
+                && (replacement == null || replacement.decision != FlowTableOccupancy.AdmissionDecision.AGGREGATE)) {
+            // A replacement which is also aggregated has already overwritten the contribution of this record
+            routingManager.removeAggregateContribution(nodePath, this);
+        }
+    }
+
+    public FlowCookie getVersionCookie(int version) {
+        return buildCookie(recordId, version);
+    }
+
+    /**
+     * Builds a BloomFlow cookie from an ID drawn from MulticastRoutingManager.getNextRecordId() and a version.
+     */
+    public static FlowCookie buildCookie(long id, int version) {
+        return new FlowCookie(BigInteger.valueOf(COOKIE_PREFIX).shiftLeft(48)
+                .or(BigInteger.valueOf(id & 0xFFFFFFFFL).shiftLeft(16))
+                .or(BigInteger.valueOf(version & VERSION_MASK)));
+    }
+
+    public static InstanceIdentifier<Table> getTablePath(InstanceIdentifier<Node> nodePath) {
+        return nodePath.augmentation(FlowCapableNode.class)
+                .child(Table.class, new TableKey(BloomflowProvider.FLOW_TABLE_ID));
+    }
+
+    public static InstanceIdentifier<Flow> getFlowPath(InstanceIdentifier<Node> nodePath, FlowId flowId) {
+        return getTablePath(nodePath).child(Flow.class, new FlowKey(flowId));
+    }
 
+    public String debugStr() {
+        String debugStr = "MulticastRoutingRecord (" + srcAddr + ", " + dstMcastAddr + ") from "
+                + ingressNode.getValue() + " version " + treeVersion
+                + (pendingForwarding == null ? "" : " (migrating)") + ":";
+        for (Map.Entry<InstanceIdentifier<Node>, SwitchForwarding> entry : installedForwarding.entrySet()) {
+            debugStr += "\n\t" + entry.getKey().firstKeyOf(Node.class, NodeKey.class).getId().getValue() + " ["
+                    + entry.getValue().decision + " v" + entry.getValue().version + "] in: "
+                    + (entry.getValue().inPort == null ? "any" : entry.getValue().inPort.getValue()) + " out:";
+            for (NodeConnectorId port : entry.getValue().outPorts) {
+                debugStr += " " + port.getValue();
+            }
+        }
+        return debugStr;
     }
 }
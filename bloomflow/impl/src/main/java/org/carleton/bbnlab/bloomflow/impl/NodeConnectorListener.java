@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.util.Collection;
+import javax.annotation.Nonnull;
+import org.opendaylight.controller.md.sal.binding.api.DataObjectModification;
+import org.opendaylight.controller.md.sal.binding.api.DataObjectModification.ModificationType;
+import org.opendaylight.controller.md.sal.binding.api.DataTreeChangeListener;
+import org.opendaylight.controller.md.sal.binding.api.DataTreeModification;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for changes to the ports of all switches in the operational inventory, and keeps the port set of each
+ * managed switch up to date as ports are added, go up or down, or are removed.
+ *
+ * Ports of switches which are not yet managed are ignored, they are read from the inventory when the switch appears.
+ */
+public class NodeConnectorListener implements DataTreeChangeListener<FlowCapableNodeConnector> {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeConnectorListener.class);
+
+    private final BloomflowProvider provider;
+
+    public NodeConnectorListener(BloomflowProvider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public void onDataTreeChanged(@Nonnull Collection<DataTreeModification<FlowCapableNodeConnector>> modifications) {
+        for (DataTreeModification<FlowCapableNodeConnector> modification : modifications) {
+            InstanceIdentifier<NodeConnector> portPath = modification.getRootPath().getRootIdentifier()
+                    .firstIdentifierOf(NodeConnector.class);
+            IgmpSwitchManager switchManager = provider.getSwitchManager(portPath.firstIdentifierOf(Node.class));
+            if (switchManager == null) {
+                continue;
+            }
+
+            NodeConnectorId portId = portPath.firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId();
+            DataObjectModification<FlowCapableNodeConnector> rootNode = modification.getRootNode();
+            if (rootNode.getModificationType() == ModificationType.DELETE) {
+                LOG.debug("onDataTreeChanged() - Port removed: " + portId.getValue());
+                switchManager.portRemoved(portId);
+            } else if (isPortUp(rootNode.getDataAfter())) {
+                switchManager.portUp(portId);
+            } else {
+                switchManager.portDown(portId);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the port is administratively up, its link is up and it is not blocked by spanning tree. Ports
+     * whose state has not been reported yet are assumed to be up.
+     */
+    public static boolean isPortUp(FlowCapableNodeConnector port) {
+        if (port == null) {
+            return false;
+        }
+        if (port.getState() != null && (Boolean.TRUE.equals(port.getState().isLinkDown())
+                || Boolean.TRUE.equals(port.getState().isBlocked()))) {
+            return false;
+        }
+        return port.getConfiguration() == null || !Boolean.TRUE.equals(port.getConfiguration().isPORTDOWN());
+    }
+}
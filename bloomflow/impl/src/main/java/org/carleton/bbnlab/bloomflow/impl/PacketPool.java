@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per thread pool of the messages and buffers used to decode and encode IGMP and MLD messages. Packet-in processing
+ * and proxy reporting reset and reuse these instead of allocating new messages, group records and pack buffers for
+ * every packet.
+ *
+ * A thread owns a single instance of each object, so an acquired object is only valid until the same thread acquires
+ * it again, and must not be retained once the packet has been processed. Decode and encode objects are separate, so a
+ * report can be built while the query which triggered it is still being processed.
+ */
+public final class PacketPool {
+    private static final ThreadLocal<PacketPool> POOLS = new ThreadLocal<PacketPool>() {
+        @Override
+        protected PacketPool initialValue() {
+            return new PacketPool();
+        }
+    };
+
+    private final IgmpPacket decodeIgmpPacket;
+    private final MldPacket decodeMldPacket;
+    private final IgmpPacket encodeIgmpPacket;
+    private final ByteBuffer encodeBuffer;
+
+    private PacketPool() {
+        decodeIgmpPacket = new IgmpPacket();
+        decodeMldPacket = new MldPacket();
+        encodeIgmpPacket = new IgmpPacket();
+        // Heap buffer, the packed bytes are checksummed and copied into the transmitted frame from its array
+        encodeBuffer = ByteBuffer.allocate(IgmpPacket.MAX_PACKET_LEN);
+    }
+
+    /**
+     * Parses an IGMP message into the decode packet of the calling thread.
+     */
+    public static IgmpPacket decodeIgmp(byte[] payloadBytes, int offset, int length) {
+        IgmpPacket packet = POOLS.get().decodeIgmpPacket;
+        packet.parseMessage(payloadBytes, offset, length);
+        return packet;
+    }
+
+    /**
+     * Parses an MLD message into the decode packet of the calling thread.
+     */
+    public static MldPacket decodeMld(byte[] payloadBytes, int offset, int length) {
+        MldPacket packet = POOLS.get().decodeMldPacket;
+        packet.parseMessage(payloadBytes, offset, length);
+        return packet;
+    }
+
+    /**
+     * Returns the reset encode packet of the calling thread.
+     */
+    public static IgmpPacket encodeIgmp() {
+        IgmpPacket packet = POOLS.get().encodeIgmpPacket;
+        packet.reset();
+        return packet;
+    }
+
+    /**
+     * Returns the cleared pack buffer of the calling thread, which holds IgmpPacket.MAX_PACKET_LEN bytes.
+     */
+    public static ByteBuffer encodeBuffer() {
+        ByteBuffer buffer = POOLS.get().encodeBuffer;
+        buffer.clear();
+        return buffer;
+    }
+}
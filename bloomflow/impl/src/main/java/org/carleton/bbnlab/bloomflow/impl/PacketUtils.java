@@ -28,8 +28,20 @@ public class PacketUtils {
     public static final int ETHERTYPE_IPV4_W_VLAN = 0x8100;
     public static final int ETHERTYPE_ARP = 0x0806;
     public static final int ETHERTYPE_LLDP = 0x88CC;
+    public static final int ETHERTYPE_IPV6 = 0x86DD;
 
     public static final int IP_PROTO_IGMP = 0x02;
+    public static final int IP_PROTO_ICMPV6 = 58;
+
+    public static final int IPV6_HEADER_LEN = 40;
+
+    // IPv6 extension headers which may precede the ICMPv6 header of an MLD message
+    private static final int IPV6_EXT_HOP_BY_HOP = 0;
+    private static final int IPV6_EXT_ROUTING = 43;
+    private static final int IPV6_EXT_DESTINATION_OPTIONS = 60;
+
+    // IPv4 header carrying the Router Alert option required on IGMPv3 messages (RFC 3376, section 4)
+    public static final int IPV4_RA_HEADER_LEN = 24;
 
     // Note: IP offset constants assume no VLAN tag
     private final static int PACKET_OFFSET_ETHERTYPE = 12;
@@ -37,6 +49,9 @@ public class PacketUtils {
     private final static int PACKET_OFFSET_IP_SRC = PACKET_OFFSET_IP + 12;
     private final static int PACKET_OFFSET_IP_DST = PACKET_OFFSET_IP + 16;
     private final static int PACKET_OFFSET_IP_PROTO = PACKET_OFFSET_IP + 9;
+    private final static int PACKET_OFFSET_IPV6_NEXT_HEADER = PACKET_OFFSET_IP + 6;
+    private final static int PACKET_OFFSET_IPV6_SRC = PACKET_OFFSET_IP + 8;
+    private final static int PACKET_OFFSET_IPV6_DST = PACKET_OFFSET_IP + 24;
 
 
     private PacketUtils() {
@@ -64,6 +79,13 @@ public class PacketUtils {
         return (ipVersionBytes[0] & 0x0F) * 4;
     }
 
+    /**
+     * Returns the total length of an IPv4 packet (header and payload), as specified by its header.
+     */
+    public static int getIpTotalLength(final byte[] rawPacket) {
+        return ((rawPacket[PACKET_OFFSET_IP + 2] & 0xff) << 8) | (rawPacket[PACKET_OFFSET_IP + 3] & 0xff);
+    }
+
     public static byte getIpProtocol(final byte[] rawPacket)
     {
         final byte[] ipProtoBytes = Arrays.copyOfRange(rawPacket, PACKET_OFFSET_IP_PROTO, PACKET_OFFSET_IP_PROTO + 1);
@@ -118,6 +140,62 @@ public class PacketUtils {
         return pktDstIpStr;
     }
 
+    public static InetAddress getIpv6SrcIp(final byte[] rawPacket) {
+        return getIpv6Address(rawPacket, PACKET_OFFSET_IPV6_SRC);
+    }
+
+    public static InetAddress getIpv6DstIp(final byte[] rawPacket) {
+        return getIpv6Address(rawPacket, PACKET_OFFSET_IPV6_DST);
+    }
+
+    private static InetAddress getIpv6Address(final byte[] rawPacket, int offset) {
+        InetAddress address = null;
+        try {
+            address = InetAddress.getByAddress(Arrays.copyOfRange(rawPacket, offset, offset + 16));
+        } catch(Exception e) {
+            LOG.error("Exception getting IPv6 address [{}]", e.getMessage(), e);
+        }
+
+        return address;
+    }
+
+    /**
+     * Returns the offset in the frame of the upper layer header of an IPv6 packet, skipping the hop-by-hop, routing
+     * and destination options extension headers (MLD messages always carry a hop-by-hop Router Alert option). Returns
+     * -1 if the packet is truncated or its upper layer header follows any other extension header (e.g. a fragment
+     * header).
+     */
+    public static int getIpv6UpperLayerOffset(final byte[] rawPacket) {
+        int upperLayer = findIpv6UpperLayer(rawPacket);
+        return upperLayer < 0 ? -1 : upperLayer >>> 8;
+    }
+
+    /**
+     * Returns the protocol of the upper layer header located by getIpv6UpperLayerOffset(), or -1.
+     */
+    public static int getIpv6UpperLayerProtocol(final byte[] rawPacket) {
+        int upperLayer = findIpv6UpperLayer(rawPacket);
+        return upperLayer < 0 ? -1 : upperLayer & 0xff;
+    }
+
+    // Returns the offset of the upper layer header shifted left by 8 bits, ORed with its protocol, or -1
+    private static int findIpv6UpperLayer(final byte[] rawPacket) {
+        if (rawPacket.length < PACKET_OFFSET_IP + IPV6_HEADER_LEN) {
+            return -1;
+        }
+        int nextHeader = rawPacket[PACKET_OFFSET_IPV6_NEXT_HEADER] & 0xff;
+        int offset = PACKET_OFFSET_IP + IPV6_HEADER_LEN;
+        while (nextHeader == IPV6_EXT_HOP_BY_HOP || nextHeader == IPV6_EXT_ROUTING
+                || nextHeader == IPV6_EXT_DESTINATION_OPTIONS) {
+            if (offset + 2 > rawPacket.length) {
+                return -1;
+            }
+            nextHeader = rawPacket[offset] & 0xff;
+            offset += ((rawPacket[offset + 1] & 0xff) + 1) * 8;
+        }
+        return offset <= rawPacket.length ? (offset << 8) | nextHeader : -1;
+    }
+
     public static short packShort(byte[] bytes) {
         short val = (short) 0;
         for (int i = 0; i < 2; i++) {
@@ -142,6 +220,40 @@ public class PacketUtils {
         return ByteBuffer.wrap(bytes).getInt();
     }
 
+    /**
+     * Builds an Ethernet frame carrying an already packed IGMP message. The destination MAC address is derived from
+     * the destination multicast IP address, and the IP header carries the Router Alert option with a TTL of 1.
+     */
+    public static byte[] buildIgmpFrame(byte[] srcMac, InetAddress srcIp, InetAddress dstIp, byte[] igmpBytes,
+            int igmpLen) {
+        byte[] frame = new byte[ETHERNET_HEADER_LEN + IPV4_RA_HEADER_LEN + igmpLen];
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        byte[] dstIpBytes = dstIp.getAddress();
+
+        // Ethernet header
+        buf.put(new byte[] {0x01, 0x00, 0x5e, (byte)(dstIpBytes[1] & 0x7f), dstIpBytes[2], dstIpBytes[3]});
+        buf.put(srcMac);
+        buf.putChar((char) ETHERTYPE_IPV4);
+
+        // IPv4 header
+        buf.put((byte)(0x40 | (IPV4_RA_HEADER_LEN / 4)));
+        buf.put((byte) 0xc0);  // Internetwork control
+        buf.putChar((char)(IPV4_RA_HEADER_LEN + igmpLen));
+        buf.putChar((char) 0); // Identification
+        buf.putChar((char) 0); // Flags and fragment offset
+        buf.put((byte) 1);     // TTL
+        buf.put((byte) IP_PROTO_IGMP);
+        buf.putChar((char) 0); // Checksum, filled in below
+        buf.put(srcIp.getAddress());
+        buf.put(dstIpBytes);
+        buf.putInt(0x94040000); // Router Alert option
+
+        buf.putChar(PACKET_OFFSET_IP + 10, IgmpPacket.calcChecksum(frame, PACKET_OFFSET_IP, IPV4_RA_HEADER_LEN));
+
+        buf.put(igmpBytes, 0, igmpLen);
+        return frame;
+    }
+
     public static String byteString(byte[] bytes, int length) {
         String returnStr = "";
         for(int i = 0; i < length; i++) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.util.Arrays;
+
+/**
+ * Operations on sets of ports represented as long[] bitsets, with one bit per port index of a PortDictionary.
+ *
+ * Bitsets of different lengths may be combined; missing words are treated as zero.
+ */
+public final class PortBitSets {
+
+    private PortBitSets() {
+        // Disable instantiation of this class
+    }
+
+    public static int numWords(int numPorts) {
+        return (numPorts + 63) >>> 6;
+    }
+
+    public static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    public static void clear(long[] bits, int index) {
+        int word = index >>> 6;
+        if (word < bits.length) {
+            bits[word] &= ~(1L << index);
+        }
+    }
+
+    public static boolean get(long[] bits, int index) {
+        int word = index >>> 6;
+        return word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+
+    public static boolean isEmpty(long[] bits) {
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the bit of the specified index, returning a longer copy of the bitset if it is too short to hold it.
+     */
+    public static long[] setGrow(long[] bits, int index) {
+        long[] result = bits;
+        if ((index >>> 6) >= bits.length) {
+            result = Arrays.copyOf(bits, (index >>> 6) + 1);
+        }
+        set(result, index);
+        return result;
+    }
+
+    public static long[] or(long[] a, long[] b) {
+        long[] longer = a.length >= b.length ? a : b;
+        long[] shorter = a.length >= b.length ? b : a;
+        long[] result = Arrays.copyOf(longer, longer.length);
+        for (int i = 0; i < shorter.length; i++) {
+            result[i] |= shorter[i];
+        }
+        return result;
+    }
+
+    public static long[] andNot(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length);
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            result[i] &= ~b[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the bitset without its trailing zero words, so that equal sets have equal arrays.
+     */
+    public static long[] trim(long[] bits) {
+        int length = bits.length;
+        while (length > 0 && bits[length - 1] == 0) {
+            length--;
+        }
+        return length == bits.length ? bits : Arrays.copyOf(bits, length);
+    }
+
+    public static boolean equals(long[] a, long[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        long[] longer = a.length > b.length ? a : b;
+        for (int i = common; i < longer.length; i++) {
+            if (longer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+
+/**
+ * Assigns a dense integer index to every port of a single switch, so that sets of ports can be represented as bitsets
+ * (see PortBitSets).
+ *
+ * Indices are assigned in the order ports are first seen and are never reused, so a bitset built against the
+ * dictionary stays valid for the lifetime of the switch.
+ */
+public class PortDictionary {
+    private final Map<NodeConnectorId, Integer> indices;
+    private final List<NodeConnectorId> ports;
+
+    public PortDictionary() {
+        this.indices = new HashMap<>();
+        this.ports = new ArrayList<>();
+    }
+
+    /**
+     * Returns the index of the specified port, assigning the next free index if the port has not been seen before.
+     */
+    public synchronized int indexOf(NodeConnectorId port) {
+        Integer index = indices.get(port);
+        if (index == null) {
+            index = ports.size();
+            indices.put(port, index);
+            ports.add(port);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the specified port, or -1 if the port has never been assigned an index.
+     */
+    public synchronized int lookup(NodeConnectorId port) {
+        Integer index = indices.get(port);
+        return index == null ? -1 : index;
+    }
+
+    public synchronized NodeConnectorId getPort(int index) {
+        return ports.get(index);
+    }
+
+    public synchronized int size() {
+        return ports.size();
+    }
+}
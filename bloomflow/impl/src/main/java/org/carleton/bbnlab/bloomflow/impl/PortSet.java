@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+
+/**
+ * Immutable set of ports of a single switch, stored as a bitset over the dense port indices of the switch's
+ * PortDictionary. Union, difference, equality and hashing are word operations on the bitset.
+ *
+ * Port sets are only comparable with port sets of the same switch.
+ */
+public final class PortSet implements Iterable<NodeConnectorId> {
+    private final PortDictionary dictionary;
+    private final long[] bits;  // Never has trailing zero words
+    private final int hash;
+
+    private PortSet(PortDictionary dictionary, long[] bits) {
+        this.dictionary = dictionary;
+        this.bits = PortBitSets.trim(bits);
+        this.hash = Arrays.hashCode(this.bits);
+    }
+
+    public static PortSet empty(PortDictionary dictionary) {
+        return new PortSet(dictionary, new long[0]);
+    }
+
+    /**
+     * Builds a port set from a bitset built against the specified dictionary. The bitset is copied.
+     */
+    public static PortSet fromBits(PortDictionary dictionary, long[] bits) {
+        return new PortSet(dictionary, Arrays.copyOf(bits, bits.length));
+    }
+
+    /**
+     * Builds a port set which takes ownership of the specified bitset. Callers must not modify the bitset afterwards.
+     */
+    static PortSet wrapBits(PortDictionary dictionary, long[] bits) {
+        return new PortSet(dictionary, bits);
+    }
+
+    public static PortSet of(PortDictionary dictionary, Collection<NodeConnectorId> ports) {
+        long[] bits = new long[0];
+        for (NodeConnectorId port : ports) {
+            bits = PortBitSets.setGrow(bits, dictionary.indexOf(port));
+        }
+        return new PortSet(dictionary, bits);
+    }
+
+    public PortSet with(NodeConnectorId port) {
+        int index = dictionary.indexOf(port);
+        if (PortBitSets.get(bits, index)) {
+            return this;
+        }
+        return new PortSet(dictionary, PortBitSets.setGrow(Arrays.copyOf(bits, bits.length), index));
+    }
+
+    public PortSet without(NodeConnectorId port) {
+        int index = port == null ? -1 : dictionary.lookup(port);
+        if (index < 0 || !PortBitSets.get(bits, index)) {
+            return this;
+        }
+        long[] result = Arrays.copyOf(bits, bits.length);
+        result[index >>> 6] &= ~(1L << index);
+        return new PortSet(dictionary, result);
+    }
+
+    public PortSet union(PortSet other) {
+        return new PortSet(dictionary, PortBitSets.or(bits, other.bits));
+    }
+
+    public PortSet minus(PortSet other) {
+        return new PortSet(dictionary, PortBitSets.andNot(bits, other.bits));
+    }
+
+    public boolean contains(NodeConnectorId port) {
+        int index = dictionary.lookup(port);
+        return index >= 0 && PortBitSets.get(bits, index);
+    }
+
+    public boolean isEmpty() {
+        return bits.length == 0;
+    }
+
+    public int size() {
+        int size = 0;
+        for (long word : bits) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<NodeConnectorId> iterator() {
+        return new Iterator<NodeConnectorId>() {
+            private int word = 0;
+            private long remaining = bits.length > 0 ? bits[0] : 0;
+
+            @Override
+            public boolean hasNext() {
+                while (remaining == 0 && word < bits.length - 1) {
+                    remaining = bits[++word];
+                }
+                return remaining != 0;
+            }
+
+            @Override
+            public NodeConnectorId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                return dictionary.getPort(index);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PortSet)) {
+            return false;
+        }
+        PortSet other = (PortSet) obj;
+        return dictionary == other.dictionary && hash == other.hash && Arrays.equals(bits, other.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("[");
+        for (NodeConnectorId port : this) {
+            str.append(str.length() > 1 ? ", " : "").append(port.getValue());
+        }
+        return str.append("]").toString();
+    }
+}
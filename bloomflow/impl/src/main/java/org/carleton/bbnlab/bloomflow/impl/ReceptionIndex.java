@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * Immutable network wide index from (G,S) to the switches and ports which should receive that traffic, precomputed
+ * from the reception state snapshots of all managed switches.
+ *
+ * When a switch publishes a new snapshot only the entries of the groups whose reception changed are rebuilt, and the
+ * entries of all other groups are shared with the previous index. The index is read through a volatile reference by
+ * the routing code, so lookups from any thread are lock free and allocation free.
+ */
+public class ReceptionIndex {
+    public static final ReceptionIndex EMPTY = new ReceptionIndex(ImmutableSet.<ReceptionStateSnapshot>of());
+
+    private static class GroupEntry {
+        // Receivers of traffic from sources not named by any switch
+        public final ImmutableMap<InstanceIdentifier<Node>, PortSet> anySourceSwitches;
+        public final ImmutableSet<NodeConnectorId> anySourcePorts;
+        public final ImmutableMap<InetAddress, ImmutableMap<InstanceIdentifier<Node>, PortSet>> sourceSwitches;
+        public final ImmutableMap<InetAddress, ImmutableSet<NodeConnectorId>> sourcePorts;
+
+        public GroupEntry(InetAddress mcastAddr, Collection<ReceptionStateSnapshot> snapshots) {
+            Set<InetAddress> namedSources = new HashSet<>();
+            for (ReceptionStateSnapshot snapshot : snapshots) {
+                namedSources.addAll(snapshot.getNamedSources(mcastAddr));
+            }
+
+            this.anySourceSwitches = buildSwitchPorts(mcastAddr, null, snapshots);
+            this.anySourcePorts = flatten(this.anySourceSwitches);
+
+            ImmutableMap.Builder<InetAddress, ImmutableMap<InstanceIdentifier<Node>, PortSet>> switchBuilder =
+                    ImmutableMap.builder();
+            ImmutableMap.Builder<InetAddress, ImmutableSet<NodeConnectorId>> portBuilder = ImmutableMap.builder();
+            for (InetAddress source : namedSources) {
+                ImmutableMap<InstanceIdentifier<Node>, PortSet> switches =
+                        buildSwitchPorts(mcastAddr, source, snapshots);
+                switchBuilder.put(source, switches);
+                portBuilder.put(source, flatten(switches));
+            }
+            this.sourceSwitches = switchBuilder.build();
+            this.sourcePorts = portBuilder.build();
+        }
+
+        // A null source selects the ports receiving the group from all sources
+        private static ImmutableMap<InstanceIdentifier<Node>, PortSet> buildSwitchPorts(
+                InetAddress mcastAddr, InetAddress source, Collection<ReceptionStateSnapshot> snapshots) {
+            ImmutableMap.Builder<InstanceIdentifier<Node>, PortSet> builder = ImmutableMap.builder();
+            for (ReceptionStateSnapshot snapshot : snapshots) {
+                PortSet ports = source == null ? snapshot.getAnySourcePorts(mcastAddr)
+                        : snapshot.getReceptionPorts(mcastAddr, source);
+                if (!ports.isEmpty()) {
+                    builder.put(snapshot.getNodePath(), ports);
+                }
+            }
+            return builder.build();
+        }
+
+        private static ImmutableSet<NodeConnectorId> flatten(
+                ImmutableMap<InstanceIdentifier<Node>, PortSet> switchPorts) {
+            ImmutableSet.Builder<NodeConnectorId> builder = ImmutableSet.builder();
+            for (PortSet ports : switchPorts.values()) {
+                builder.addAll(ports);
+            }
+            return builder.build();
+        }
+    }
+
+    private final ImmutableMap<InetAddress, GroupEntry> groups;
+
+    public ReceptionIndex(Collection<ReceptionStateSnapshot> snapshots) {
+        Set<InetAddress> mcastAddrs = new HashSet<>();
+        for (ReceptionStateSnapshot snapshot : snapshots) {
+            mcastAddrs.addAll(snapshot.getState().keySet());
+        }
+
+        Map<InetAddress, GroupEntry> groupEntries = new HashMap<>();
+        for (InetAddress mcastAddr : mcastAddrs) {
+            groupEntries.put(mcastAddr, new GroupEntry(mcastAddr, snapshots));
+        }
+        this.groups = ImmutableMap.copyOf(groupEntries);
+    }
+
+    private ReceptionIndex(ImmutableMap<InetAddress, GroupEntry> groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * Returns a new index in which the entries of the specified groups are rebuilt from the current snapshots of all
+     * switches. The snapshots of the groups which did not change must be the ones this index was built from.
+     */
+    public ReceptionIndex update(Collection<ReceptionStateSnapshot> snapshots, Collection<InetAddress> changedGroups) {
+        if (changedGroups.isEmpty()) {
+            return this;
+        }
+
+        // Unchanged entries are carried over by reference, so the only copy made is the group map itself
+        Set<InetAddress> changedGroupSet = new HashSet<>(changedGroups);
+        ImmutableMap.Builder<InetAddress, GroupEntry> groupBuilder = ImmutableMap.builder();
+        for (Map.Entry<InetAddress, GroupEntry> group : this.groups.entrySet()) {
+            if (!changedGroupSet.contains(group.getKey())) {
+                groupBuilder.put(group);
+            }
+        }
+        for (InetAddress mcastAddr : changedGroupSet) {
+            for (ReceptionStateSnapshot snapshot : snapshots) {
+                if (snapshot.getState().containsKey(mcastAddr)) {
+                    groupBuilder.put(mcastAddr, new GroupEntry(mcastAddr, snapshots));
+                    break;
+                }
+            }
+        }
+        return new ReceptionIndex(groupBuilder.build());
+    }
+
+    /**
+     * Returns the reception ports of every switch with receivers for traffic from the specified source to the
+     * specified group, keyed by switch.
+     */
+    public ImmutableMap<InstanceIdentifier<Node>, PortSet> getReceivingSwitches(
+            InetAddress mcastDstAddr, InetAddress srcAddr) {
+        GroupEntry entry = groups.get(mcastDstAddr);
+        if (entry == null) {
+            return ImmutableMap.of();
+        }
+
+        ImmutableMap<InstanceIdentifier<Node>, PortSet> switches = entry.sourceSwitches.get(srcAddr);
+        return switches != null ? switches : entry.anySourceSwitches;
+    }
+
+    /**
+     * Returns the reception ports across all switches for traffic from the specified source to the specified group.
+     */
+    public ImmutableSet<NodeConnectorId> getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr) {
+        GroupEntry entry = groups.get(mcastDstAddr);
+        if (entry == null) {
+            return ImmutableSet.of();
+        }
+
+        ImmutableSet<NodeConnectorId> ports = entry.sourcePorts.get(srcAddr);
+        return ports != null ? ports : entry.anySourcePorts;
+    }
+
+    public int getNumGroups() {
+        return groups.size();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Set;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * Immutable snapshot of the desired reception state of a single switch.
+ *
+ * A new snapshot is built every time the reception state of the switch changes, and published by replacing a volatile
+ * reference, so readers on any thread always see a consistent state without locking. Lookups go through a
+ * SourceSpecificIndex over the dense port indices of the switch.
+ */
+public class ReceptionStateSnapshot {
+    private final InstanceIdentifier<Node> nodePath;
+    // Note: An empty set represents desired reception from all sources (i.e., non-source specific multicast)
+    private final ImmutableMap<InetAddress, ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>>> state;
+    private final PortDictionary portDictionary;
+    private final SourceSpecificIndex index;
+
+    public ReceptionStateSnapshot(InstanceIdentifier<Node> nodePath,
+            Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> receptionState, PortDictionary portDictionary) {
+        this.nodePath = nodePath;
+
+        ImmutableMap.Builder<InetAddress, ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>>> stateBuilder =
+                ImmutableMap.builder();
+        for (Map.Entry<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> group : receptionState.entrySet()) {
+            stateBuilder.put(group.getKey(), copyGroupState(group.getValue()));
+        }
+        this.state = stateBuilder.build();
+
+        this.index = new SourceSpecificIndex(this.state, portDictionary);
+        this.portDictionary = portDictionary;
+    }
+
+    private ReceptionStateSnapshot(InstanceIdentifier<Node> nodePath,
+            ImmutableMap<InetAddress, ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>>> state,
+            PortDictionary portDictionary, SourceSpecificIndex index) {
+        this.nodePath = nodePath;
+        this.state = state;
+        this.portDictionary = portDictionary;
+        this.index = index;
+    }
+
+    /**
+     * Returns a snapshot of the specified reception state, which differs from the state of this snapshot only in the
+     * specified groups. The per group state and index entries of all other groups are shared with this snapshot.
+     */
+    public ReceptionStateSnapshot withChangedGroups(
+            Map<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> receptionState, Set<InetAddress> changedGroups) {
+        ImmutableMap.Builder<InetAddress, ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>>> stateBuilder =
+                ImmutableMap.builder();
+        for (Map.Entry<InetAddress, Map<NodeConnectorId, Set<InetAddress>>> group : receptionState.entrySet()) {
+            ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>> groupState =
+                    changedGroups.contains(group.getKey()) ? null : this.state.get(group.getKey());
+            stateBuilder.put(group.getKey(), groupState != null ? groupState : copyGroupState(group.getValue()));
+        }
+        ImmutableMap<InetAddress, ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>>> newState =
+                stateBuilder.build();
+
+        return new ReceptionStateSnapshot(this.nodePath, newState, this.portDictionary,
+                new SourceSpecificIndex(this.index, newState, changedGroups, this.portDictionary));
+    }
+
+    private static ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>> copyGroupState(
+            Map<NodeConnectorId, Set<InetAddress>> groupState) {
+        ImmutableMap.Builder<NodeConnectorId, ImmutableSet<InetAddress>> builder = ImmutableMap.builder();
+        for (Map.Entry<NodeConnectorId, Set<InetAddress>> port : groupState.entrySet()) {
+            builder.put(port.getKey(), ImmutableSet.copyOf(port.getValue()));
+        }
+        return builder.build();
+    }
+
+    public InstanceIdentifier<Node> getNodePath() {
+        return nodePath;
+    }
+
+    public ImmutableMap<InetAddress, ImmutableMap<NodeConnectorId, ImmutableSet<InetAddress>>> getState() {
+        return state;
+    }
+
+    public SourceSpecificIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the ports of this switch which should receive traffic from the specified source to the specified group.
+     */
+    public PortSet getReceptionPorts(InetAddress mcastDstAddr, InetAddress srcAddr) {
+        if (!index.containsGroup(mcastDstAddr)) {
+            return PortSet.empty(portDictionary);
+        }
+        long[] bits = new long[index.getNumWords()];
+        index.lookup(mcastDstAddr, srcAddr, bits);
+        return PortSet.wrapBits(portDictionary, bits);
+    }
+
+    /**
+     * Returns the ports of this switch which should receive traffic to the specified group from all sources.
+     */
+    public PortSet getAnySourcePorts(InetAddress mcastDstAddr) {
+        if (!index.containsGroup(mcastDstAddr)) {
+            return PortSet.empty(portDictionary);
+        }
+        long[] bits = new long[index.getNumWords()];
+        index.lookupAnySource(mcastDstAddr, bits);
+        return PortSet.wrapBits(portDictionary, bits);
+    }
+
+    /**
+     * Returns the sources named by any port for the specified group. Sources not in this set are received only by the
+     * ports receiving the group from all sources.
+     */
+    public ImmutableSet<InetAddress> getNamedSources(InetAddress mcastDstAddr) {
+        return index.getNamedSources(mcastDstAddr);
+    }
+}
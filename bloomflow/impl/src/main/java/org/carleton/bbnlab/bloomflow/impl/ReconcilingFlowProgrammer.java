@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.Meter;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flow programmer which records the desired flows, groups and meters of every switch before passing operations on to the
+ * backend, so that everything programmed on a switch can be removed when it leaves the network (see switchRemoved()).
+ *
+ * A switch which connects again is managed as a new switch and programmed from scratch. Reconciliation only removes
+ * the multicast flows installed by this controller which are left on the switch and no longer desired (from tree
+ * versions which were replaced, or from before the switch disconnected), as a single batch. Stale flows are only
+ * identified by their cookie, since switches may report a match which is not structurally equal to the configured one
+ * (e.g. with prerequisite fields omitted or prefixes normalized).
+ */
+public class ReconcilingFlowProgrammer implements FlowProgrammer {
+    private static final Logger LOG = LoggerFactory.getLogger(ReconcilingFlowProgrammer.class);
+
+    private static class DesiredState {
+        public final Map<InstanceIdentifier<Flow>, Flow> flows = new LinkedHashMap<>();
+        public final Map<InstanceIdentifier<Group>, Group> groups = new LinkedHashMap<>();
+        public final Map<InstanceIdentifier<Meter>, Meter> meters = new LinkedHashMap<>();
+        // System.nanoTime() after which the empty state of a removed switch is dropped, 0 for a connected switch
+        public long tombstoneExpiryNanos = 0;
+    }
+
+    // Lifetime of the empty state kept for a removed switch, see switchRemoved()
+    private static final long TOMBSTONE_LIFETIME_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final FlowProgrammer backend;
+    private final Map<InstanceIdentifier<Node>, DesiredState> desiredState;
+    private final Set<InstanceIdentifier<Node>> pendingReconciliation;
+
+    public ReconcilingFlowProgrammer(FlowProgrammer backend) {
+        this.backend = backend;
+        this.desiredState = new HashMap<>();
+        this.pendingReconciliation = new HashSet<>();
+    }
+
+    // Removals never revive the state of a removed switch, since they may complete after the switch left
+    private DesiredState getExistingState(InstanceIdentifier<Node> nodePath) {
+        DesiredState state = desiredState.get(nodePath);
+        return state != null ? state : new DesiredState();
+    }
+
+    private DesiredState getDesiredState(InstanceIdentifier<Node> nodePath) {
+        DesiredState state = desiredState.get(nodePath);
+        if (state == null) {
+            state = new DesiredState();
+            desiredState.put(nodePath, state);
+        }
+        // The switch is programmed again, so its state is no longer a tombstone
+        state.tombstoneExpiryNanos = 0;
+        return state;
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> addFlow(InstanceIdentifier<Flow> flowPath, Flow flow) {
+        getDesiredState(flowPath.firstIdentifierOf(Node.class)).flows.put(flowPath, flow);
+        return backend.addFlow(flowPath, flow);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> removeFlow(InstanceIdentifier<Flow> flowPath, Flow flow) {
+        getExistingState(flowPath.firstIdentifierOf(Node.class)).flows.remove(flowPath);
+        return backend.removeFlow(flowPath, flow);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> removeFlowsByCookie(InstanceIdentifier<Table> tablePath,
+            FlowCookie cookie, FlowCookie cookieMask) {
+        BigInteger mask = cookieMask.getValue();
+        BigInteger maskedCookie = cookie.getValue().and(mask);
+        Iterator<Map.Entry<InstanceIdentifier<Flow>, Flow>> flowIter =
+                getExistingState(tablePath.firstIdentifierOf(Node.class)).flows.entrySet().iterator();
+        while (flowIter.hasNext()) {
+            Map.Entry<InstanceIdentifier<Flow>, Flow> entry = flowIter.next();
+            FlowCookie flowCookie = entry.getValue().getCookie();
+            if (entry.getKey().firstIdentifierOf(Table.class).equals(tablePath) && flowCookie != null
+                    && flowCookie.getValue().and(mask).equals(maskedCookie)) {
+                flowIter.remove();
+            }
+        }
+        return backend.removeFlowsByCookie(tablePath, cookie, cookieMask);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> addGroup(InstanceIdentifier<Group> groupPath, Group group) {
+        getDesiredState(groupPath.firstIdentifierOf(Node.class)).groups.put(groupPath, group);
+        return backend.addGroup(groupPath, group);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> removeGroup(InstanceIdentifier<Group> groupPath, Group group) {
+        getExistingState(groupPath.firstIdentifierOf(Node.class)).groups.remove(groupPath);
+        return backend.removeGroup(groupPath, group);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> addMeter(InstanceIdentifier<Meter> meterPath, Meter meter) {
+        getDesiredState(meterPath.firstIdentifierOf(Node.class)).meters.put(meterPath, meter);
+        return backend.addMeter(meterPath, meter);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> removeMeter(InstanceIdentifier<Meter> meterPath, Meter meter) {
+        getExistingState(meterPath.firstIdentifierOf(Node.class)).meters.remove(meterPath);
+        return backend.removeMeter(meterPath, meter);
+    }
+
+    /**
+     * Marks a known switch as reconnected. The switch is reconciled once its flow statistics have been collected.
+     */
+    public synchronized void switchReconnected(InstanceIdentifier<Node> nodePath) {
+        removeExpiredTombstones(System.nanoTime());
+        if (desiredState.containsKey(nodePath)) {
+            pendingReconciliation.add(nodePath);
+        }
+    }
+
+    /**
+     * Removes every flow, group and meter programmed on a switch which left the network (from the CONFIGURATION
+     * datastore with the DATASTORE backend), since the state which programmed them is torn down along with the switch.
+     * An empty desired state is kept in its place as a tombstone, so that the multicast flows left on the switch are
+     * removed as stale if it connects again. The tombstone is dropped once the switch has been reconciled, or after
+     * TOMBSTONE_LIFETIME_NANOS.
+     */
+    public synchronized void switchRemoved(InstanceIdentifier<Node> nodePath) {
+        long nowNanos = System.nanoTime();
+        removeExpiredTombstones(nowNanos);
+        DesiredState state = desiredState.get(nodePath);
+        if (state != null) {
+            // Flows are removed before the groups and meters they reference
+            for (Map.Entry<InstanceIdentifier<Flow>, Flow> entry : state.flows.entrySet()) {
+                backend.removeFlow(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<InstanceIdentifier<Group>, Group> entry : state.groups.entrySet()) {
+                backend.removeGroup(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<InstanceIdentifier<Meter>, Meter> entry : state.meters.entrySet()) {
+                backend.removeMeter(entry.getKey(), entry.getValue());
+            }
+            backend.flush();
+            LOG.info("switchRemoved() - Removed " + state.flows.size() + " flows, " + state.groups.size()
+                    + " groups and " + state.meters.size() + " meters of node "
+                    + nodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue());
+        }
+
+        DesiredState tombstone = new DesiredState();
+        tombstone.tombstoneExpiryNanos = nowNanos + TOMBSTONE_LIFETIME_NANOS;
+        desiredState.put(nodePath, tombstone);
+        pendingReconciliation.remove(nodePath);
+    }
+
+    private void removeExpiredTombstones(long nowNanos) {
+        Iterator<Map.Entry<InstanceIdentifier<Node>, DesiredState>> stateIter = desiredState.entrySet().iterator();
+        while (stateIter.hasNext()) {
+            Map.Entry<InstanceIdentifier<Node>, DesiredState> entry = stateIter.next();
+            long expiryNanos = entry.getValue().tombstoneExpiryNanos;
+            if (expiryNanos != 0 && nowNanos - expiryNanos >= 0) {
+                stateIter.remove();
+                pendingReconciliation.remove(entry.getKey());
+            }
+        }
+    }
+
+    public synchronized boolean isReconciliationPending(InstanceIdentifier<Node> nodePath) {
+        return pendingReconciliation.contains(nodePath);
+    }
+
+    /**
+     * Removes the stale multicast flows installed by this controller from a switch, as a single batch.
+     *
+     * @param operationalTable the flow table as reported by the operational flow statistics
+     */
+    public synchronized void reconcile(InstanceIdentifier<Node> nodePath, Table operationalTable) {
+        pendingReconciliation.remove(nodePath);
+        DesiredState state = desiredState.get(nodePath);
+        if (state == null) {
+            return;
+        }
+
+        Set<BigInteger> desiredCookies = new HashSet<>();
+        for (Flow flow : state.flows.values()) {
+            if (flow.getTableId().equals(operationalTable.getId()) && flow.getCookie() != null) {
+                desiredCookies.add(flow.getCookie().getValue());
+            }
+        }
+        Set<BigInteger> staleCookies = new HashSet<>();
+        InstanceIdentifier<Table> tablePath = MulticastRoutingRecord.getTablePath(nodePath);
+        if (operationalTable.getFlow() != null) {
+            for (Flow flow : operationalTable.getFlow()) {
+                if (flow.getCookie() != null && flow.getCookie().getValue().shiftRight(48).longValue()
+                        == MulticastRoutingRecord.COOKIE_PREFIX && !desiredCookies.contains(flow.getCookie().getValue())
+                        && staleCookies.add(flow.getCookie().getValue())) {
+                    backend.removeFlowsByCookie(tablePath, flow.getCookie(),
+                            MulticastRoutingRecord.VERSION_COOKIE_MASK);
+                }
+            }
+        }
+
+        backend.flush();
+        if (state.tombstoneExpiryNanos != 0) {
+            // The switch was removed and nothing was programmed on it since, its leftover flows are now removed
+            desiredState.remove(nodePath);
+        }
+        LOG.info("reconcile() - Reconciled node " + nodePath.firstKeyOf(Node.class, NodeKey.class).getId().getValue()
+                + ": " + staleCookies.size() + " stale flows");
+    }
+
+    @Override
+    public void flush() {
+        backend.flush();
+    }
+
+    @Override
+    public void close() {
+        backend.close();
+    }
+
+    @Override
+    public synchronized String debugStr() {
+        int numFlows = 0;
+        int numGroups = 0;
+        int numMeters = 0;
+        for (DesiredState state : desiredState.values()) {
+            numFlows += state.flows.size();
+            numGroups += state.groups.size();
+            numMeters += state.meters.size();
+        }
+        return backend.debugStr() + "Desired state: " + numFlows + " flows, " + numGroups + " groups, " + numMeters
+                + " meters on " + desiredState.size() + " nodes\n";
+    }
+}
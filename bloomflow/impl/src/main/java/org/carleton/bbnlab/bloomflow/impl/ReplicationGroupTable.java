@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev130715.Uri;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.OutputActionCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.output.action._case.OutputActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.BucketId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.GroupId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.GroupTypes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.BucketsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.buckets.Bucket;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.buckets.BucketBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.buckets.BucketKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.GroupBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.GroupKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OpenFlow ALL-type groups used for multicast replication on a single switch.
+ *
+ * Every distinct set of output ports is installed as exactly one group, shared by all of the multicast flows on the
+ * switch which replicate to that set of ports. Groups are deduplicated by looking up the port bitset in a hash map, and
+ * are reference counted so that a group is only removed from the switch once the last flow using it has released it.
+ */
+public class ReplicationGroupTable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicationGroupTable.class);
+    private static final long FIRST_GROUP_ID = 1;
+
+    private static class GroupEntry {
+        public final long groupId;
+        public final InstanceIdentifier<Group> groupPath;
+        public final Group group;
+        public int refCount;
+
+        public GroupEntry(long groupId, InstanceIdentifier<Group> groupPath, Group group) {
+            this.groupId = groupId;
+            this.groupPath = groupPath;
+            this.group = group;
+            this.refCount = 0;
+        }
+    }
+
+    private final InstanceIdentifier<Node> nodePath;
+    private final FlowProgrammer flowProgrammer;
+    private final Map<PortSet, GroupEntry> groupsByPortSet;
+    private final Deque<Long> freeGroupIds;
+    private long nextGroupId;
+
+    public ReplicationGroupTable(InstanceIdentifier<Node> nodePath, FlowProgrammer flowProgrammer) {
+        this.nodePath = nodePath;
+        this.flowProgrammer = flowProgrammer;
+        this.groupsByPortSet = new HashMap<>();
+        this.freeGroupIds = new ArrayDeque<>();
+        this.nextGroupId = FIRST_GROUP_ID;
+    }
+
+    /**
+     * Returns the ID of the group which replicates to the specified set of ports, installing it on the switch if no
+     * flow currently uses this port set. Every call must be balanced by a call to releaseGroup().
+     */
+    public synchronized long acquireGroup(PortSet portSet) {
+        GroupEntry entry = groupsByPortSet.get(portSet);
+
+        if (entry == null) {
+            long groupId = freeGroupIds.isEmpty() ? nextGroupId++ : freeGroupIds.pop();
+            GroupKey groupKey = new GroupKey(new GroupId(groupId));
+            InstanceIdentifier<Group> groupPath = nodePath.augmentation(FlowCapableNode.class)
+                    .child(Group.class, groupKey);
+            entry = new GroupEntry(groupId, groupPath, buildGroup(groupKey, portSet));
+            groupsByPortSet.put(portSet, entry);
+            flowProgrammer.addGroup(groupPath, entry.group);
+            LOG.debug("acquireGroup() - Installed group " + groupId + " for ports " + portSet);
+        }
+
+        entry.refCount++;
+        return entry.groupId;
+    }
+
+    /**
+     * Releases a reference to the group which replicates to the specified set of ports, removing it from the switch
+     * once it is no longer referenced.
+     */
+    public synchronized void releaseGroup(PortSet portSet) {
+        GroupEntry entry = groupsByPortSet.get(portSet);
+        if (entry == null) {
+            LOG.warn("releaseGroup() - No group installed for ports " + portSet);
+            return;
+        }
+
+        entry.refCount--;
+        if (entry.refCount <= 0) {
+            groupsByPortSet.remove(portSet);
+            flowProgrammer.removeGroup(entry.groupPath, entry.group);
+            freeGroupIds.push(entry.groupId);
+            LOG.debug("releaseGroup() - Removed group " + entry.groupId + " for ports " + portSet);
+        }
+    }
+
+    public synchronized int getNumGroups() {
+        return groupsByPortSet.size();
+    }
+
+    private static Group buildGroup(GroupKey groupKey, PortSet portSet) {
+        List<Bucket> buckets = new ArrayList<>();
+        long bucketId = 0;
+        for (NodeConnectorId port : portSet) {
+            OutputActionBuilder output = new OutputActionBuilder();
+            output.setMaxLength(Integer.valueOf(0xffff));
+            output.setOutputNodeConnector(new Uri(port.getValue()));
+
+            ActionBuilder ab = new ActionBuilder();
+            ab.setAction(new OutputActionCaseBuilder().setOutputAction(output.build()).build());
+            ab.setOrder(0);
+            ab.setKey(new ActionKey(0));
+
+            List<Action> actionList = new ArrayList<>();
+            actionList.add(ab.build());
+
+            buckets.add(new BucketBuilder()
+                    .setBucketId(new BucketId(bucketId))
+                    .setKey(new BucketKey(new BucketId(bucketId)))
+                    .setAction(actionList)
+                    .build());
+            bucketId++;
+        }
+
+        return new GroupBuilder()
+                .setKey(groupKey)
+                .setGroupId(groupKey.getGroupId())
+                .setGroupName("bloomflow-replication-" + groupKey.getGroupId().getValue())
+                .setGroupType(GroupTypes.GroupAll)
+                .setBarrier(false)
+                .setBuckets(new BucketsBuilder().setBucket(buckets).build())
+                .build();
+    }
+}
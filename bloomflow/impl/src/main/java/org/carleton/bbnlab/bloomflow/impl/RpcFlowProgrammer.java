@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowTableRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.meters.Meter;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.AddFlowInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.RemoveFlowInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.transaction.rev150304.FlowCapableTransactionService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.transaction.rev150304.SendBarrierInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.AddGroupInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.RemoveGroupInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.SalGroupService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.GroupRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.AddMeterInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.RemoveMeterInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.SalMeterService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterRef;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+/**
+ * Programs flows directly on the switches through the openflowplugin SalFlowService, SalGroupService and
+ * SalMeterService RPCs, bypassing the CONFIGURATION datastore and the forwarding rules manager.
+ *
+ * All flow-mods and group-mods in a batch are sent back to back, followed by a barrier request. Each operation
+ * completes once both its own RPC and the barrier which follows it have returned, at which point the switch is
+ * guaranteed to have processed it. Whenever the batch switches between flow operations and group or meter
+ * operations an additional barrier is inserted, so that groups and meters are installed before the flows which
+ * reference them (and removed after).
+ *
+ * Note: Flows programmed through this backend are not present in the CONFIGURATION datastore, and will therefore not
+ * be reconciled by the forwarding rules manager when a switch reconnects.
+ */
+public class RpcFlowProgrammer extends AbstractBatchingFlowProgrammer {
+    private final SalFlowService salFlowService;
+    private final SalGroupService salGroupService;
+    private final SalMeterService salMeterService;
+    private final FlowCapableTransactionService transactionService;
+
+    public RpcFlowProgrammer(SalFlowService salFlowService, SalGroupService salGroupService,
+            SalMeterService salMeterService, FlowCapableTransactionService transactionService, ScheduledExecutorService scheduler,
+            long batchWindowMillis, int maxBatchSize, int maxInFlight) {
+        super(scheduler, batchWindowMillis, maxBatchSize, maxInFlight);
+        this.salFlowService = salFlowService;
+        this.salGroupService = salGroupService;
+        this.salMeterService = salMeterService;
+        this.transactionService = transactionService;
+    }
+
+    @Override
+    protected ListenableFuture<Void> submitBatch(InstanceIdentifier<Node> nodePath, List<PendingOperation> batch) {
+        NodeRef nodeRef = new NodeRef(nodePath);
+        List<ListenableFuture<Void>> operationFutures = new ArrayList<>();
+        List<PendingOperation> phase = new ArrayList<>();
+        List<ListenableFuture<Void>> phaseRpcFutures = new ArrayList<>();
+
+        for (PendingOperation operation : batch) {
+            if (!phase.isEmpty() && phase.get(0).isFlowOperation() != operation.isFlowOperation()) {
+                operationFutures.addAll(closePhase(nodeRef, phase, phaseRpcFutures));
+                phase = new ArrayList<>();
+                phaseRpcFutures = new ArrayList<>();
+            }
+            phase.add(operation);
+            phaseRpcFutures.add(invokeRpc(nodeRef, operation));
+        }
+        operationFutures.addAll(closePhase(nodeRef, phase, phaseRpcFutures));
+
+        return Futures.transform(Futures.allAsList(operationFutures), new Function<List<Void>, Void>() {
+            @Override
+            public Void apply(List<Void> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sends a barrier following the RPCs of the current phase, and ties the completion of each operation in the phase
+     * to both its RPC and the barrier.
+     */
+    private List<ListenableFuture<Void>> closePhase(NodeRef nodeRef, List<PendingOperation> phase,
+            List<ListenableFuture<Void>> phaseRpcFutures) {
+        List<ListenableFuture<Void>> operationFutures = new ArrayList<>();
+        if (phase.isEmpty()) {
+            return operationFutures;
+        }
+
+        ListenableFuture<Void> barrierFuture = checkRpcResult(
+                transactionService.sendBarrier(new SendBarrierInputBuilder().setNode(nodeRef).build()), "Barrier");
+
+        for (int i = 0; i < phase.size(); i++) {
+            final SettableFuture<Void> operationResult = phase.get(i).result;
+            @SuppressWarnings("unchecked")
+            ListenableFuture<List<Void>> combined = Futures.allAsList(phaseRpcFutures.get(i), barrierFuture);
+            Futures.addCallback(combined, new FutureCallback<List<Void>>() {
+                @Override
+                public void onSuccess(List<Void> result) {
+                    operationResult.set(null);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    operationResult.setException(throwable);
+                }
+            }, MoreExecutors.directExecutor());
+            operationFutures.add(operationResult);
+        }
+
+        return operationFutures;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ListenableFuture<Void> invokeRpc(NodeRef nodeRef, PendingOperation operation) {
+        switch (operation.type) {
+            case ADD_FLOW: {
+                InstanceIdentifier<Flow> flowPath = (InstanceIdentifier<Flow>) operation.path;
+                AddFlowInputBuilder input = new AddFlowInputBuilder((Flow) operation.data)
+                        .setNode(nodeRef)
+                        .setFlowRef(new FlowRef(flowPath))
+                        .setFlowTable(new FlowTableRef(flowPath.firstIdentifierOf(Table.class)));
+                return checkRpcResult(salFlowService.addFlow(input.build()), "Add flow");
+            }
+            case REMOVE_FLOW: {
+                InstanceIdentifier<Flow> flowPath = (InstanceIdentifier<Flow>) operation.path;
+                RemoveFlowInputBuilder input = new RemoveFlowInputBuilder((Flow) operation.data)
+                        .setNode(nodeRef)
+                        .setFlowRef(new FlowRef(flowPath))
+                        .setFlowTable(new FlowTableRef(flowPath.firstIdentifierOf(Table.class)))
+                        .setStrict(true);
+                return checkRpcResult(salFlowService.removeFlow(input.build()), "Remove flow");
+            }
+            case REMOVE_FLOWS_BY_COOKIE: {
+                // Non-strict delete with an empty match, so every flow in the table with a matching cookie is removed
+                Flow cookieMatch = (Flow) operation.data;
+                RemoveFlowInputBuilder input = new RemoveFlowInputBuilder()
+                        .setNode(nodeRef)
+                        .setFlowTable(new FlowTableRef((InstanceIdentifier<Table>) operation.path))
+                        .setTableId(cookieMatch.getTableId())
+                        .setCookie(cookieMatch.getCookie())
+                        .setCookieMask(cookieMatch.getCookieMask())
+                        .setStrict(false);
+                return checkRpcResult(salFlowService.removeFlow(input.build()), "Remove flows by cookie");
+            }
+            case ADD_GROUP: {
+                AddGroupInputBuilder input = new AddGroupInputBuilder((Group) operation.data)
+                        .setNode(nodeRef)
+                        .setGroupRef(new GroupRef(operation.path));
+                return checkRpcResult(salGroupService.addGroup(input.build()), "Add group");
+            }
+            case REMOVE_GROUP: {
+                RemoveGroupInputBuilder input = new RemoveGroupInputBuilder((Group) operation.data)
+                        .setNode(nodeRef)
+                        .setGroupRef(new GroupRef(operation.path));
+                return checkRpcResult(salGroupService.removeGroup(input.build()), "Remove group");
+            }
+            case ADD_METER: {
+                AddMeterInputBuilder input = new AddMeterInputBuilder((Meter) operation.data)
+                        .setNode(nodeRef)
+                        .setMeterRef(new MeterRef(operation.path));
+                return checkRpcResult(salMeterService.addMeter(input.build()), "Add meter");
+            }
+            case REMOVE_METER: {
+                RemoveMeterInputBuilder input = new RemoveMeterInputBuilder((Meter) operation.data)
+                        .setNode(nodeRef)
+                        .setMeterRef(new MeterRef(operation.path));
+                return checkRpcResult(salMeterService.removeMeter(input.build()), "Remove meter");
+            }
+            default:
+                return Futures.immediateFailedFuture(
+                        new IllegalArgumentException("Unsupported operation: " + operation.type));
+        }
+    }
+
+    private static <T> ListenableFuture<Void> checkRpcResult(Future<RpcResult<T>> rpcFuture,
+            final String description) {
+        final SettableFuture<Void> result = SettableFuture.create();
+        Futures.addCallback(JdkFutureAdapters.listenInPoolThread(rpcFuture), new FutureCallback<RpcResult<T>>() {
+            @Override
+            public void onSuccess(RpcResult<T> rpcResult) {
+                if (rpcResult.isSuccessful()) {
+                    result.set(null);
+                } else {
+                    result.setException(new IllegalStateException(description + " RPC failed: "
+                            + rpcResult.getErrors()));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                result.setException(throwable);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    @Override
+    protected String getBackendName() {
+        return "RPC";
+    }
+}
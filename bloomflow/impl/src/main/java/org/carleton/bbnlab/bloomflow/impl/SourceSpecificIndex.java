@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+
+/**
+ * Immutable (G,S) to port bitset index for the desired reception state of a single switch.
+ *
+ * Each group stores one bitset of the ports receiving it from all sources, and a hash from each source named by any
+ * port to the bitset of ports requesting that source. A lookup is one hash probe for the group, one for the source,
+ * and one OR of the two bitsets.
+ */
+public class SourceSpecificIndex {
+
+    private static class GroupBits {
+        public final long[] anySourceBits;
+        public final ImmutableMap<InetAddress, long[]> sourceBits;
+
+        public GroupBits(long[] anySourceBits, ImmutableMap<InetAddress, long[]> sourceBits) {
+            this.anySourceBits = anySourceBits;
+            this.sourceBits = sourceBits;
+        }
+    }
+
+    private final ImmutableMap<InetAddress, GroupBits> groups;
+    private final int numWords;
+
+    /**
+     * Builds the index of a reception state, in which an empty source set represents reception from all sources.
+     * Every port in the state is assigned an index in the specified dictionary.
+     */
+    public SourceSpecificIndex(Map<InetAddress, ? extends Map<NodeConnectorId, ? extends Set<InetAddress>>> receptionState,
+            PortDictionary portDictionary) {
+        this(null, receptionState, receptionState.keySet(), portDictionary);
+    }
+
+    /**
+     * Builds the index of a reception state which differs from the state of the previous index only in the specified
+     * groups. The bitsets of all other groups are shared with the previous index, unless new ports were added to the
+     * dictionary since it was built and the bitsets no longer have the same length.
+     */
+    public SourceSpecificIndex(SourceSpecificIndex prevIndex,
+            Map<InetAddress, ? extends Map<NodeConnectorId, ? extends Set<InetAddress>>> receptionState,
+            Collection<InetAddress> changedGroups, PortDictionary portDictionary) {
+        for (InetAddress mcastAddr : changedGroups) {
+            Map<NodeConnectorId, ? extends Set<InetAddress>> groupState = receptionState.get(mcastAddr);
+            if (groupState == null) {
+                continue;
+            }
+            for (NodeConnectorId port : groupState.keySet()) {
+                portDictionary.indexOf(port);
+            }
+        }
+        this.numWords = PortBitSets.numWords(portDictionary.size());
+        if (prevIndex != null && prevIndex.numWords != this.numWords) {
+            prevIndex = null;
+        }
+
+        ImmutableMap.Builder<InetAddress, GroupBits> groupBuilder = ImmutableMap.builder();
+        for (Map.Entry<InetAddress, ? extends Map<NodeConnectorId, ? extends Set<InetAddress>>> group
+                : receptionState.entrySet()) {
+            GroupBits groupBits = prevIndex == null || changedGroups.contains(group.getKey()) ? null
+                    : prevIndex.groups.get(group.getKey());
+            if (groupBits == null) {
+                groupBits = buildGroupBits(group.getValue(), portDictionary);
+            }
+            groupBuilder.put(group.getKey(), groupBits);
+        }
+        this.groups = groupBuilder.build();
+    }
+
+    private GroupBits buildGroupBits(Map<NodeConnectorId, ? extends Set<InetAddress>> groupState,
+            PortDictionary portDictionary) {
+        long[] anySourceBits = new long[numWords];
+        Map<InetAddress, long[]> sourceBits = new HashMap<>();
+
+        for (Map.Entry<NodeConnectorId, ? extends Set<InetAddress>> port : groupState.entrySet()) {
+            int portIndex = portDictionary.lookup(port.getKey());
+            if (port.getValue().isEmpty()) {
+                PortBitSets.set(anySourceBits, portIndex);
+            }
+            for (InetAddress source : port.getValue()) {
+                if (!sourceBits.containsKey(source)) {
+                    sourceBits.put(source, new long[numWords]);
+                }
+                PortBitSets.set(sourceBits.get(source), portIndex);
+            }
+        }
+
+        return new GroupBits(anySourceBits, ImmutableMap.copyOf(sourceBits));
+    }
+
+    /**
+     * Number of words in the bitsets produced by this index.
+     */
+    public int getNumWords() {
+        return numWords;
+    }
+
+    /**
+     * Writes the bitset of ports receiving traffic from the specified source to the specified group into out, which
+     * must hold at least getNumWords() words. Returns false (with out cleared) if no port has joined the group.
+     */
+    public boolean lookup(InetAddress mcastDstAddr, InetAddress srcAddr, long[] out) {
+        GroupBits group = groups.get(mcastDstAddr);
+        if (group == null) {
+            Arrays.fill(out, 0, numWords, 0);
+            return false;
+        }
+
+        long[] source = group.sourceBits.get(srcAddr);
+        if (source == null) {
+            System.arraycopy(group.anySourceBits, 0, out, 0, numWords);
+        } else {
+            for (int i = 0; i < numWords; i++) {
+                out[i] = group.anySourceBits[i] | source[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the bitset of ports receiving the specified group from all sources into out.
+     */
+    public void lookupAnySource(InetAddress mcastDstAddr, long[] out) {
+        GroupBits group = groups.get(mcastDstAddr);
+        if (group == null) {
+            Arrays.fill(out, 0, numWords, 0);
+        } else {
+            System.arraycopy(group.anySourceBits, 0, out, 0, numWords);
+        }
+    }
+
+    /**
+     * Returns the sources named by any port for the specified group.
+     */
+    public ImmutableSet<InetAddress> getNamedSources(InetAddress mcastDstAddr) {
+        GroupBits group = groups.get(mcastDstAddr);
+        return group == null ? ImmutableSet.<InetAddress>of() : group.sourceBits.keySet();
+    }
+
+    public boolean containsGroup(InetAddress mcastDstAddr) {
+        return groups.containsKey(mcastDstAddr);
+    }
+
+    /**
+     * Returns true if both indices (built against the same port dictionary) describe the same reception state.
+     */
+    public boolean sameReception(SourceSpecificIndex other) {
+        if (!groups.keySet().equals(other.groups.keySet())) {
+            return false;
+        }
+        for (InetAddress mcastDstAddr : groups.keySet()) {
+            if (!sameGroupReception(other, mcastDstAddr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if both indices (built against the same port dictionary) describe the same reception state for the
+     * specified group.
+     */
+    public boolean sameGroupReception(SourceSpecificIndex other, InetAddress mcastDstAddr) {
+        GroupBits group = groups.get(mcastDstAddr);
+        GroupBits otherGroup = other.groups.get(mcastDstAddr);
+        if (group == null || otherGroup == null) {
+            return group == otherGroup;
+        }
+        if (!PortBitSets.equals(group.anySourceBits, otherGroup.anySourceBits)
+                || !group.sourceBits.keySet().equals(otherGroup.sourceBits.keySet())) {
+            return false;
+        }
+        for (Map.Entry<InetAddress, long[]> source : group.sourceBits.entrySet()) {
+            if (!PortBitSets.equals(source.getValue(), otherGroup.sourceBits.get(source.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Source records of a single membership record, stored in an open addressing hash table keyed by the 128-bit key of
+ * the source address (see AddressKeys), so that IPv4 and IPv6 sources are handled alike. Each entry holds the source
+ * timer and whether the source is in the X or the Y set (see RFC 3376).
+ *
+ * Set operations against the sources of a report are done in place. Each report source is looked up once, and the
+ * sources which must be deleted are found by marking the sources named by the report (see beginMark()) and sweeping
+ * the unmarked entries, so no intermediate sets are built.
+ */
+public class SourceTable {
+    public static final byte X_SET = 1;
+    public static final byte Y_SET = 2;
+
+    private static final byte EMPTY = 0;
+    private static final byte DELETED = 3;
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keysHigh;
+    private long[] keysLow;
+    private byte[] states;
+    private double[] timers;
+    private int[] marks;
+    private InetAddress[] addresses;
+    private int size;
+    private int numX;
+    private int numDeleted;
+    private int currentMark;
+
+    public SourceTable() {
+        allocate(MIN_CAPACITY);
+        this.currentMark = 0;
+    }
+
+    private void allocate(int capacity) {
+        this.keysHigh = new long[capacity];
+        this.keysLow = new long[capacity];
+        this.states = new byte[capacity];
+        this.timers = new double[capacity];
+        this.marks = new int[capacity];
+        this.addresses = new InetAddress[capacity];
+        this.size = 0;
+        this.numX = 0;
+        this.numDeleted = 0;
+    }
+
+    private int findSlot(InetAddress address) {
+        long high = AddressKeys.high(address);
+        long low = AddressKeys.low(address);
+        int mask = states.length - 1;
+        for (int i = AddressKeys.hash(high, low) & mask; ; i = (i + 1) & mask) {
+            if (states[i] == EMPTY) {
+                return -1;
+            }
+            if (states[i] != DELETED && keysLow[i] == low && keysHigh[i] == high) {
+                return i;
+            }
+        }
+    }
+
+    // Returns the slot in which a key known to be absent should be inserted, growing the table if required
+    private int insertSlot(long high, long low) {
+        if ((size + numDeleted + 1) * 4 > states.length * 3) {
+            rehash(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size + 1)) * 4));
+        }
+        int mask = states.length - 1;
+        int i = AddressKeys.hash(high, low) & mask;
+        while (states[i] != EMPTY && states[i] != DELETED) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeysHigh = keysHigh;
+        long[] oldKeysLow = keysLow;
+        byte[] oldStates = states;
+        double[] oldTimers = timers;
+        int[] oldMarks = marks;
+        InetAddress[] oldAddresses = addresses;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldStates.length; j++) {
+            if (oldStates[j] == EMPTY || oldStates[j] == DELETED) {
+                continue;
+            }
+            int i = AddressKeys.hash(oldKeysHigh[j], oldKeysLow[j]) & mask;
+            while (states[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keysHigh[i] = oldKeysHigh[j];
+            keysLow[i] = oldKeysLow[j];
+            states[i] = oldStates[j];
+            timers[i] = oldTimers[j];
+            marks[i] = oldMarks[j];
+            addresses[i] = oldAddresses[j];
+            size++;
+            if (states[i] == X_SET) {
+                numX++;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumX() {
+        return numX;
+    }
+
+    public int getNumY() {
+        return size - numX;
+    }
+
+    /**
+     * Returns X_SET or Y_SET if the source is known, or 0 otherwise.
+     */
+    public byte getSet(InetAddress address) {
+        int slot = findSlot(address);
+        return slot < 0 ? EMPTY : states[slot];
+    }
+
+    /**
+     * Returns the timer of the source, or 0 if the source is not known.
+     */
+    public double getTimer(InetAddress address) {
+        int slot = findSlot(address);
+        return slot < 0 ? 0 : timers[slot];
+    }
+
+    /**
+     * Adds the source to the specified set (moving it if it was in the other set), and sets its timer.
+     */
+    public void put(InetAddress address, byte set, double timer) {
+        int slot = findSlot(address);
+        if (slot < 0) {
+            slot = insert(address);
+        } else if (states[slot] == X_SET) {
+            numX--;
+        }
+        states[slot] = set;
+        timers[slot] = timer;
+        if (set == X_SET) {
+            numX++;
+        }
+    }
+
+    /**
+     * Adds the source to the specified set with the specified timer, unless it is already known. Returns true if the
+     * source was added.
+     */
+    public boolean putIfAbsent(InetAddress address, byte set, double timer) {
+        if (findSlot(address) >= 0) {
+            return false;
+        }
+        int slot = insert(address);
+        states[slot] = set;
+        timers[slot] = timer;
+        if (set == X_SET) {
+            numX++;
+        }
+        return true;
+    }
+
+    private int insert(InetAddress address) {
+        long high = AddressKeys.high(address);
+        long low = AddressKeys.low(address);
+        int slot = insertSlot(high, low);
+        if (states[slot] == DELETED) {
+            numDeleted--;
+        }
+        keysHigh[slot] = high;
+        keysLow[slot] = low;
+        addresses[slot] = address;
+        marks[slot] = 0;
+        size++;
+        return slot;
+    }
+
+    public boolean remove(InetAddress address) {
+        int slot = findSlot(address);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    private void removeSlot(int slot) {
+        if (states[slot] == X_SET) {
+            numX--;
+        }
+        states[slot] = DELETED;
+        addresses[slot] = null;
+        size--;
+        numDeleted++;
+    }
+
+    /**
+     * Removes every source of the specified set, recording a DELETE_SOURCE action for each.
+     */
+    public void removeSet(byte set, TransitionActions actions) {
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == set) {
+                actions.add(TransitionActions.Action.DELETE_SOURCE, addresses[i], 0);
+                removeSlot(i);
+            }
+        }
+    }
+
+    /**
+     * Removes every source, keeping the capacity of the table.
+     */
+    public void clear() {
+        Arrays.fill(states, EMPTY);
+        Arrays.fill(addresses, null);
+        size = 0;
+        numX = 0;
+        numDeleted = 0;
+    }
+
+    /**
+     * Starts a new marking pass. Sources marked during the pass are kept by removeUnmarked().
+     */
+    public void beginMark() {
+        currentMark++;
+        if (currentMark == 0) {
+            // The mark generation wrapped around, stale marks could match again
+            Arrays.fill(marks, 0);
+            currentMark = 1;
+        }
+    }
+
+    /**
+     * Marks the source if it is known, and returns true if it was.
+     */
+    public boolean mark(InetAddress address) {
+        int slot = findSlot(address);
+        if (slot < 0) {
+            return false;
+        }
+        marks[slot] = currentMark;
+        return true;
+    }
+
+    /**
+     * Marks the source, first adding it to the specified set with the specified timer if it is not known. Returns
+     * true if the source was already known.
+     */
+    public boolean markOrAdd(InetAddress address, byte set, double timer) {
+        int slot = findSlot(address);
+        boolean known = slot >= 0;
+        if (!known) {
+            slot = insert(address);
+            states[slot] = set;
+            timers[slot] = timer;
+            if (set == X_SET) {
+                numX++;
+            }
+        }
+        marks[slot] = currentMark;
+        return known;
+    }
+
+    public boolean isMarkedAt(int slot) {
+        return marks[slot] == currentMark;
+    }
+
+    /**
+     * Removes every source which was not marked since the last call to beginMark(), recording a DELETE_SOURCE action
+     * for each.
+     */
+    public void removeUnmarked(TransitionActions actions) {
+        for (int i = 0; i < states.length; i++) {
+            if ((states[i] == X_SET || states[i] == Y_SET) && marks[i] != currentMark) {
+                actions.add(TransitionActions.Action.DELETE_SOURCE, addresses[i], 0);
+                removeSlot(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the first occupied slot at or after the specified slot, or -1. Iterate with
+     * for (int i = table.nextSlot(0); i >= 0; i = table.nextSlot(i + 1)). The table must not be modified while
+     * iterating.
+     */
+    public int nextSlot(int slot) {
+        for (int i = slot; i < states.length; i++) {
+            if (states[i] == X_SET || states[i] == Y_SET) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public InetAddress addressAt(int slot) {
+        return addresses[slot];
+    }
+
+    public byte setAt(int slot) {
+        return states[slot];
+    }
+
+    public double timerAt(int slot) {
+        return timers[slot];
+    }
+
+    /**
+     * Returns a copy of the addresses of the sources in the specified set.
+     */
+    public Set<InetAddress> getAddressSet(byte set) {
+        Set<InetAddress> addressSet = new HashSet<>();
+        for (int i = nextSlot(0); i >= 0; i = nextSlot(i + 1)) {
+            if (states[i] == set) {
+                addressSet.add(addresses[i]);
+            }
+        }
+        return addressSet;
+    }
+}
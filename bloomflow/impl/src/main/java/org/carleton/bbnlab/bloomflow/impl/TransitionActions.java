@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Buffer of the actions resulting from an IGMP state transition (see IgmpStateMachine), in the order they were taken.
+ *
+ * The buffer is meant to be reused for every transition: clear() only resets its size, and its arrays only grow
+ * when a record names more sources than any record seen before.
+ */
+public class TransitionActions {
+    private static final int INITIAL_CAPACITY = 16;
+
+    public enum Action {
+        SET_SOURCE_TIMER,        // The timer of the source was set to the value
+        DELETE_SOURCE,           // The source was deleted from the record
+        SET_GROUP_TIMER,         // The group timer was set to the value
+        DELETE_GROUP             // The record has no sources left in INCLUDE mode and should be deleted
+    }
+
+    private Action[] actions;
+    private InetAddress[] addresses;
+    private double[] values;
+    private int size;
+
+    public TransitionActions() {
+        actions = new Action[INITIAL_CAPACITY];
+        addresses = new InetAddress[INITIAL_CAPACITY];
+        values = new double[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    public void clear() {
+        // Drop the address references so the buffer does not keep deleted sources alive
+        Arrays.fill(addresses, 0, size, null);
+        size = 0;
+    }
+
+    public void add(Action action, InetAddress address, double value) {
+        if (size == actions.length) {
+            actions = Arrays.copyOf(actions, size * 2);
+            addresses = Arrays.copyOf(addresses, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        actions[size] = action;
+        addresses[size] = address;
+        values[size] = value;
+        size++;
+    }
+
+    public void add(Action action) {
+        add(action, null, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Action actionAt(int index) {
+        return actions[index];
+    }
+
+    /**
+     * Returns the source address of the action, or null for actions which apply to the whole group.
+     */
+    public InetAddress addressAt(int index) {
+        return addresses[index];
+    }
+
+    /**
+     * Returns the timer value set by SET_SOURCE_TIMER and SET_GROUP_TIMER actions.
+     */
+    public double valueAt(int index) {
+        return values[index];
+    }
+
+    public boolean contains(Action action) {
+        for (int i = 0; i < size; i++) {
+            if (actions[i] == action) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String debugStr() {
+        String returnStr = "";
+        for (int i = 0; i < size; i++) {
+            returnStr += "\t" + actions[i];
+            if (addresses[i] != null) {
+                returnStr += " " + addresses[i];
+            }
+            if (actions[i] == Action.SET_SOURCE_TIMER || actions[i] == Action.SET_GROUP_TIMER) {
+                returnStr += " = " + values[i];
+            }
+            returnStr += "\n";
+        }
+        return returnStr;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.carleton.bbnlab.bloomflow.impl.IgmpGroupRecord.RecordType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks every transition of IgmpStateMachine against the RFC 3376 tables (sections 6.4.1 and 6.4.2), with the
+ * deviations documented on IgmpStateMachine.
+ *
+ * Every case starts from INCLUDE ({1,2}) or EXCLUDE ({1,2},{3,4}), where source n is 10.0.0.n. Sources of the
+ * initial state have a timer of SOURCE_TIMER (0 for the Y set), and the group timer starts at GROUP_TIMER.
+ */
+public class IgmpStateMachineTest {
+    private static final double GMI = 260;
+    private static final double GROUP_TIMER = 100;
+    private static final double SOURCE_TIMER = 50;
+
+    private static final RecordType INCLUDE = RecordType.MODE_IS_INCLUDE;
+    private static final RecordType EXCLUDE = RecordType.MODE_IS_EXCLUDE;
+
+    private static class Case {
+        final String name;
+        final RecordType initialMode;
+        final int[] initialX;
+        final int[] initialY;
+        final RecordType recordType;
+        final int[] report;
+        final RecordType expectedMode;
+        final int[] expectedX;
+        final int[] expectedY;
+        // Pairs of source and expected timer
+        final double[] expectedTimers;
+        final double expectedGroupTimer;
+        final boolean expectedDeleteGroup;
+
+        Case(String name, RecordType initialMode, int[] initialX, int[] initialY, RecordType recordType,
+                int[] report, RecordType expectedMode, int[] expectedX, int[] expectedY, double[] expectedTimers,
+                double expectedGroupTimer, boolean expectedDeleteGroup) {
+            this.name = name;
+            this.initialMode = initialMode;
+            this.initialX = initialX;
+            this.initialY = initialY;
+            this.recordType = recordType;
+            this.report = report;
+            this.expectedMode = expectedMode;
+            this.expectedX = expectedX;
+            this.expectedY = expectedY;
+            this.expectedTimers = expectedTimers;
+            this.expectedGroupTimer = expectedGroupTimer;
+            this.expectedDeleteGroup = expectedDeleteGroup;
+        }
+    }
+
+    private static int[] sources(int... sources) {
+        return sources;
+    }
+
+    private static double[] timers(double... sourceTimerPairs) {
+        return sourceTimerPairs;
+    }
+
+    private static final int[] NONE = sources();
+    private static final int[] A_INCLUDE = sources(1, 2);
+    private static final int[] X_EXCLUDE = sources(1, 2);
+    private static final int[] Y_EXCLUDE = sources(3, 4);
+
+    private static final Case[] CASES = {
+        // INCLUDE (A) + IS_IN (B) -> INCLUDE (A+B), (B)=GMI
+        new Case("INCLUDE + IS_IN", INCLUDE, A_INCLUDE, NONE, RecordType.MODE_IS_INCLUDE, sources(2, 3),
+                INCLUDE, sources(1, 2, 3), NONE, timers(1, SOURCE_TIMER, 2, GMI, 3, GMI), GROUP_TIMER, false),
+        // INCLUDE (A) + IS_EX (B) -> EXCLUDE (A*B,B-A), (B-A)=0, Delete (A-B), Group Timer=GMI
+        new Case("INCLUDE + IS_EX", INCLUDE, A_INCLUDE, NONE, RecordType.MODE_IS_EXCLUDE, sources(2, 3),
+                EXCLUDE, sources(2), sources(3), timers(2, SOURCE_TIMER, 3, 0), GMI, false),
+        // INCLUDE (A) + ALLOW (B) -> INCLUDE (A+B), (B)=GMI
+        new Case("INCLUDE + ALLOW", INCLUDE, A_INCLUDE, NONE, RecordType.ALLOW_NEW_SOURCES, sources(2, 3),
+                INCLUDE, sources(1, 2, 3), NONE, timers(1, SOURCE_TIMER, 2, GMI, 3, GMI), GROUP_TIMER, false),
+        // INCLUDE (A) + BLOCK (B) -> INCLUDE (A), Q(G,A*B) is not sent
+        new Case("INCLUDE + BLOCK", INCLUDE, A_INCLUDE, NONE, RecordType.BLOCK_OLD_SOURCES, sources(2, 3),
+                INCLUDE, sources(1, 2), NONE, timers(1, SOURCE_TIMER, 2, SOURCE_TIMER), GROUP_TIMER, false),
+        // INCLUDE (A) + TO_EX (B) -> EXCLUDE (A*B,B-A), (B-A)=0, Delete (A-B), Group Timer=GMI, Q(G,A*B) is not sent
+        new Case("INCLUDE + TO_EX", INCLUDE, A_INCLUDE, NONE, RecordType.CHANGE_TO_EXCLUDE_MODE, sources(2, 3),
+                EXCLUDE, sources(2), sources(3), timers(2, SOURCE_TIMER, 3, 0), GMI, false),
+        // INCLUDE (A) + TO_IN (B) -> INCLUDE (A+B), (B)=GMI, Q(G,A-B) is not sent
+        new Case("INCLUDE + TO_IN", INCLUDE, A_INCLUDE, NONE, RecordType.CHANGE_TO_INCLUDE_MODE, sources(2, 3),
+                INCLUDE, sources(1, 2, 3), NONE, timers(1, SOURCE_TIMER, 2, GMI, 3, GMI), GROUP_TIMER, false),
+        // EXCLUDE (X,Y) + IS_IN (A) -> EXCLUDE (X+A,Y-A), (A)=GMI
+        new Case("EXCLUDE + IS_IN", EXCLUDE, X_EXCLUDE, Y_EXCLUDE, RecordType.MODE_IS_INCLUDE, sources(2, 3),
+                EXCLUDE, sources(1, 2, 3), sources(4), timers(1, SOURCE_TIMER, 2, GMI, 3, GMI, 4, 0), GROUP_TIMER,
+                false),
+        // EXCLUDE (X,Y) + IS_EX (A) -> EXCLUDE (A-Y,Y*A), (A-X-Y)=GMI, Delete (X-A), Delete (Y-A), Group Timer=GMI
+        new Case("EXCLUDE + IS_EX", EXCLUDE, X_EXCLUDE, Y_EXCLUDE, RecordType.MODE_IS_EXCLUDE, sources(2, 3, 5),
+                EXCLUDE, sources(2, 5), sources(3), timers(2, SOURCE_TIMER, 3, 0, 5, GMI), GMI, false),
+        // EXCLUDE (X,Y) + ALLOW (A) -> EXCLUDE (X+A,Y-A), (A)=GMI
+        new Case("EXCLUDE + ALLOW", EXCLUDE, X_EXCLUDE, Y_EXCLUDE, RecordType.ALLOW_NEW_SOURCES, sources(2, 3),
+                EXCLUDE, sources(1, 2, 3), sources(4), timers(1, SOURCE_TIMER, 2, GMI, 3, GMI, 4, 0), GROUP_TIMER,
+                false),
+        // EXCLUDE (X,Y) + BLOCK (A) -> EXCLUDE (X+(A-Y),Y), (A-X-Y)=Group Timer, Q(G,A-Y) is not sent
+        new Case("EXCLUDE + BLOCK", EXCLUDE, X_EXCLUDE, Y_EXCLUDE, RecordType.BLOCK_OLD_SOURCES, sources(2, 3, 5),
+                EXCLUDE, sources(1, 2, 5), sources(3, 4), timers(1, SOURCE_TIMER, 2, SOURCE_TIMER, 5, GROUP_TIMER),
+                GROUP_TIMER, false),
+        // EXCLUDE (X,Y) + TO_EX (A) -> EXCLUDE (A-Y,Y*A), (A-X-Y)=Group Timer, Delete (X-A), Delete (Y-A),
+        // Group Timer=GMI, Q(G,A-Y) is not sent
+        new Case("EXCLUDE + TO_EX", EXCLUDE, X_EXCLUDE, Y_EXCLUDE, RecordType.CHANGE_TO_EXCLUDE_MODE,
+                sources(2, 3, 5), EXCLUDE, sources(2, 5), sources(3), timers(2, SOURCE_TIMER, 3, 0, 5, GROUP_TIMER),
+                GMI, false),
+        // EXCLUDE (X,Y) + TO_IN (A) -> INCLUDE (X+A), (A)=GMI, Delete (Y) instead of EXCLUDE (X+A,Y-A) with
+        // Q(G,X-A) and Q(G)
+        new Case("EXCLUDE + TO_IN", EXCLUDE, X_EXCLUDE, Y_EXCLUDE, RecordType.CHANGE_TO_INCLUDE_MODE, sources(2, 3),
+                INCLUDE, sources(1, 2, 3), NONE, timers(1, SOURCE_TIMER, 2, GMI, 3, GMI), GROUP_TIMER, false),
+        // An IGMPv2 leave (TO_IN ({})) of the last member deletes the group
+        new Case("EXCLUDE ({},Y) + TO_IN ({})", EXCLUDE, NONE, Y_EXCLUDE, RecordType.CHANGE_TO_INCLUDE_MODE, NONE,
+                INCLUDE, NONE, NONE, timers(), GROUP_TIMER, true),
+        new Case("INCLUDE ({}) + TO_IN ({})", INCLUDE, NONE, NONE, RecordType.CHANGE_TO_INCLUDE_MODE, NONE,
+                INCLUDE, NONE, NONE, timers(), GROUP_TIMER, true)
+    };
+
+    private static InetAddress source(int source) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) source});
+    }
+
+    private static Set<InetAddress> sourceSet(int[] sources) throws UnknownHostException {
+        Set<InetAddress> sourceSet = new HashSet<>();
+        for (int source : sources) {
+            sourceSet.add(source(source));
+        }
+        return sourceSet;
+    }
+
+    private static MulticastMembershipRecord createRecord(RecordType mode, int[] xSources, int[] ySources)
+            throws UnknownHostException {
+        MulticastMembershipRecord record = new MulticastMembershipRecord(
+                InetAddress.getByName("239.1.1.1"), GROUP_TIMER);
+        record.setFilterMode(mode);
+        for (int source : xSources) {
+            record.getSources().put(source(source), SourceTable.X_SET, SOURCE_TIMER);
+        }
+        for (int source : ySources) {
+            record.getSources().put(source(source), SourceTable.Y_SET, 0);
+        }
+        return record;
+    }
+
+    @Test
+    public void testTransitionTables() throws UnknownHostException {
+        TransitionActions actions = new TransitionActions();
+        for (Case transition : CASES) {
+            MulticastMembershipRecord record = createRecord(transition.initialMode, transition.initialX,
+                    transition.initialY);
+            List<InetAddress> report = new ArrayList<>();
+            for (int source : transition.report) {
+                report.add(source(source));
+            }
+
+            Assert.assertTrue(transition.name, IgmpStateMachine.apply(record, transition.recordType, report, GMI,
+                    actions));
+            Assert.assertEquals(transition.name + " filter mode", transition.expectedMode, record.getFilterMode());
+            Assert.assertEquals(transition.name + " X set", sourceSet(transition.expectedX),
+                    record.getSources().getAddressSet(SourceTable.X_SET));
+            Assert.assertEquals(transition.name + " Y set", sourceSet(transition.expectedY),
+                    record.getSources().getAddressSet(SourceTable.Y_SET));
+            for (int i = 0; i < transition.expectedTimers.length; i += 2) {
+                int source = (int) transition.expectedTimers[i];
+                Assert.assertEquals(transition.name + " timer of source " + source, transition.expectedTimers[i + 1],
+                        record.getSources().getTimer(source(source)), 0);
+            }
+            Assert.assertEquals(transition.name + " group timer", transition.expectedGroupTimer,
+                    record.getGroupTimer(), 0);
+            Assert.assertEquals(transition.name + " group deletion", transition.expectedDeleteGroup,
+                    actions.contains(TransitionActions.Action.DELETE_GROUP));
+        }
+    }
+
+    @Test
+    public void testRecordTypesWithoutTransition() throws UnknownHostException {
+        TransitionActions actions = new TransitionActions();
+        for (RecordType recordType : new RecordType[] {RecordType.UNKNOWN_TYPE, RecordType.UNIMITIALIZED_RECORD}) {
+            Assert.assertFalse(IgmpStateMachine.hasTransition(recordType));
+            MulticastMembershipRecord record = createRecord(EXCLUDE, X_EXCLUDE, Y_EXCLUDE);
+            List<InetAddress> report = new ArrayList<>();
+            report.add(source(5));
+            Assert.assertFalse(IgmpStateMachine.apply(record, recordType, report, GMI, actions));
+            Assert.assertEquals(EXCLUDE, record.getFilterMode());
+            Assert.assertEquals(4, record.getSources().size());
+            Assert.assertEquals(0, actions.size());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2016 Alexander Craig and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.carleton.bbnlab.bloomflow.impl;
+
+import org.carleton.bbnlab.bloomflow.impl.IgmpPacket.ParseError;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the length and checksum validation of IgmpPacket and MldPacket, and the group record measurement they share,
+ * against valid messages of every IGMP and MLD version and against truncated, inconsistent and corrupt messages.
+ *
+ * Messages are written as hex strings starting at the IGMP or ICMPv6 header. IGMP checksums are filled in by the test
+ * unless a case corrupts them on purpose.
+ */
+public class PacketValidationTest {
+    private static final String GROUP_V4 = "ef010101";              // 239.1.1.1
+    private static final String SOURCE_V4 = "0a000001";             // 10.0.0.1
+    private static final String GROUP_V6 = "ff0e0000000000000000000000000001";
+    private static final String SOURCE_V6 = "20010db8000000000000000000000001";
+
+    private static class IgmpCase {
+        final String name;
+        final String message;
+        final boolean corruptChecksum;
+        final IgmpPacket.MessageType expectedType;
+        final ParseError expectedError;
+
+        IgmpCase(String name, String message, boolean corruptChecksum, IgmpPacket.MessageType expectedType,
+                ParseError expectedError) {
+            this.name = name;
+            this.message = message;
+            this.corruptChecksum = corruptChecksum;
+            this.expectedType = expectedType;
+            this.expectedError = expectedError;
+        }
+    }
+
+    private static class MldCase {
+        final String name;
+        final String message;
+        final MldPacket.MessageType expectedType;
+        final ParseError expectedError;
+
+        MldCase(String name, String message, MldPacket.MessageType expectedType, ParseError expectedError) {
+            this.name = name;
+            this.message = message;
+            this.expectedType = expectedType;
+            this.expectedError = expectedError;
+        }
+    }
+
+    private static class RecordCase {
+        final String name;
+        final String bytes;
+        final int offset;
+        final int length;
+        final int addressLen;
+        final int expectedLength;
+
+        RecordCase(String name, String bytes, int offset, int length, int addressLen, int expectedLength) {
+            this.name = name;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.addressLen = addressLen;
+            this.expectedLength = expectedLength;
+        }
+    }
+
+    private static final IgmpPacket.MessageType IGMP_UNKNOWN = IgmpPacket.MessageType.UNKNOWN_TYPE;
+    private static final MldPacket.MessageType MLD_UNKNOWN = MldPacket.MessageType.UNKNOWN_TYPE;
+    private static final int V4 = IgmpGroupRecord.IPV4_ADDRESS_LEN;
+    private static final int V6 = IgmpGroupRecord.IPV6_ADDRESS_LEN;
+
+    private static final IgmpCase[] IGMP_CASES = {
+        new IgmpCase("v1 query", "11000000" + "00000000", false,
+                IgmpPacket.MessageType.MEMBERSHIP_QUERY_V1, ParseError.NONE),
+        new IgmpCase("v1 report", "12000000" + GROUP_V4, false,
+                IgmpPacket.MessageType.MEMBERSHIP_REPORT_V1, ParseError.NONE),
+        new IgmpCase("v2 query", "11640000" + GROUP_V4, false,
+                IgmpPacket.MessageType.MEMBERSHIP_QUERY_V2, ParseError.NONE),
+        new IgmpCase("v2 report", "16000000" + GROUP_V4, false,
+                IgmpPacket.MessageType.MEMBERSHIP_REPORT_V2, ParseError.NONE),
+        new IgmpCase("v2 leave", "17000000" + GROUP_V4, false,
+                IgmpPacket.MessageType.LEAVE_GROUP_V2, ParseError.NONE),
+        new IgmpCase("v3 query", "11640000" + GROUP_V4 + "027d0001" + SOURCE_V4, false,
+                IgmpPacket.MessageType.MEMBERSHIP_QUERY_V3, ParseError.NONE),
+        new IgmpCase("v3 report", "22000000" + "00000001" + "01000001" + GROUP_V4 + SOURCE_V4, false,
+                IgmpPacket.MessageType.MEMBERSHIP_REPORT_V3, ParseError.NONE),
+        new IgmpCase("v3 report with auxiliary data", "22000000" + "00000001" + "01010000" + GROUP_V4 + "00000000",
+                false, IgmpPacket.MessageType.MEMBERSHIP_REPORT_V3, ParseError.NONE),
+        new IgmpCase("empty message", "", false, IGMP_UNKNOWN, ParseError.TRUNCATED),
+        new IgmpCase("truncated header", "16000000" + "ef0101", false, IGMP_UNKNOWN, ParseError.TRUNCATED),
+        new IgmpCase("v3 query with more sources than it holds", "11640000" + GROUP_V4 + "027d0002" + SOURCE_V4,
+                false, IGMP_UNKNOWN, ParseError.BAD_SOURCE_COUNT),
+        new IgmpCase("v3 query with maximum source count", "11640000" + GROUP_V4 + "027dffff", false,
+                IGMP_UNKNOWN, ParseError.BAD_SOURCE_COUNT),
+        new IgmpCase("v3 report with more records than it holds", "22000000" + "00000002" + "01000000" + GROUP_V4,
+                false, IGMP_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+        new IgmpCase("v3 report with maximum record count", "22000000" + "0000ffff" + "01000000" + GROUP_V4, false,
+                IGMP_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+        new IgmpCase("v3 record running past the end", "22000000" + "00000001" + "01000002" + GROUP_V4 + SOURCE_V4,
+                false, IGMP_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+        new IgmpCase("v3 record auxiliary data running past the end",
+                "22000000" + "00000001" + "01010000" + GROUP_V4, false, IGMP_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+        new IgmpCase("v3 second record running past the end",
+                "22000000" + "00000002" + "01000000" + GROUP_V4 + "01000001" + GROUP_V4, false,
+                IGMP_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+        new IgmpCase("v2 report with bad checksum", "16000000" + GROUP_V4, true, IGMP_UNKNOWN,
+                ParseError.BAD_CHECKSUM),
+        new IgmpCase("v3 report with bad checksum", "22000000" + "00000001" + "01000001" + GROUP_V4 + SOURCE_V4,
+                true, IGMP_UNKNOWN, ParseError.BAD_CHECKSUM),
+    };
+
+    private static final MldCase[] MLD_CASES = {
+        new MldCase("v1 query", "82000000" + "27100000" + "00000000000000000000000000000000",
+                MldPacket.MessageType.LISTENER_QUERY_V1, ParseError.NONE),
+        new MldCase("v1 report", "83000000" + "00000000" + GROUP_V6, MldPacket.MessageType.LISTENER_REPORT_V1,
+                ParseError.NONE),
+        new MldCase("v1 done", "84000000" + "00000000" + GROUP_V6, MldPacket.MessageType.LISTENER_DONE,
+                ParseError.NONE),
+        new MldCase("v2 query", "82000000" + "27100000" + GROUP_V6 + "027d0001" + SOURCE_V6,
+                MldPacket.MessageType.LISTENER_QUERY_V2, ParseError.NONE),
+        new MldCase("v2 report", "8f000000" + "00000001" + "01000001" + GROUP_V6 + SOURCE_V6,
+                MldPacket.MessageType.LISTENER_REPORT_V2, ParseError.NONE),
+        new MldCase("truncated header", "8f000000" + "000000", MLD_UNKNOWN, ParseError.TRUNCATED),
+        new MldCase("truncated v1 report", "83000000" + "00000000" + "ff0e0000000000000000000000", MLD_UNKNOWN,
+                ParseError.TRUNCATED),
+        new MldCase("v2 query with more sources than it holds", "82000000" + "27100000" + GROUP_V6 + "027d0002"
+                + SOURCE_V6, MLD_UNKNOWN, ParseError.BAD_SOURCE_COUNT),
+        new MldCase("v2 report with more records than it holds", "8f000000" + "00000002" + "01000000" + GROUP_V6,
+                MLD_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+        new MldCase("v2 record running past the end", "8f000000" + "00000001" + "01000002" + GROUP_V6 + SOURCE_V6,
+                MLD_UNKNOWN, ParseError.BAD_RECORD_LENGTH),
+    };
+
+    private static final RecordCase[] RECORD_CASES = {
+        new RecordCase("IPv4 record without sources", "01000000" + GROUP_V4, 0, 8, V4, 8),
+        new RecordCase("IPv4 record with one source", "01000001" + GROUP_V4 + SOURCE_V4, 0, 12, V4, 12),
+        new RecordCase("IPv4 record with auxiliary data", "01010000" + GROUP_V4 + "00000000", 0, 12, V4, 12),
+        new RecordCase("IPv4 record followed by other bytes", "01000000" + GROUP_V4 + SOURCE_V4, 0, 12, V4, 8),
+        new RecordCase("IPv4 record at an offset", SOURCE_V4 + "01000001" + GROUP_V4 + SOURCE_V4, 4, 12, V4, 12),
+        new RecordCase("IPv6 record with one source", "01000001" + GROUP_V6 + SOURCE_V6, 0, 36, V6, 36),
+        new RecordCase("truncated header", "010000" + "00", 0, 4, V4, -1),
+        new RecordCase("truncated IPv6 group address", "01000000" + GROUP_V4, 0, 8, V6, -1),
+        new RecordCase("oversized source count", "0100ffff" + GROUP_V4 + SOURCE_V4, 0, 12, V4, -1),
+        new RecordCase("sources running past the end", "01000002" + GROUP_V4 + SOURCE_V4, 0, 12, V4, -1),
+        new RecordCase("auxiliary data running past the end", "01010001" + GROUP_V4 + SOURCE_V4, 0, 12, V4, -1),
+        new RecordCase("record running past the length", "01000001" + GROUP_V4 + SOURCE_V4, 0, 11, V4, -1),
+    };
+
+    private static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] igmpMessage(IgmpCase igmpCase) {
+        byte[] message = bytes(igmpCase.message);
+        if (message.length >= 4) {
+            char checksum = IgmpPacket.calcChecksum(message, message.length);
+            if (igmpCase.corruptChecksum) {
+                checksum ^= 0x0101;
+            }
+            message[2] = (byte) (checksum >> 8);
+            message[3] = (byte) checksum;
+        }
+        return message;
+    }
+
+    @Test
+    public void testIgmpValidation() {
+        for (IgmpCase igmpCase : IGMP_CASES) {
+            byte[] message = igmpMessage(igmpCase);
+            IgmpPacket packet = new IgmpPacket();
+            packet.parseMessage(message);
+            Assert.assertEquals(igmpCase.name + " parse error", igmpCase.expectedError, packet.getParseError());
+            Assert.assertEquals(igmpCase.name + " message type", igmpCase.expectedType, packet.getMessageType());
+            Assert.assertEquals(igmpCase.name + " checksum", igmpCase.expectedError == ParseError.NONE,
+                    packet.isChecksumValid());
+        }
+    }
+
+    @Test
+    public void testIgmpValidationAtOffset() {
+        for (IgmpCase igmpCase : IGMP_CASES) {
+            // The message is surrounded by bytes which must not be read, as in a received frame
+            byte[] message = igmpMessage(igmpCase);
+            byte[] frame = new byte[message.length + 8];
+            System.arraycopy(message, 0, frame, 4, message.length);
+            IgmpPacket packet = new IgmpPacket();
+            packet.parseMessage(frame, 4, message.length);
+            Assert.assertEquals(igmpCase.name + " parse error", igmpCase.expectedError, packet.getParseError());
+            Assert.assertEquals(igmpCase.name + " message type", igmpCase.expectedType, packet.getMessageType());
+        }
+    }
+
+    @Test
+    public void testMldValidation() {
+        for (MldCase mldCase : MLD_CASES) {
+            MldPacket packet = new MldPacket();
+            packet.parseMessage(bytes(mldCase.message));
+            Assert.assertEquals(mldCase.name + " parse error", mldCase.expectedError, packet.getParseError());
+            Assert.assertEquals(mldCase.name + " message type", mldCase.expectedType, packet.getMessageType());
+        }
+    }
+
+    @Test
+    public void testMeasureRecord() {
+        for (RecordCase recordCase : RECORD_CASES) {
+            Assert.assertEquals(recordCase.name, recordCase.expectedLength, IgmpGroupRecord.measureRecord(
+                    bytes(recordCase.bytes), recordCase.offset, recordCase.length, recordCase.addressLen));
+        }
+    }
+}